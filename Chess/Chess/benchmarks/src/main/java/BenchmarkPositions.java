@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fixed suite of benchmark positions, and the operations BoardBenchmarks measures on them (see
+ * bench.BoardOperations for why this lives in the default package). Every position is reached by
+ * playing moves from the start, and has a move that's played by the nextTurn benchmark.
+ *
+ */
+public class BenchmarkPositions implements bench.BoardOperations {
+  // name -> moves from the start position, then the benchmark move
+  private static final Map<String, String[]> SUITE = new HashMap<String, String[]>();
+
+  static {
+    SUITE.put("start", new String[] {"e2e4"});
+    SUITE.put("italian", new String[] {"e2e4", "e7e5", "g1f3", "b8c6", "f1c4", "f8c5", "c2c3",
+        "g8f6", "d2d3", "d7d6", "e1g1", "e8g8", "c1g5"});
+    SUITE.put("queens-gambit", new String[] {"d2d4", "d7d5", "c2c4", "e7e6", "b1c3", "g8f6",
+        "c1g5", "f8e7", "e2e3", "e8g8", "g1f3", "b8d7", "a1c1"});
+    SUITE.put("in-check", new String[] {"e2e4", "d7d5", "f1b5", "c7c6"});
+    SUITE.put("endgame", new String[] {"e2e4", "e7e5", "g1f3", "b8c6", "f1b5", "a7a6", "b5c6",
+        "d7c6", "e1g1", "f7f6", "d2d4", "e5d4", "f3d4", "c6c5", "d4b3", "d8d1", "f1d1", "c8g4"});
+  }
+
+  private ChessGame game;
+  private ChessGame copy;
+  private int move;
+  private final Map<String, ChessPiece[]> pieces = new HashMap<String, ChessPiece[]>();
+
+  @Override
+  public void setUp(String position) {
+    String[] moves = SUITE.get(position);
+    if (moves == null) {
+      throw new IllegalArgumentException("No benchmark position " + position);
+    }
+    game = new ChessGame("White", "Black");
+    for (int i = 0; i < moves.length - 1; i++) {
+      if (!ChessMove.apply(game, ChessMove.parse(moves[i]))) {
+        throw new IllegalStateException("Illegal move " + moves[i] + " in " + position);
+      }
+    }
+    move = ChessMove.parse(moves[moves.length - 1]);
+
+    // pieces by name and colour, so possibleMovesOrCaptures() doesn't scan the board
+    Map<String, List<ChessPiece>> lists = new HashMap<String, List<ChessPiece>>();
+    ChessPiece c;
+    for (int x = 0; x < ChessBoard.X_DIM; x++) {
+      for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+        c = game.getBoard().getSquare(x, y);
+        if (c != null) {
+          lists.computeIfAbsent(key(c.getName(), c.getColor() == ChessColor.WHITE),
+              k -> new ArrayList<ChessPiece>()).add(c);
+        }
+      }
+    }
+    pieces.clear();
+    for (Map.Entry<String, List<ChessPiece>> e : lists.entrySet()) {
+      pieces.put(e.getKey(), e.getValue().toArray(new ChessPiece[0]));
+    }
+  }
+
+  private static String key(String pieceName, boolean white) {
+    return pieceName + (white ? "/white" : "/black");
+  }
+
+  @Override
+  public void prepareMove() {
+    copy = game.getDeepCopy();
+  }
+
+  @Override
+  public boolean playMove() {
+    return copy.nextTurn(ChessMove.getFromX(move), ChessMove.getFromY(move),
+        ChessMove.getToX(move), ChessMove.getToY(move));
+  }
+
+  @Override
+  public int countThreatenedSquares() {
+    ChessColor attacker = ChessGame.getOtherColor(game.getWhoseTurn().getColor());
+    ChessBoard board = game.getBoard();
+    int count = 0;
+    for (int x = 0; x < ChessBoard.X_DIM; x++) {
+      for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+        if (board.isThreatened(x, y, attacker)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public int possibleMovesOrCaptures(String pieceName, boolean white) {
+    ChessPiece[] list = pieces.get(key(pieceName, white));
+    if (list == null) {
+      return 0;
+    }
+    int count = 0;
+    for (ChessPiece c : list) {
+      count += c.getPossibleMovesOrCaptures().size();
+    }
+    return count;
+  }
+
+  @Override
+  public void syncShadow() {
+    game.syncShadow();
+  }
+
+  @Override
+  public boolean whoseTurnHasLegalMove() {
+    return game.whoseTurnHasLegalMove();
+  }
+
+}
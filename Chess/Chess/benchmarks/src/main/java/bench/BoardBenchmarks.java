@@ -0,0 +1,113 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for the hot paths of move processing, on every position of the fixed suite in
+ * BenchmarkPositions. Build with "mvn package" in Chess/Chess, then either
+ *    java -jar benchmarks/target/benchmarks.jar -rf json -rff results.json
+ * or java -cp benchmarks/target/benchmarks.jar bench.BoardBenchmarks [JMH options], which writes
+ * jmh-result.json unless told otherwise. Keep the JSON of each version to compare the scores.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoardBenchmarks {
+
+  @State(Scope.Thread)
+  public static class PositionState {
+    @Param({"start", "italian", "queens-gambit", "in-check", "endgame"})
+    public String position;
+
+    BoardOperations ops;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+      ops = (BoardOperations) Class.forName("BenchmarkPositions").getDeclaredConstructor()
+          .newInstance();
+      ops.setUp(position);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class PieceState extends PositionState {
+    @Param({"Pawn", "Knight", "Bishop", "Rook", "Queen", "King"})
+    public String piece;
+  }
+
+  @State(Scope.Thread)
+  public static class MoveState extends PositionState {
+    // nextTurn() changes the game, so every call gets its own copy. The copy isn't timed, and a
+    // move takes long enough for the per-call timestamps not to matter.
+    @Setup(Level.Invocation)
+    public void copy() {
+      ops.prepareMove();
+    }
+  }
+
+  @Benchmark
+  public boolean nextTurn(MoveState s) {
+    return s.ops.playMove();
+  }
+
+  @Benchmark
+  public int isThreatenedAllSquares(PositionState s) {
+    return s.ops.countThreatenedSquares();
+  }
+
+  @Benchmark
+  public int getPossibleMovesOrCaptures(PieceState s) {
+    return s.ops.possibleMovesOrCaptures(s.piece, true)
+        + s.ops.possibleMovesOrCaptures(s.piece, false);
+  }
+
+  @Benchmark
+  public void syncShadow(PositionState s) {
+    s.ops.syncShadow();
+  }
+
+  @Benchmark
+  public boolean whoseTurnHasLegalMove(PositionState s) {
+    return s.ops.whoseTurnHasLegalMove();
+  }
+
+  /**
+   * Runs these benchmarks with JSON results (jmh-result.json). Takes the usual JMH options; a
+   * benchmark pattern, -rf or -rff replaces the default.
+   */
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions cli = new CommandLineOptions(args);
+    OptionsBuilder options = new OptionsBuilder();
+    options.parent(cli);
+    if (cli.getIncludes().isEmpty()) {
+      options.include(BoardBenchmarks.class.getName());
+    }
+    if (!cli.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    new Runner(options.build()).run();
+  }
+
+}
@@ -0,0 +1,55 @@
+package bench;
+
+/**
+ * The board operations that are benchmarked, on one position of the suite. JMH won't generate
+ * benchmarks for classes in the default package, and classes in a named package can't refer to
+ * the default package where the chess classes live, so the benchmarks reach them through this
+ * interface. It's implemented by BenchmarkPositions (in the default package) and only ever has that
+ * one implementation, so the JIT inlines the calls.
+ *
+ */
+public interface BoardOperations {
+
+  /**
+   * Loads one of the suite's positions
+   * @param position position name (see BoardBenchmarks.PositionState)
+   */
+  void setUp(String position);
+
+  /**
+   * Gets a fresh copy of the position ready for playMove()
+   */
+  void prepareMove();
+
+  /**
+   * Plays the position's benchmark move with ChessGame.nextTurn() on the copy made by
+   * prepareMove()
+   * @return whether the move was legal
+   */
+  boolean playMove();
+
+  /**
+   * Calls ChessBoard.isThreatened() on every square, for attacks by the side not to move
+   * @return number of threatened squares
+   */
+  int countThreatenedSquares();
+
+  /**
+   * Calls getPossibleMovesOrCaptures() on every piece of one type and colour
+   * @param pieceName piece name (see ChessPiece.getName())
+   * @param white true for white's pieces, false for black's
+   * @return total number of moves
+   */
+  int possibleMovesOrCaptures(String pieceName, boolean white);
+
+  /**
+   * Calls ChessGame.syncShadow() on the (already in sync) shadow board
+   */
+  void syncShadow();
+
+  /**
+   * Calls ChessGame.whoseTurnHasLegalMove()
+   */
+  boolean whoseTurnHasLegalMove();
+
+}
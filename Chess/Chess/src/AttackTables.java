@@ -0,0 +1,130 @@
+/**
+ * Precomputed attack sets, built once when the class loads. Squares are numbered y * 8 + x and a
+ * set of squares is a long with bit (y * 8 + x) set for each square in it, so a piece's targets are
+ * a single array lookup, and walking them needs no allocation:
+ *    for (long m = AttackTables.knight(x, y); m != 0; m &= m - 1) {
+ *      int sq = Long.numberOfTrailingZeros(m); // the target is (sq % 8, sq / 8)
+ *    }
+ *
+ * BETWEEN and LINE hold, for every pair of squares on a shared rank, file or diagonal, the squares
+ * strictly between them and the whole line through them. A path is clear when the squares between
+ * its ends don't meet the board's occupancy (see ChessBoard.getOccupied()), and a piece standing
+ * between a slider and a king on their line is the only thing stopping a check.
+ *
+ */
+public final class AttackTables {
+  private static final long[] KNIGHT = new long[64];
+  private static final long[] KING = new long[64];
+  private static final long[] WHITE_PAWN = new long[64];
+  private static final long[] BLACK_PAWN = new long[64];
+  private static final long[] BETWEEN = new long[64 * 64]; // indexed 64 * from + to
+  private static final long[] LINE = new long[64 * 64];
+
+  static {
+    int[] knightDx = {1, 2, 2, 1, -1, -2, -2, -1};
+    int[] knightDy = {2, 1, -1, -2, -2, -1, 1, 2};
+    for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+      for (int x = 0; x < ChessBoard.X_DIM; x++) {
+        int sq = square(x, y);
+        for (int i = 0; i < 8; i++) {
+          KNIGHT[sq] |= bit(x + knightDx[i], y + knightDy[i]);
+        }
+        for (int dx = -1; dx <= 1; dx++) {
+          for (int dy = -1; dy <= 1; dy++) {
+            if (dx != 0 || dy != 0) {
+              KING[sq] |= bit(x + dx, y + dy);
+            }
+          }
+        }
+        WHITE_PAWN[sq] = bit(x - 1, y + 1) | bit(x + 1, y + 1);
+        BLACK_PAWN[sq] = bit(x - 1, y - 1) | bit(x + 1, y - 1);
+
+        // walk out in each direction, everything passed so far is between x,y and the next square
+        for (int dx = -1; dx <= 1; dx++) {
+          for (int dy = -1; dy <= 1; dy++) {
+            if (dx == 0 && dy == 0) {
+              continue;
+            }
+            long line = bit(x, y) | ray(x, y, dx, dy) | ray(x, y, -dx, -dy);
+            long passed = 0;
+            for (int tx = x + dx, ty = y + dy; ChessBoard.isOnBoard(tx, ty); tx += dx, ty += dy) {
+              BETWEEN[64 * sq + square(tx, ty)] = passed;
+              LINE[64 * sq + square(tx, ty)] = line;
+              passed |= bit(tx, ty);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the squares from x,y (exclusive) to the edge of the board in direction dx,dy
+   */
+  private static long ray(int x, int y, int dx, int dy) {
+    long set = 0;
+    for (int tx = x + dx, ty = y + dy; ChessBoard.isOnBoard(tx, ty); tx += dx, ty += dy) {
+      set |= bit(tx, ty);
+    }
+    return set;
+  }
+
+  private AttackTables() {
+  }
+
+  public static int square(int x, int y) {
+    return 8 * y + x;
+  }
+
+  /**
+   * Returns the set holding just x,y, or the empty set if x,y is off the board
+   */
+  public static long bit(int x, int y) {
+    return ChessBoard.isOnBoard(x, y) ? 1L << square(x, y) : 0;
+  }
+
+  /**
+   * Checks whether x,y is in a set
+   */
+  public static boolean contains(long set, int x, int y) {
+    return (set & bit(x, y)) != 0;
+  }
+
+  /**
+   * Returns the squares a knight on x,y attacks
+   */
+  public static long knight(int x, int y) {
+    return KNIGHT[square(x, y)];
+  }
+
+  /**
+   * Returns the squares a king on x,y attacks (not counting castling)
+   */
+  public static long king(int x, int y) {
+    return KING[square(x, y)];
+  }
+
+  /**
+   * Returns the squares a pawn of the given colour on x,y attacks, i.e. could capture on
+   */
+  public static long pawn(ChessColor color, int x, int y) {
+    return color == ChessColor.WHITE ? WHITE_PAWN[square(x, y)] : BLACK_PAWN[square(x, y)];
+  }
+
+  /**
+   * Returns the squares strictly between x1,y1 and x2,y2, or the empty set if the two aren't on a
+   * shared rank, file or diagonal (or are the same square)
+   */
+  public static long between(int x1, int y1, int x2, int y2) {
+    return BETWEEN[64 * square(x1, y1) + square(x2, y2)];
+  }
+
+  /**
+   * Returns the whole rank, file or diagonal through x1,y1 and x2,y2 from edge to edge, or the
+   * empty set if there isn't one (or they're the same square)
+   */
+  public static long line(int x1, int y1, int x2, int y2) {
+    return LINE[64 * square(x1, y1) + square(x2, y2)];
+  }
+
+}
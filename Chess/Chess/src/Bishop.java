@@ -34,22 +34,7 @@ public class Bishop extends ChessPiece {
   @Override
   public ArrayList<Integer[]> getPossibleMovesOrCaptures() {
     ArrayList<Integer[]> moves = new ArrayList<Integer[]>();
-    int dx;
-    int[] yVals = new int[2];
-    
-    for (int x = 0; x < ChessBoard.X_DIM; x++) {
-      // it's hard to explain...just work it out on a board yourself
-      dx = x - this.getX();
-      yVals[0] = this.getY() + dx;
-      yVals[1] = this.getY() - dx;
-      
-      for (int y : yVals) {
-        if (this.canMove(x, y) || this.canCapture(x, y)) {
-          moves.add(new Integer[] {x, y});
-        }
-      }
-    }
-    
+    this.board.addSlides(this, ChessBoard.BISHOP_DIRECTIONS, moves);
     return moves;
   }
   
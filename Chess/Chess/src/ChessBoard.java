@@ -1,20 +1,176 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * Object representing a standard chess board with pieces on it. DOES NOT contain game-specific
  * logic, that lives in the ChessPiece-derived classes and in ChessGame. This class only stores
  * and modifies information related to piece positions.
+ *
+ * Squares are kept in a 10x12 mailbox: the 8x8 board sits in the middle of a 10 wide, 12 high
+ * array, framed by OFF_BOARD sentinel cells (two deep above and below so that knight jumps land on
+ * a sentinel too). x,y is at index(x, y) = 21 + x + 10 * y, a step in any direction is adding a
+ * fixed offset (see the direction tables), and a ray walk stops when it hits something that isn't
+ * EMPTY, with no bounds checks. Next to the pieces the board keeps a byte code per cell (see
+ * code()), so the hot loops can look at the board without touching the piece objects.
  * @author bdiamond2
  *
  */
 public class ChessBoard {
   public static final int X_DIM = 8; // x dimension
   public static final int Y_DIM = 8; // y dimension
-  private ChessPiece[][] board = new ChessPiece[X_DIM][Y_DIM];
+  static final int MAILBOX_SIZE = 120;
+  static final byte OFF_BOARD = -1;
+  static final byte EMPTY = 0;
+  // piece codes are 2 * type + 1 for black and 2 * type + 2 for white, type going pawn, knight,
+  // bishop, rook, queen, king (i.e. Zobrist.pieceKind() + 1)
+  static final int PAWN = 0;
+  static final int KNIGHT = 1;
+  static final int BISHOP = 2;
+  static final int ROOK = 3;
+  static final int QUEEN = 4;
+  static final int KING = 5;
+
+  static final int[] ROOK_DIRECTIONS = {-10, -1, 1, 10};
+  static final int[] BISHOP_DIRECTIONS = {-11, -9, 9, 11};
+  static final int[] QUEEN_DIRECTIONS = {-11, -10, -9, -1, 1, 9, 10, 11};
+  static final int[] KNIGHT_OFFSETS = {-21, -19, -12, -8, 8, 12, 19, 21};
+  static final int[] KING_OFFSETS = QUEEN_DIRECTIONS;
+
+  private static final byte[] EMPTY_BOARD = new byte[MAILBOX_SIZE];
+
+  static {
+    Arrays.fill(EMPTY_BOARD, OFF_BOARD);
+    for (int y = 0; y < Y_DIM; y++) {
+      for (int x = 0; x < X_DIM; x++) {
+        EMPTY_BOARD[index(x, y)] = EMPTY;
+      }
+    }
+  }
+
+  private final ChessPiece[] squares = new ChessPiece[MAILBOX_SIZE];
+  private final byte[] codes = EMPTY_BOARD.clone();
+  private long occupied; // AttackTables set of the non-empty squares
+  // each side's pieces as the cells they stand on, in no particular order: white's in row 0 and
+  // black's in row 1 (the low bit of their codes). slots maps a cell to its piece's place in its
+  // row, so taking a piece off is O(1): the row's last piece moves into its place.
+  private final int[][] pieceCells = new int[2][16];
+  private final int[] pieceCounts = new int[2];
+  private final byte[] slots = new byte[MAILBOX_SIZE];
   protected ChessPiece lastActivePiece;
   protected ChessGame game;
+  private Listener listener;
+
+  /**
+   * Gets told about every piece put on or taken off a square, e.g. to keep incrementally updated
+   * evaluation state in step with the board
+   */
+  public interface Listener {
+    void pieceAdded(ChessPiece piece, int x, int y);
+
+    void pieceRemoved(ChessPiece piece, int x, int y);
+  }
 
   public ChessBoard(ChessGame game) {
+    this(game, true);
+  }
+
+  private ChessBoard(ChessGame game, boolean initialize) {
+    this.game = game;
+    if (initialize) {
+      initialize();
+    }
+  }
+
+  /**
+   * Creates a board holding a packed position, with new pieces
+   * @param game game this board belongs to
+   * @param position position to set up
+   * @throws IllegalArgumentException if either side doesn't have exactly one king
+   */
+  ChessBoard(ChessGame game, PackedPosition position) {
     this.game = game;
-    initialize();
+    int[] kings = new int[2];
+    for (int x = 0; x < X_DIM; x++) {
+      for (int y = 0; y < Y_DIM; y++) {
+        int kind = position.getPiece(x, y);
+        if (kind == PackedPosition.EMPTY) {
+          continue;
+        }
+        ChessColor color = kind % 2 == 1 ? ChessColor.WHITE : ChessColor.BLACK;
+        int homeRank = color == ChessColor.WHITE ? 0 : 7;
+        ChessPiece c;
+        switch (kind / 2) {
+          case 0:
+            Pawn pawn = new Pawn(color, this, x, y);
+            pawn.setHasMovedOrCaptured(y != homeRank + pawn.pawnForward(1));
+            c = pawn;
+            break;
+          case 1:
+            c = new Knight(color, this, x, y);
+            break;
+          case 2:
+            c = new Bishop(color, this, x, y);
+            break;
+          case 3:
+            Rook rook = new Rook(color, this, x, y);
+            rook.setHasMovedOrCaptured(y != homeRank || (x != 0 && x != 7)
+                || !position.canCastle(color, x));
+            c = rook;
+            break;
+          case 4:
+            c = new Queen(color, this, x, y);
+            break;
+          default:
+            King king = new King(color, this, x, y);
+            king.setHasMovedOrCaptured(y != homeRank || x != 4
+                || !(position.canCastle(color, 0) || position.canCastle(color, 7)));
+            c = king;
+            kings[kind % 2]++;
+            break;
+        }
+        placeChessPiece(c);
+      }
+    }
+    if (kings[0] != 1 || kings[1] != 1) {
+      throw new IllegalArgumentException("Each side needs exactly one king");
+    }
+
+    // the pawn that can be taken en passant has to look like it just double jumped
+    int epFile = position.getEnPassantFile();
+    if (epFile != -1) {
+      boolean whiteJumped = position.getSideToMove() == ChessColor.BLACK;
+      ChessPiece jumped = getSquare(epFile, whiteJumped ? 3 : 4);
+      jumped.setPrevX(epFile);
+      jumped.setPrevY(whiteJumped ? 1 : 6);
+      lastActivePiece = jumped;
+    }
+  }
+
+  /**
+   * Returns a deep copy of this board, with deep copies of all its pieces, belonging to a
+   * different game
+   * @param newGame game that the copy belongs to
+   * @return a deep copy of this board
+   */
+  public ChessBoard getDeepCopy(ChessGame newGame) {
+    ChessBoard copy = new ChessBoard(newGame, false);
+    for (int i = index(0, 0); i <= index(X_DIM - 1, Y_DIM - 1); i++) {
+      if (this.codes[i] > EMPTY) {
+        copy.squares[i] = this.squares[i].getDeepCopy(copy);
+      }
+    }
+    System.arraycopy(this.codes, 0, copy.codes, 0, MAILBOX_SIZE);
+    copy.occupied = this.occupied;
+    for (int side = 0; side < 2; side++) {
+      copy.pieceCells[side] = this.pieceCells[side].clone();
+      copy.pieceCounts[side] = this.pieceCounts[side];
+    }
+    System.arraycopy(this.slots, 0, copy.slots, 0, MAILBOX_SIZE);
+    if (this.lastActivePiece != null && !this.lastActivePiece.getIsCaptured()) {
+      copy.lastActivePiece = copy.getSquare(this.lastActivePiece.getX(),
+          this.lastActivePiece.getY());
+    }
+    return copy;
   }
 
   /**
@@ -26,7 +182,7 @@ public class ChessBoard {
     if (this.getSquare(piece.getX(), piece.getY()) != null) {
       throw new IllegalArgumentException("The board square is already occupied");
     }
-    board[piece.getX()][piece.getY()] = piece;
+    put(index(piece.getX(), piece.getY()), piece);
   }
 
   private void initialize() {
@@ -77,11 +233,11 @@ public class ChessBoard {
     for (int y = Y_DIM - 1; y >= 0; y--) {
       result += rows[y];
       for (int x = 0; x < X_DIM; x++) {
-        if (board[x][y] == null) {
+        if (squares[index(x, y)] == null) {
           nextSquare = "__";
         }
         else {
-          nextSquare = board[x][y].toString() + "_";
+          nextSquare = squares[index(x, y)].toString() + "_";
         }
         result += "  " + nextSquare;
       }
@@ -103,11 +259,167 @@ public class ChessBoard {
    * @return the ChessPiece object at these coordinates or null if the space is empty
    */
   public ChessPiece getSquare(int x, int y) {
-    return this.board[x][y];
+    return this.squares[index(x, y)];
+  }
+
+  /**
+   * Returns the piece on a mailbox cell
+   * @param index cell (see index())
+   * @return the piece, or null if the cell is empty or off the board
+   */
+  ChessPiece getSquare(int index) {
+    return this.squares[index];
+  }
+
+  /**
+   * Returns the code of a mailbox cell: OFF_BOARD, EMPTY or a piece code (see code())
+   */
+  byte getCode(int index) {
+    return this.codes[index];
   }
 
   public void setSquare(int x, int y, ChessPiece piece) {
-    this.board[x][y] = piece;
+    int i = index(x, y);
+    if (listener != null) {
+      if (this.squares[i] != null) {
+        listener.pieceRemoved(this.squares[i], x, y);
+      }
+      if (piece != null) {
+        listener.pieceAdded(piece, x, y);
+      }
+    }
+    put(i, piece);
+  }
+
+  private void put(int i, ChessPiece piece) {
+    clear(i);
+    if (piece != null) {
+      this.squares[i] = piece;
+      this.codes[i] = code(piece);
+      this.occupied |= 1L << square64(i);
+      int side = this.codes[i] & 1;
+      if (pieceCounts[side] == pieceCells[side].length) { // only on boards set up by hand
+        pieceCells[side] = Arrays.copyOf(pieceCells[side], 2 * pieceCells[side].length);
+      }
+      pieceCells[side][pieceCounts[side]] = i;
+      slots[i] = (byte) pieceCounts[side]++;
+    }
+  }
+
+  /**
+   * Empties a cell, taking its piece (if any) off its side's list
+   */
+  private void clear(int i) {
+    if (this.codes[i] == EMPTY) {
+      return;
+    }
+    int side = this.codes[i] & 1;
+    int last = pieceCells[side][--pieceCounts[side]];
+    pieceCells[side][slots[i]] = last;
+    slots[last] = slots[i];
+    this.squares[i] = null;
+    this.codes[i] = EMPTY;
+    this.occupied &= ~(1L << square64(i));
+  }
+
+  /**
+   * Moves the piece on one cell to another, replacing whatever was there
+   */
+  private void relocate(int from, int to) {
+    clear(to);
+    this.squares[to] = this.squares[from];
+    this.codes[to] = this.codes[from];
+    pieceCells[this.codes[from] & 1][slots[from]] = to;
+    slots[to] = slots[from];
+    this.occupied |= 1L << square64(to);
+    this.squares[from] = null;
+    this.codes[from] = EMPTY;
+    this.occupied &= ~(1L << square64(from));
+  }
+
+  /**
+   * Returns the number of pieces a side has on this board
+   */
+  public int getPieceCount(ChessColor color) {
+    return pieceCounts[side(color)];
+  }
+
+  /**
+   * Returns one of a side's pieces on this board. Together with getPieceCount() this walks a side's
+   * pieces without looking at the empty squares:
+   *    for (int i = 0; i < board.getPieceCount(color); i++) {
+   *      ChessPiece c = board.getPiece(color, i);
+   *    }
+   * The order is arbitrary and changes whenever a piece is added or removed, so don't change the
+   * board while walking it.
+   * @param color side
+   * @param i between 0 and getPieceCount(color) - 1
+   */
+  public ChessPiece getPiece(ChessColor color, int i) {
+    return squares[pieceCells[side(color)][i]];
+  }
+
+  private static int side(ChessColor color) {
+    return color == ChessColor.WHITE ? 0 : 1;
+  }
+
+  /**
+   * Returns the set of occupied squares, as an AttackTables square set
+   */
+  long getOccupied() {
+    return this.occupied;
+  }
+
+  /**
+   * Returns the mailbox cell of x,y
+   */
+  static int index(int x, int y) {
+    return 21 + x + 10 * y;
+  }
+
+  /**
+   * Returns the x (file) of a mailbox cell on the board
+   */
+  static int fileOf(int index) {
+    return index % 10 - 1;
+  }
+
+  /**
+   * Returns the y (rank) of a mailbox cell on the board
+   */
+  static int rankOf(int index) {
+    return index / 10 - 2;
+  }
+
+  /**
+   * Returns the AttackTables square number (0-63) of a mailbox cell on the board
+   */
+  static int square64(int index) {
+    return 8 * rankOf(index) + fileOf(index);
+  }
+
+  /**
+   * Returns the code of a type of piece of one side
+   * @param type PAWN, KNIGHT, BISHOP, ROOK, QUEEN or KING
+   * @param color side
+   */
+  static byte code(int type, ChessColor color) {
+    return (byte) (2 * type + (color == ChessColor.WHITE ? 2 : 1));
+  }
+
+  /**
+   * Returns the code of a piece
+   */
+  static byte code(ChessPiece piece) {
+    return (byte) (Zobrist.pieceKind(piece) + 1);
+  }
+
+  /**
+   * Sets the listener told about piece changes on this board. Copies of the board don't inherit it.
+   * @param listener the listener, or null for none
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
   }
 
   /**
@@ -131,9 +443,14 @@ public class ChessBoard {
   public void move(int x1, int y1, int x2, int y2) {
     verifyValidMoveOrCapture(x1, y1, x2, y2);
 
-    this.lastActivePiece = this.board[x1][y1];
-    this.board[x2][y2] = this.board[x1][y1]; // replace
-    this.board[x1][y1] = null; // leave null
+    int from = index(x1, y1);
+    int to = index(x2, y2);
+    this.lastActivePiece = this.squares[from];
+    if (listener != null) {
+      listener.pieceRemoved(this.squares[from], x1, y1);
+      listener.pieceAdded(this.squares[from], x2, y2);
+    }
+    relocate(from, to);
   }
 
   public void capture(int x1, int y1, int xDest, int yDest, int xCap, int yCap) {
@@ -146,10 +463,17 @@ public class ChessBoard {
       throw new IllegalArgumentException("Can't capture a blank square");
     }
 
-    this.lastActivePiece = this.board[x1][y1]; // update last active piece
-    this.board[xCap][yCap] = null; // clear out the captured square (do this first)
-    this.board[xDest][yDest] = this.board[x1][y1]; // move piece from x1,y1 to x2,y2
-    this.board[x1][y1] = null; // leave the original square empty
+    int from = index(x1, y1);
+    int dest = index(xDest, yDest);
+    int cap = index(xCap, yCap);
+    this.lastActivePiece = this.squares[from]; // update last active piece
+    if (listener != null) {
+      listener.pieceRemoved(this.squares[cap], xCap, yCap);
+      listener.pieceRemoved(this.squares[from], x1, y1);
+      listener.pieceAdded(this.squares[from], xDest, yDest);
+    }
+    clear(cap); // clear out the captured square (do this first)
+    relocate(from, dest); // move piece from x1,y1 to x2,y2, leaving x1,y1 empty
   }
 
   /**
@@ -180,35 +504,278 @@ public class ChessBoard {
    * @return true if any piece on the given side threatens the given square, false if not
    */
   public boolean isThreatened(int x, int y, ChessColor color) {
-    ChessPiece c;
-    // don't use the players' material lists because we need to keep the focus on this
-    // specific board object (because this might be a mirror board)
-    for (int row = 0; row < Y_DIM; row++) {
-      for (int col = 0; col < X_DIM; col++) {
-        c = this.getSquare(col, row);
-        // if the square is occupied, it's on the attacking side, and it can capture x,y
-        if (c != null && c.getColor() == color && c.canCapture(x, y)) {
-          return true;
-        }
+    if (!GameMetrics.isEnabled()) {
+      return doIsThreatened(x, y, color);
+    }
+    long start = System.nanoTime();
+    boolean threatened = doIsThreatened(x, y, color);
+    GameMetrics.record(GameMetrics.IS_THREATENED, start);
+    return threatened;
+  }
+
+  private boolean doIsThreatened(int x, int y, ChessColor color) {
+    int target = index(x, y);
+    byte targetCode = codes[target];
+    if (targetCode != EMPTY && isColor(targetCode, color)) {
+      return false; // nothing captures its own side's pieces
+    }
+
+    // attacking pawns stand diagonally behind x,y as they see it. With x,y empty the only capture
+    // is en passant, which only pawns can do.
+    byte pawn = code(PAWN, color);
+    int behind = target + (color == ChessColor.WHITE ? -10 : 10);
+    for (int i = behind - 1; i <= behind + 1; i += 2) {
+      if (codes[i] == pawn && (targetCode != EMPTY || squares[i].canCapture(x, y))) {
+        return true;
+      }
+    }
+    if (targetCode == EMPTY) {
+      return false;
+    }
+
+    // leapers, then rays out from x,y to the first thing on them. Only looking at this board's
+    // cells keeps the focus on this specific board object (which might be a mirror board).
+    byte knight = code(KNIGHT, color);
+    for (int offset : KNIGHT_OFFSETS) {
+      if (codes[target + offset] == knight) {
+        return true;
+      }
+    }
+    byte king = code(KING, color);
+    for (int offset : KING_OFFSETS) {
+      if (codes[target + offset] == king) {
+        return true;
+      }
+    }
+    byte queen = code(QUEEN, color);
+    byte rook = code(ROOK, color);
+    for (int direction : ROOK_DIRECTIONS) {
+      byte c = firstAlong(target, direction);
+      if (c == rook || c == queen) {
+        return true;
+      }
+    }
+    byte bishop = code(BISHOP, color);
+    for (int direction : BISHOP_DIRECTIONS) {
+      byte c = firstAlong(target, direction);
+      if (c == bishop || c == queen) {
+        return true;
       }
     }
 
     return false;
   }
 
+  /**
+   * Finds every piece of the given side attacking the occupied square x,y, e.g. everything giving
+   * check to a king. Unlike isThreatened() it doesn't stop at the first one, since a double check
+   * can only be answered by moving the king.
+   * @param x x of the square being attacked
+   * @param y y of the square being attacked
+   * @param color the side doing the attacking
+   * @return the attackers' squares as an AttackTables set
+   */
+  public long getAttackers(int x, int y, ChessColor color) {
+    int target = index(x, y);
+    long attackers = 0;
+    byte pawn = code(PAWN, color);
+    int behind = target + (color == ChessColor.WHITE ? -10 : 10);
+    for (int i = behind - 1; i <= behind + 1; i += 2) {
+      if (codes[i] == pawn) {
+        attackers |= 1L << square64(i);
+      }
+    }
+    byte knight = code(KNIGHT, color);
+    for (int offset : KNIGHT_OFFSETS) {
+      if (codes[target + offset] == knight) {
+        attackers |= 1L << square64(target + offset);
+      }
+    }
+    byte king = code(KING, color);
+    for (int offset : KING_OFFSETS) {
+      if (codes[target + offset] == king) {
+        attackers |= 1L << square64(target + offset);
+      }
+    }
+    byte queen = code(QUEEN, color);
+    byte rook = code(ROOK, color);
+    for (int direction : ROOK_DIRECTIONS) {
+      int i = firstCellAlong(target, direction);
+      if (codes[i] == rook || codes[i] == queen) {
+        attackers |= 1L << square64(i);
+      }
+    }
+    byte bishop = code(BISHOP, color);
+    for (int direction : BISHOP_DIRECTIONS) {
+      int i = firstCellAlong(target, direction);
+      if (codes[i] == bishop || codes[i] == queen) {
+        attackers |= 1L << square64(i);
+      }
+    }
+    return attackers;
+  }
+
+  /**
+   * Returns the code of the first non-empty cell after a cell in some direction (OFF_BOARD if
+   * the ray runs off the board)
+   */
+  private byte firstAlong(int from, int direction) {
+    return codes[firstCellAlong(from, direction)];
+  }
+
+  /**
+   * Returns the first non-empty cell after a cell in some direction
+   */
+  private int firstCellAlong(int from, int direction) {
+    int i = from + direction;
+    while (codes[i] == EMPTY) {
+      i += direction;
+    }
+    return i;
+  }
+
+  private static boolean isColor(byte code, ChessColor color) {
+    return (code & 1) == (color == ChessColor.WHITE ? 0 : 1);
+  }
+
+  /**
+   * Adds every square a sliding piece can move to or capture on, walking out along each of its
+   * directions until something blocks it
+   * @param piece piece doing the sliding, on this board
+   * @param directions mailbox offsets, e.g. ROOK_DIRECTIONS
+   * @param result list to add the x,y of the squares to
+   */
+  void addSlides(ChessPiece piece, int[] directions, ArrayList<Integer[]> result) {
+    int from = index(piece.getX(), piece.getY());
+    for (int direction : directions) {
+      int i = from + direction;
+      while (codes[i] == EMPTY) {
+        result.add(new Integer[] {fileOf(i), rankOf(i)});
+        i += direction;
+      }
+      if (codes[i] != OFF_BOARD && !isColor(codes[i], piece.getColor())) {
+        result.add(new Integer[] {fileOf(i), rankOf(i)});
+      }
+    }
+  }
+
+  /**
+   * Checks whether a move just played on this board puts the other side's king in check, looking
+   * only at what the move changed: a direct check from the piece on x2,y2 (whatever it promoted
+   * to), a discovered check along the line from the king through x1,y1, and the rook of a castle
+   * and the pawn taken en passant. Assumes the other side wasn't in check before the move, which
+   * holds after any legal move.
+   * @param x1 x the piece moved from
+   * @param y1 y the piece moved from
+   * @param x2 x the piece moved to
+   * @param y2 y the piece moved to
+   * @return true if the other side's king is now in check
+   */
+  public boolean givesCheck(int x1, int y1, int x2, int y2) {
+    byte mover = codes[index(x2, y2)];
+    ChessColor color = (mover & 1) == 0 ? ChessColor.WHITE : ChessColor.BLACK;
+    King king = getKing(ChessGame.getOtherColor(color));
+    int kx = king.getX();
+    int ky = king.getY();
+
+    if (attacks(mover, x2, y2, kx, ky) || discovers(x1, y1, kx, ky, color)) {
+      return true;
+    }
+    int type = (mover - 1) / 2;
+    if (type == PAWN && x1 != x2) {
+      return discovers(x2, y1, kx, ky, color); // whatever was taken en passant uncovers
+    }
+    if (type == KING && Math.abs(x2 - x1) == 2) {
+      int rookX = x2 > x1 ? x2 - 1 : x2 + 1; // the rook lands on the square the king crossed
+      return attacks(codes[index(rookX, y2)], rookX, y2, kx, ky);
+    }
+    return false;
+  }
+
+  /**
+   * Cheap test, before a move is played, of whether it could give check: false if it surely
+   * doesn't, true if givesCheck() has to decide. Looks only at the geometry of the piece's target
+   * square and of the line from the other king through the square it leaves.
+   * @param x1 x of the piece to move
+   * @param y1 y of the piece to move
+   * @param x2 x it moves to
+   * @param y2 y it moves to
+   * @return false if the move can't give check
+   */
+  public boolean mightGiveCheck(int x1, int y1, int x2, int y2) {
+    byte mover = codes[index(x1, y1)];
+    ChessColor color = (mover & 1) == 0 ? ChessColor.WHITE : ChessColor.BLACK;
+    King king = getKing(ChessGame.getOtherColor(color));
+    int kx = king.getX();
+    int ky = king.getY();
+
+    if (AttackTables.line(kx, ky, x1, y1) != 0) {
+      return true; // leaving the line might uncover a check
+    }
+    switch ((mover - 1) / 2) {
+      case PAWN:
+        // promotions check as whatever they become; en passant might uncover along the rank
+        return AttackTables.contains(AttackTables.pawn(color, x2, y2), kx, ky) || y2 == 0
+            || y2 == Y_DIM - 1 || x1 != x2;
+      case KNIGHT:
+        return AttackTables.contains(AttackTables.knight(x2, y2), kx, ky);
+      case BISHOP:
+        return x2 != kx && y2 != ky && AttackTables.line(x2, y2, kx, ky) != 0;
+      case ROOK:
+        return (x2 == kx || y2 == ky) && AttackTables.line(x2, y2, kx, ky) != 0;
+      case QUEEN:
+        return AttackTables.line(x2, y2, kx, ky) != 0;
+      default:
+        return Math.abs(x2 - x1) == 2; // only a king that castles brings a rook along
+    }
+  }
+
+  /**
+   * Checks whether a piece with the given code on x,y attacks the king on kx,ky
+   */
+  private boolean attacks(byte code, int x, int y, int kx, int ky) {
+    ChessColor color = (code & 1) == 0 ? ChessColor.WHITE : ChessColor.BLACK;
+    switch ((code - 1) / 2) {
+      case PAWN:
+        return AttackTables.contains(AttackTables.pawn(color, x, y), kx, ky);
+      case KNIGHT:
+        return AttackTables.contains(AttackTables.knight(x, y), kx, ky);
+      case BISHOP:
+        return x != kx && y != ky && hasClearPath(x, y, kx, ky);
+      case ROOK:
+        return (x == kx || y == ky) && hasClearPath(x, y, kx, ky);
+      case QUEEN:
+        return hasClearPath(x, y, kx, ky);
+      default:
+        return false; // kings never give check
+    }
+  }
+
+  /**
+   * Checks whether a slider of the given side attacks the king on kx,ky along the line from the
+   * king through x,y, i.e. whether emptying x,y uncovered a check
+   */
+  private boolean discovers(int x, int y, int kx, int ky, ChessColor color) {
+    if (AttackTables.line(kx, ky, x, y) == 0) {
+      return false;
+    }
+    int dx = Integer.signum(x - kx);
+    int dy = Integer.signum(y - ky);
+    byte c = firstAlong(index(kx, ky), dx + 10 * dy);
+    return c == code(QUEEN, color) || c == code(dx == 0 || dy == 0 ? ROOK : BISHOP, color);
+  }
+
   /**
    * Finds the king on this board of the given color
    * @param color color of the king being searched for
    * @return Reference to the king object with the given color if found
    */
   public King getKing(ChessColor color) {
-    ChessPiece c;
-    for (int x = 0; x < X_DIM; x++) {
-      for (int y = 0; y < Y_DIM; y++) {
-        c = this.getSquare(x, y);
-        if (c instanceof King && c.getColor() == color) {
-          return (King) c;
-        }
+    byte king = code(KING, color);
+    int side = side(color);
+    for (int i = 0; i < pieceCounts[side]; i++) {
+      if (codes[pieceCells[side][i]] == king) {
+        return (King) squares[pieceCells[side][i]];
       }
     }
     throw new IllegalStateException("Each color must have a king present on the board");
@@ -234,25 +801,7 @@ public class ChessBoard {
       return false;
     }
 
-    // now check if the path between the two points is clear
-    // we're excluding x1,y1 because that would be occupied by the current piece
-    boolean pathIsClear = true; // default to true, switch to false if we run into another piece
-    int xStart;
-    int xEnd;
-    // we want this to work for both canMove() and canCapture() so we're excluding the squares
-    // themselves and just checking what's between them
-    xStart = Math.min(x1, x2) + 1;
-    xEnd = Math.max(x1, x2) - 1;
-
-    // check that every square from x1,y1 to x2,y2 is clear
-    for (int xLoop = xStart; xLoop <= xEnd; xLoop++) {
-      if (this.getSquare(xLoop, y1) != null) { // found a piece blocking the way
-        pathIsClear = false;
-        break;
-      }
-    }
-
-    return pathIsClear;
+    return (AttackTables.between(x1, y1, x2, y2) & occupied) == 0;
   }
 
   /**
@@ -274,23 +823,7 @@ public class ChessBoard {
       return false;
     }
 
-    // check if path between y1 and y2 (excluding endpoints) is clear
-    boolean pathIsClear = true;
-    int yStart;
-    int yEnd;
-    // we want this to work for both canMove() and canCapture() so we're excluding the squares
-    // themselves and just checking what's between them
-    yStart = Math.min(y1, y2) + 1;
-    yEnd = Math.max(y1, y2) - 1;
-
-    // check that every square from this to y is clear
-    for (int yLoop = yStart; yLoop <= yEnd; yLoop++) {
-      if (this.getSquare(x1, yLoop) != null) { // found a piece blocking the way
-        pathIsClear = false;
-        break;
-      }
-    }
-    return pathIsClear;
+    return (AttackTables.between(x1, y1, x2, y2) & occupied) == 0;
   }
 
   /**
@@ -313,43 +846,26 @@ public class ChessBoard {
     if (Math.abs(x2 - x1) != Math.abs(y2 - y1) || x1 == x2) {
       return false;
     }
-    
-    int xStart;
-    int xEnd;
-    int yStart;
-    int dx = x2 - x1;
-    int dy = y2 - y1;
-    int slope = dy / dx; // should only be 1 or -1
-    
-    
-    xStart = Math.min(x1, x2);
-    xEnd = Math.max(x1, x2);
-    if (x2 < x1) {
-      yStart = y2;
-    }
-    else {
-      yStart = y1;
-    }
-    
-    int yLoop;
-    for (int xLoop = xStart + 1; xLoop < xEnd; xLoop++) {
-      /*
-       * 5,0 -> 1,4
-       * x  y
-       * (1, 4)
-       *  2  3
-       *  3  2
-       *  4  1
-       * (5, 0)
-       */
-      yLoop = (slope * (xLoop-xStart)) + yStart; // y = mx + b
-        if (this.getSquare(xLoop, yLoop) != null) { // found a piece blocking the way
-          return false;
-        }
-    }
-    
-    return true;
 
+    return (AttackTables.between(x1, y1, x2, y2) & occupied) == 0;
+  }
+
+  /**
+   * Checks whether x1,y1 and x2,y2 are different squares on a shared rank, file or diagonal with
+   * nothing between them (EXCLUDING endpoints), i.e. whether a queen could go from one to the other
+   * on an otherwise empty board and nothing is in the way here
+   * @param x1 x of square 1
+   * @param y1 y of square 1
+   * @param x2 x of square 2
+   * @param y2 y of square 2
+   * @return true if there is a clear straight path, false if not
+   */
+  public boolean hasClearPath(int x1, int y1, int x2, int y2) {
+    if (!ChessBoard.isOnBoard(x1, y1) || !ChessBoard.isOnBoard(x2, y2)) {
+      return false;
+    }
+    return AttackTables.line(x1, y1, x2, y2) != 0
+        && (AttackTables.between(x1, y1, x2, y2) & occupied) == 0;
   }
 
 }
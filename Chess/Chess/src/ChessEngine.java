@@ -0,0 +1,20 @@
+/**
+ * Something that picks moves for whoever's turn it is in a ChessGame. Implementations don't need
+ * to be thread-safe; tournaments create one engine per worker thread.
+ *
+ */
+public interface ChessEngine {
+
+  /**
+   * Returns a short name for reports
+   */
+  String getName();
+
+  /**
+   * Picks a move for the player whose turn it is. Must not modify the game.
+   * @param game game to move in (not over, and not waiting for a promotion)
+   * @return packed move (see ChessMove)
+   */
+  int chooseMove(ChessGame game);
+
+}
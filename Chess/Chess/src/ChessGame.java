@@ -1,4 +1,7 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * Main data model for the whole chess game. Contains game-level information like whose turn it
@@ -8,6 +11,43 @@ import java.util.ArrayList;
  *
  */
 public class ChessGame {
+
+  /**
+   * Parts of the legal move list getLegalMoves(MoveKind) can generate on their own. Only the moves
+   * of the kind asked for are tried for legality, which is where generating moves spends its time.
+   */
+  public enum MoveKind {
+    /** captures (en passant included) and promotions, e.g. for a quiescence search */
+    CAPTURES,
+    /** every move CAPTURES leaves out, castling included */
+    QUIET,
+    /** when in check, every legal move: king moves, captures of the checker and blocks; when
+     * not in check, none */
+    EVASIONS,
+    /** quiet moves that give check */
+    QUIET_CHECKS
+  }
+
+  /**
+   * Everything needed to take back one turn: the move itself plus whatever state it overwrote
+   */
+  private static class TurnRecord {
+    private int move; // packed (see ChessMove), including the promotion choice once it's made
+    private ChessPiece moved;
+    private int movedPrevX;
+    private int movedPrevY;
+    private boolean movedHadMoved;
+    private ChessPiece captured; // null if nothing was captured
+    private int capturedPrevX;
+    private int capturedPrevY;
+    private Rook castledRook; // null if this wasn't castling
+    private int rookPrevX;
+    private ChessPiece promotedTo; // null if no pawn was promoted
+    private ChessPiece lastActive;
+    private boolean moverWasInCheck;
+    private boolean opponentWasInCheck;
+  }
+
   private ChessPlayer white;
   private ChessPlayer black;
   private ChessBoard board;
@@ -16,6 +56,16 @@ public class ChessGame {
   private ChessPlayer winner;
   private boolean isStalemate = false;
   private Pawn pawnToPromote;
+  private OpeningBook openingBook;
+  private Tablebase[] tablebases;
+  private LegalMoveCache legalMoveCache;
+  private ArrayDeque<TurnRecord> undoStack = new ArrayDeque<TurnRecord>();
+  private ArrayDeque<Integer> redoMoves = new ArrayDeque<Integer>();
+  private boolean redoing = false;
+  private long gameId = -1;
+  // legal moves of the player whose turn it is, worked out once a turn (null until needed). Never
+  // handed out directly, so it can be shared with copies of the game.
+  private int[] legalMoves;
 
 
   // deep copy of the real board used for testing the legality of moves with respect to check
@@ -27,39 +77,68 @@ public class ChessGame {
    * @param p2Black name of the player on black (goes second)
    */
   public ChessGame(String p1White, String p2Black) {
-    white = new ChessPlayer(p1White, ChessColor.WHITE);
-    black = new ChessPlayer(p2Black, ChessColor.BLACK);
     board = new ChessBoard(this);
+    white = new ChessPlayer(p1White, ChessColor.WHITE, board);
+    black = new ChessPlayer(p2Black, ChessColor.BLACK, board);
     whoseTurn = white; // white goes first
     notWhoseTurn = black;
 
     shadow = new ChessBoard(this);
-
-    giveMaterialToPlayers();
   }
 
   /**
-   * Loops through a JUST-INITIALIZED board and gives material to each player
+   * Creates a ChessGame starting from a given position (see PackedPosition.toGame())
+   * @param p1White name of the player on white
+   * @param p2Black name of the player on black
+   * @param position position to start from
+   * @throws IllegalArgumentException if either side doesn't have exactly one king
    */
-  private void giveMaterialToPlayers() {
-    int[] rows = new int[] {0, 1, 6, 7};
-    ChessPiece c;
-    ChessPlayer player;
+  ChessGame(String p1White, String p2Black, PackedPosition position) {
+    board = new ChessBoard(this, position);
+    shadow = new ChessBoard(this, position);
+    white = new ChessPlayer(p1White, ChessColor.WHITE, board);
+    black = new ChessPlayer(p2Black, ChessColor.BLACK, board);
+    whoseTurn = position.getSideToMove() == ChessColor.WHITE ? white : black;
+    notWhoseTurn = whoseTurn == white ? black : white;
+    // there's no move to go by, so look for checks the long way
+    King king = board.getKing(whoseTurn.getColor());
+    updateCheckAndGameOver(board.isThreatened(king.getX(), king.getY(), notWhoseTurn.getColor()));
+  }
 
-    for (int y : rows) {
-      for (int x = 0; x < ChessBoard.X_DIM ; x++) {
-        c = board.getSquare(x, y);
-        if (c == null) { continue; } // from before I'd implemented all the pieces
+  /**
+   * Creates a deep copy of another game, with its own boards and pieces. The copy starts with an
+   * empty undo/redo history.
+   * @param source game to copy
+   */
+  private ChessGame(ChessGame source) {
+    board = source.board.getDeepCopy(this);
+    shadow = source.board.getDeepCopy(this); // the shadow always matches the board between turns
+    white = new ChessPlayer(source.white.getName(), ChessColor.WHITE, board);
+    black = new ChessPlayer(source.black.getName(), ChessColor.BLACK, board);
 
-        if (x < 2) { // crude but effective
-          player = white;
-        }
-        else {
-          player = black;
-        }
-        player.giveMaterial(c);
-      }
+    whoseTurn = source.whoseTurn == source.white ? white : black;
+    notWhoseTurn = whoseTurn == white ? black : white;
+    if (source.winner != null) {
+      winner = source.winner == source.white ? white : black;
     }
+    isStalemate = source.isStalemate;
+    if (source.pawnToPromote != null) {
+      pawnToPromote = (Pawn) board.getSquare(source.pawnToPromote.getX(),
+          source.pawnToPromote.getY());
+    }
+    openingBook = source.openingBook;
+    tablebases = source.tablebases;
+    legalMoveCache = source.legalMoveCache;
+    gameId = source.gameId;
+    legalMoves = source.legalMoves;
+  }
+
+  /**
+   * Returns a deep copy of this game that can be played on independently
+   * @return a deep copy of this game
+   */
+  public ChessGame getDeepCopy() {
+    return new ChessGame(this);
   }
 
   /**
@@ -108,6 +187,29 @@ public class ChessGame {
    * @return true if the move was legal, false if not
    */
   public boolean nextTurn(int x1, int y1, int x2, int y2) {
+    if (!GameMetrics.isEnabled() && !GameEvents.TURN.isEnabled()) {
+      return doNextTurn(x1, y1, x2, y2);
+    }
+    GameEvents.Turn event = new GameEvents.Turn();
+    long hash = event.isEnabled() ? getPositionHash() : 0; // the move is about to change it
+    long start = System.nanoTime();
+    event.begin();
+    boolean legal = doNextTurn(x1, y1, x2, y2);
+    event.end();
+    if (GameMetrics.isEnabled()) {
+      GameMetrics.record(GameMetrics.NEXT_TURN, start);
+    }
+    if (event.shouldCommit()) {
+      event.gameId = gameId;
+      event.move = ChessMove.toString(ChessMove.of(x1, y1, x2, y2));
+      event.positionHash = hash;
+      event.legal = legal;
+      event.commit();
+    }
+    return legal;
+  }
+
+  private boolean doNextTurn(int x1, int y1, int x2, int y2) {
     if (isGameOver()) {
       String msg;
       if (winner != null) {
@@ -132,10 +234,16 @@ public class ChessGame {
       return false;
     }
 
-    // attempt to move the piece
+    // note what the move will overwrite, then attempt it
+    TurnRecord record = recordTurn(pieceToMove, x1, y1, x2, y2);
     if (!tryMove(x1, y1, x2, y2)) {
       return false;
     }
+    legalMoves = null;
+    undoStack.push(record);
+    if (!redoing) {
+      redoMoves.clear(); // a new move replaces whatever had been taken back
+    }
     
     // check if that last move was a pawn promotion
     if (needsPromotion(pieceToMove)) {
@@ -149,20 +257,331 @@ public class ChessGame {
     return true;
   }
   
+  /**
+   * Captures the state a move is about to change, so the move can be taken back later
+   */
+  private TurnRecord recordTurn(ChessPiece pieceToMove, int x1, int y1, int x2, int y2) {
+    TurnRecord r = new TurnRecord();
+    r.move = ChessMove.of(x1, y1, x2, y2);
+    r.moved = pieceToMove;
+    r.movedPrevX = pieceToMove.getPrevX();
+    r.movedPrevY = pieceToMove.getPrevY();
+    r.movedHadMoved = getHasMovedOrCaptured(pieceToMove);
+
+    r.captured = board.getSquare(x2, y2);
+    if (r.captured == null && pieceToMove instanceof Pawn && x1 != x2) {
+      r.captured = board.getSquare(x2, y1); // en passant
+    }
+    if (r.captured != null) {
+      r.capturedPrevX = r.captured.getPrevX();
+      r.capturedPrevY = r.captured.getPrevY();
+    }
+    if (pieceToMove instanceof King && Math.abs(x2 - x1) == 2) {
+      ChessPiece rook = board.getSquare(x2 > x1 ? 7 : 0, y1);
+      if (rook instanceof Rook) {
+        r.castledRook = (Rook) rook;
+        r.rookPrevX = rook.getPrevX();
+      }
+    }
+
+    r.lastActive = board.lastActivePiece;
+    r.moverWasInCheck = board.getKing(whoseTurn.getColor()).getIsInCheck();
+    r.opponentWasInCheck = board.getKing(notWhoseTurn.getColor()).getIsInCheck();
+    return r;
+  }
+
+  /**
+   * Takes back the last turn (or the half-finished turn waiting on a pawn promotion). Undone turns
+   * can be replayed with redo() until a different move is played.
+   * @return true if a turn was taken back, false if there was nothing to undo
+   */
+  public boolean undo() {
+    if (undoStack.isEmpty()) {
+      return false;
+    }
+    TurnRecord r = undoStack.pop();
+    int x1 = ChessMove.getFromX(r.move);
+    int y1 = ChessMove.getFromY(r.move);
+    int x2 = ChessMove.getToX(r.move);
+    int y2 = ChessMove.getToY(r.move);
+
+    if (pawnToPromote == null) {
+      toggleWhoseTurn(); // the turn was finished, so it's back to the mover
+    }
+    winner = null;
+    isStalemate = false;
+    pawnToPromote = null;
+    legalMoves = null;
+
+    // put the moved piece back
+    board.setSquare(x2, y2, null);
+    board.setSquare(x1, y1, r.moved);
+    r.moved.setX(x1);
+    r.moved.setY(y1);
+    r.moved.setPrevX(r.movedPrevX);
+    r.moved.setPrevY(r.movedPrevY);
+    setHasMovedOrCaptured(r.moved, r.movedHadMoved);
+
+    if (r.castledRook != null) {
+      int rookHome = x2 > x1 ? 7 : 0;
+      board.setSquare(r.castledRook.getX(), y1, null);
+      board.setSquare(rookHome, y1, r.castledRook);
+      resyncShadowSquare(r.castledRook.getX(), y1);
+      r.castledRook.setX(rookHome);
+      r.castledRook.setPrevX(r.rookPrevX);
+      r.castledRook.setHasMovedOrCaptured(false); // it couldn't have castled otherwise
+      resyncShadowSquare(rookHome, y1);
+    }
+
+    if (r.captured != null) {
+      r.captured.unmarkAsCaptured(r.capturedPrevX, r.capturedPrevY);
+      board.setSquare(r.captured.getX(), r.captured.getY(), r.captured);
+      resyncShadowSquare(r.captured.getX(), r.captured.getY());
+    }
+
+    board.lastActivePiece = r.lastActive;
+    board.getKing(whoseTurn.getColor()).setIsInCheck(r.moverWasInCheck);
+    board.getKing(notWhoseTurn.getColor()).setIsInCheck(r.opponentWasInCheck);
+
+    // the shadow matched the board before the undo, so only the squares the undo touched need
+    // copying over: the move's two squares, the castled rook's and the captured piece's (done
+    // above), and both kings, whose check flags changed
+    resyncShadowSquare(x1, y1);
+    resyncShadowSquare(x2, y2);
+    ChessPiece king = board.getKing(whoseTurn.getColor());
+    resyncShadowSquare(king.getX(), king.getY());
+    king = board.getKing(notWhoseTurn.getColor());
+    resyncShadowSquare(king.getX(), king.getY());
+    shadow.lastActivePiece = r.lastActive == null ? null
+        : shadow.getSquare(r.lastActive.getX(), r.lastActive.getY());
+
+    redoMoves.push(r.move);
+    return true;
+  }
+
+  /**
+   * Replays the most recently undone turn
+   * @return true if a turn was replayed, false if there was nothing to redo
+   */
+  public boolean redo() {
+    if (redoMoves.isEmpty()) {
+      return false;
+    }
+    int move = redoMoves.pop();
+    redoing = true;
+    try {
+      if (ChessMove.getPromotion(move) == ChessMove.PROMO_NONE) {
+        // also covers a pawn undone while waiting on its promotion, which waits again
+        return nextTurn(ChessMove.getFromX(move), ChessMove.getFromY(move),
+            ChessMove.getToX(move), ChessMove.getToY(move));
+      }
+      return ChessMove.apply(this, move);
+    }
+    finally {
+      redoing = false;
+    }
+  }
+
+  /**
+   * Plays a whole sequence of moves, e.g. to rebuild a game from an archive or journal. Pawns
+   * promote to whatever the moves say, and to a queen if they don't say (like ChessMove.apply()).
+   *
+   * With verify, every move goes through nextTurn() and gets the same checks as a move from a
+   * player. Without it, the moves are trusted to be legal: the pieces only check that they can
+   * make the move at all, nobody checks the mover's king is left safe, the shadow board is only
+   * rebuilt once at the end, and checkmate and stalemate are only looked for in the last position.
+   * That's far cheaper, but a move that leaves the king in check or plays on after the game ended
+   * goes unnoticed, so only leave verify off for moves this program already accepted once.
+   * Either way the moves can be undone one by one afterwards, and no Turn events are recorded for
+   * trusted moves.
+   * @param moves packed moves (see ChessMove), oldest first
+   * @param verify true to check every move fully, false to trust them
+   * @return true if every move was played, false if one couldn't be, in which case the game is
+   * left after the moves before it
+   * @throws IllegalStateException if the game is already over or waiting on a pawn promotion
+   */
+  public boolean replay(int[] moves, boolean verify) {
+    if (verify) {
+      for (int m : moves) {
+        if (!ChessMove.apply(this, m)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (isGameOver() || pawnToPromote != null) {
+      throw new IllegalStateException("Can't replay moves into a game that's over or waiting on "
+          + "a promotion");
+    }
+
+    boolean played = true;
+    for (int m : moves) {
+      if (!playTrusted(m)) {
+        played = false;
+        break;
+      }
+    }
+
+    // now bring the shadow and the game over state up to date, once
+    shadow = board.getDeepCopy(this);
+    updateCheckAndGameOver(board.getKing(whoseTurn.getColor()).getIsInCheck());
+    return played;
+  }
+
+  /**
+   * Plays one move for replay() without checking it's legal, keeping only the check flags up to
+   * date (castling needs them)
+   * @return false if the piece can't make the move at all
+   */
+  private boolean playTrusted(int move) {
+    int x1 = ChessMove.getFromX(move);
+    int y1 = ChessMove.getFromY(move);
+    int x2 = ChessMove.getToX(move);
+    int y2 = ChessMove.getToY(move);
+    ChessPiece pieceToMove = board.getSquare(x1, y1);
+    if (pieceToMove == null || pieceToMove.getColor() != whoseTurn.getColor()) {
+      return false;
+    }
+
+    TurnRecord record = recordTurn(pieceToMove, x1, y1, x2, y2);
+    if (pieceToMove.canMove(x2, y2)) {
+      pieceToMove.move(x2, y2);
+    }
+    else if (pieceToMove.canCapture(x2, y2)) {
+      pieceToMove.capture(x2, y2);
+    }
+    else {
+      return false;
+    }
+    legalMoves = null;
+    undoStack.push(record);
+    if (!redoing) {
+      redoMoves.clear();
+    }
+    if (needsPromotion(pieceToMove)) {
+      pawnToPromote = (Pawn) pieceToMove;
+      int promo = ChessMove.getPromotion(move);
+      placePromotion(promo == ChessMove.PROMO_NONE ? "Q" : ChessMove.promotionCode(promo));
+    }
+
+    boolean check = board.givesCheck(x1, y1, x2, y2);
+    board.getKing(whoseTurn.getColor()).setIsInCheck(false);
+    toggleWhoseTurn();
+    board.getKing(whoseTurn.getColor()).setIsInCheck(check);
+    return true;
+  }
+
+  /**
+   * Returns the moves played so far, oldest first, not counting any that were undone
+   * @return packed moves (see ChessMove)
+   */
+  public int[] getMoveHistory() {
+    int[] moves = new int[undoStack.size()];
+    int i = moves.length;
+    for (TurnRecord r : undoStack) { // the stack iterates newest first
+      moves[--i] = r.move;
+    }
+    return moves;
+  }
+
+  /**
+   * Replaces the shadow's copy of one square with a fresh copy of the main board's
+   */
+  private void resyncShadowSquare(int x, int y) {
+    ChessPiece c = board.getSquare(x, y);
+    shadow.setSquare(x, y, c == null ? null : c.getDeepCopy(shadow));
+  }
+
+  private static boolean getHasMovedOrCaptured(ChessPiece c) {
+    if (c instanceof Pawn) {
+      return ((Pawn) c).getHasMovedOrCaptured();
+    }
+    if (c instanceof King) {
+      return ((King) c).getHasMovedOrCaptured();
+    }
+    if (c instanceof Rook) {
+      return ((Rook) c).getHasMovedOrCaptured();
+    }
+    return false;
+  }
+
+  private static void setHasMovedOrCaptured(ChessPiece c, boolean hasMovedOrCaptured) {
+    if (c instanceof Pawn) {
+      ((Pawn) c).setHasMovedOrCaptured(hasMovedOrCaptured);
+    }
+    else if (c instanceof King) {
+      ((King) c).setHasMovedOrCaptured(hasMovedOrCaptured);
+    }
+    else if (c instanceof Rook) {
+      ((Rook) c).setHasMovedOrCaptured(hasMovedOrCaptured);
+    }
+  }
+
   /**
    * Concludes the person's turn after checking for/resolving a pawn promotion hold
    */
   private void finishTurn() {
-    King nextKing;
-    
+    // only what the move changed can give check, so work it out from the move
+    int move = undoStack.peek().move;
+    boolean check = board.givesCheck(ChessMove.getFromX(move), ChessMove.getFromY(move),
+        ChessMove.getToX(move), ChessMove.getToY(move));
     toggleWhoseTurn();
+    updateCheckAndGameOver(check);
+    
+    /* 
+     * TODO check for specific stalemate scenarios
+     * 1. Just kings
+     * 2. Just kings and a bishop
+     * 3. Three move rule?
+     * 4. Others?
+     */
+    
+  }
+
+  /**
+   * Updates check for the player whose turn it is, and whether they've been mated or stalemated
+   * @param inCheck whether the player whose turn it is is in check
+   */
+  private void updateCheckAndGameOver(boolean inCheck) {
+    if (!GameMetrics.isEnabled() && !GameEvents.GAME_OVER_CHECK.isEnabled()) {
+      doUpdateCheckAndGameOver(inCheck);
+      return;
+    }
+    GameEvents.GameOverCheck event = new GameEvents.GameOverCheck();
+    long start = System.nanoTime();
+    event.begin();
+    doUpdateCheckAndGameOver(inCheck);
+    event.end();
+    if (GameMetrics.isEnabled()) {
+      GameMetrics.record(GameMetrics.CHECK_AND_MATE_DETECTION, start);
+    }
+    if (event.shouldCommit()) {
+      event.gameId = gameId;
+      event.positionHash = getPositionHash();
+      if (winner != null) {
+        event.outcome = "checkmate";
+      }
+      else if (isStalemate) {
+        event.outcome = "stalemate";
+      }
+      else {
+        event.outcome = board.getKing(whoseTurn.getColor()).getIsInCheck() ? "check" : "none";
+      }
+      event.commit();
+    }
+  }
+
+  private void doUpdateCheckAndGameOver(boolean inCheck) {
+    King nextKing;
 
     // update check for the next player
     nextKing = board.getKing(whoseTurn.getColor());
-    nextKing.setIsInCheck(board.isThreatened(nextKing.getX(), nextKing.getY(),
-        notWhoseTurn.getColor()));
+    nextKing.setIsInCheck(inCheck);
+    // syncShadow() doesn't compare check flags, and a stale one blocks castling on the shadow
+    shadow.getKing(whoseTurn.getColor()).setIsInCheck(nextKing.getIsInCheck());
 
-    // if the next player has no legal moves, check for checkmate or stalemate
+    // if the next player has no legal moves, check for checkmate or stalemate. Finding one legal
+    // move is far cheaper than listing them all, so getLegalMoves() lists them only when asked.
     if (!whoseTurnHasLegalMove()) {
       // if they're in check, that's checkmate
       if (nextKing.getIsInCheck()) {
@@ -173,15 +592,6 @@ public class ChessGame {
         isStalemate = true;
       }
     }
-    
-    /* 
-     * TODO check for specific stalemate scenarios
-     * 1. Just kings
-     * 2. Just kings and a bishop
-     * 3. Three move rule?
-     * 4. Others?
-     */
-    
   }
 
   /**
@@ -189,29 +599,25 @@ public class ChessGame {
    * is any move that results in the player not being in check.
    * @return true if the player has at least one legal move, false if not
    */
-  private boolean whoseTurnHasLegalMove() {
+  boolean whoseTurnHasLegalMove() { // package-private for the benchmarks
     ArrayList<Integer[]> possibleMoves;
     ChessPiece c;
 
     // loop through all this player's pieces and see if any of them can move in a way that
-    // ends check
-    for (int x = 0; x < ChessBoard.X_DIM; x++) {
-      for (int y = 0; y < ChessBoard.Y_DIM; y++) {
-        c = board.getSquare(x, y);
-
-        // found one of the player's pieces
-        if (c != null && c.getColor() == whoseTurn.getColor()) {
-          possibleMoves = c.getPossibleMovesOrCaptures();
+    // ends check (the moves are tried on the shadow, so the board's piece list holds still).
+    // Backwards, because the king is usually near the front of the list and its moves cost the
+    // most to try.
+    for (int i = board.getPieceCount(whoseTurn.getColor()) - 1; i >= 0; i--) {
+      c = board.getPiece(whoseTurn.getColor(), i);
+      possibleMoves = c.getPossibleMovesOrCaptures();
 
-          // loop through every potential move
-          for (Integer[] move : possibleMoves) {
+      // loop through every potential move
+      for (Integer[] move : possibleMoves) {
 
-            if (tryMoveOnShadow(c.getX(), c.getY(), move[0], move[1])) {
-              // if the move is legal (wrt check), undo the move and return true
-              syncShadow();
-              return true;
-            }
-          }
+        if (tryMoveOnShadow(c.getX(), c.getY(), move[0], move[1])) {
+          // if the move is legal (wrt check), undo the move and return true
+          syncShadow();
+          return true;
         }
       }
     }
@@ -220,6 +626,187 @@ public class ChessGame {
     return false;
   }
 
+  /**
+   * Lists every legal move for the player whose turn it is. Pawn moves to the back row are listed
+   * once per promotion choice. The list is worked out once a turn, so asking again is cheap.
+   * @return packed moves (see ChessMove), in no particular order; empty if the game is over or a
+   * pawn is waiting to be promoted
+   */
+  public int[] getLegalMoves() {
+    if (isGameOver() || pawnToPromote != null) {
+      return new int[0];
+    }
+    if (legalMoves == null) {
+      legalMoves = lookUpLegalMoves();
+    }
+    return legalMoves.clone();
+  }
+
+  /**
+   * Lists the legal moves of one kind for the player whose turn it is, without generating the
+   * others. Promotions are listed once per choice, like getLegalMoves().
+   * @param kind which moves to list
+   * @return packed moves (see ChessMove); empty if the game is over or a pawn is waiting to be
+   * promoted
+   */
+  public int[] getLegalMoves(MoveKind kind) {
+    if (isGameOver() || pawnToPromote != null) {
+      return new int[0];
+    }
+    if (legalMoves == null || kind == MoveKind.QUIET_CHECKS) {
+      return computeLegalMoves(kind);
+    }
+    // already listed this turn, so picking the moves out of the list is cheaper
+    int[] moves = legalMoves.clone();
+    int n = 0;
+    boolean inCheck = board.getKing(whoseTurn.getColor()).getIsInCheck();
+    for (int m : moves) {
+      boolean tactical = isCaptureOrPromotion(board.getSquare(ChessMove.getFromX(m),
+          ChessMove.getFromY(m)), ChessMove.getFromX(m), ChessMove.getToX(m), ChessMove.getToY(m));
+      if (kind == MoveKind.EVASIONS ? inCheck : tactical == (kind == MoveKind.CAPTURES)) {
+        moves[n++] = m;
+      }
+    }
+    return Arrays.copyOf(moves, n);
+  }
+
+  /**
+   * Gets the legal moves from the shared cache if there is one, generating and caching them if
+   * they aren't there yet
+   */
+  private int[] lookUpLegalMoves() {
+    if (legalMoveCache == null) {
+      return computeLegalMoves(null);
+    }
+    PackedPosition position = getPackedPosition();
+    int[] moves = legalMoveCache.get(position);
+    if (moves == null) {
+      moves = computeLegalMoves(null);
+      legalMoveCache.put(position, moves);
+    }
+    return moves;
+  }
+
+  /**
+   * Lists the legal moves of the piece on x,y, e.g. to highlight where it can go
+   * @param x x of the piece
+   * @param y y of the piece
+   * @return packed moves (see ChessMove); empty if there's no piece of the player whose turn it
+   * is on x,y
+   */
+  public int[] getLegalMoves(int x, int y) {
+    int[] moves = getLegalMoves();
+    int n = 0;
+    for (int m : moves) {
+      if (ChessMove.getFromX(m) == x && ChessMove.getFromY(m) == y) {
+        moves[n++] = m;
+      }
+    }
+    return Arrays.copyOf(moves, n);
+  }
+
+  /**
+   * Lists the legal moves of the piece on a square
+   * @param square square in algebraic notation, e.g. "e2"
+   * @return packed moves (see ChessMove)
+   */
+  public int[] getLegalMoves(String square) {
+    int[] coords = notationToCoordinates(square);
+    return getLegalMoves(coords[0], coords[1]);
+  }
+
+  /**
+   * Generates the legal moves of the player whose turn it is
+   * @param kind which moves to generate, or null for all of them
+   */
+  private int[] computeLegalMoves(MoveKind kind) {
+    int[] moves = new int[32];
+    int n = 0;
+    ChessPiece c;
+
+    // to get out of check, the only non-king moves worth trying take the checker or block it,
+    // and in double check there are none
+    long evasionTargets = 0;
+    if (kind == MoveKind.EVASIONS) {
+      King king = board.getKing(whoseTurn.getColor());
+      long checkers = board.getAttackers(king.getX(), king.getY(), notWhoseTurn.getColor());
+      if (checkers == 0) {
+        return new int[0];
+      }
+      if (Long.bitCount(checkers) == 1) {
+        int sq = Long.numberOfTrailingZeros(checkers);
+        evasionTargets = checkers | AttackTables.between(king.getX(), king.getY(), sq % 8, sq / 8);
+      }
+    }
+
+    for (int i = 0; i < board.getPieceCount(whoseTurn.getColor()); i++) {
+      c = board.getPiece(whoseTurn.getColor(), i);
+      int x = c.getX();
+      int y = c.getY();
+
+      for (Integer[] move : c.getPossibleMovesOrCaptures()) {
+        if (kind != null && !isCandidate(kind, c, x, y, move[0], move[1], evasionTargets)) {
+          continue; // not the kind asked for, so don't pay for trying it
+        }
+        if (!tryMoveOnShadow(x, y, move[0], move[1])) {
+          continue; // tryMoveOnShadow() already restored the shadow
+        }
+        boolean wanted = kind != MoveKind.QUIET_CHECKS || shadow.givesCheck(x, y, move[0], move[1]);
+        syncShadow();
+        if (!wanted) {
+          continue;
+        }
+
+        if (n + 4 > moves.length) {
+          moves = Arrays.copyOf(moves, moves.length * 2);
+        }
+        boolean promotes = c instanceof Pawn && (move[1] == 0 || move[1] == ChessBoard.Y_DIM - 1);
+        if (promotes) {
+          for (int promo = ChessMove.PROMO_QUEEN; promo >= ChessMove.PROMO_KNIGHT; promo--) {
+            moves[n++] = ChessMove.of(x, y, move[0], move[1], promo);
+          }
+        }
+        else {
+          moves[n++] = ChessMove.of(x, y, move[0], move[1]);
+        }
+      }
+    }
+
+    return Arrays.copyOf(moves, n);
+  }
+
+  /**
+   * Checks, before trying a possible move for legality, whether it can be of the given kind
+   * @param evasionTargets squares a piece other than the king can stop the check on (see
+   * computeLegalMoves())
+   */
+  private boolean isCandidate(MoveKind kind, ChessPiece c, int x1, int y1, int x2, int y2,
+      long evasionTargets) {
+    switch (kind) {
+      case CAPTURES:
+        return isCaptureOrPromotion(c, x1, x2, y2);
+      case QUIET:
+        return !isCaptureOrPromotion(c, x1, x2, y2);
+      case QUIET_CHECKS:
+        return !isCaptureOrPromotion(c, x1, x2, y2) && board.mightGiveCheck(x1, y1, x2, y2);
+      default:
+        // en passant stops a check by a pawn without landing on it
+        return c instanceof King || AttackTables.contains(evasionTargets, x2, y2)
+            || (c instanceof Pawn && x1 != x2 && AttackTables.contains(evasionTargets, x2, y1));
+    }
+  }
+
+  /**
+   * Checks whether a possible move of piece c from file x1 to x2,y2 captures (en passant counts)
+   * or promotes
+   */
+  private boolean isCaptureOrPromotion(ChessPiece c, int x1, int x2, int y2) {
+    if (board.getSquare(x2, y2) != null) {
+      return true;
+    }
+    return c instanceof Pawn && (x1 != x2 || y2 == 0 || y2 == ChessBoard.Y_DIM - 1);
+  }
+
   /**
    * Attempts to move the piece at x1,y1 to x2,y2. Here, move and capture are used interchangeably.
    * @param x1 x of piece to move
@@ -241,6 +828,7 @@ public class ChessGame {
 
     // if we got this far we're not in check anymore (or we never were)
     board.getKing(whoseTurn.getColor()).setIsInCheck(false);
+    shadow.getKing(whoseTurn.getColor()).setIsInCheck(false);
 
     // do the move for real
     if (pieceToMove.canMove(x2, y2)) {
@@ -265,6 +853,28 @@ public class ChessGame {
    * @return true if the move is possible without leading to check, false if not
    */
   private boolean tryMoveOnShadow(int x1, int y1, int x2, int y2) {
+    if (!GameMetrics.isEnabled() && !GameEvents.LEGALITY_CHECK.isEnabled()) {
+      return doTryMoveOnShadow(x1, y1, x2, y2);
+    }
+    GameEvents.LegalityCheck event = new GameEvents.LegalityCheck();
+    long start = System.nanoTime();
+    event.begin();
+    boolean legal = doTryMoveOnShadow(x1, y1, x2, y2);
+    event.end();
+    if (GameMetrics.isEnabled()) {
+      GameMetrics.record(GameMetrics.TRY_MOVE_ON_SHADOW, start);
+    }
+    if (event.shouldCommit()) {
+      event.gameId = gameId;
+      event.move = ChessMove.toString(ChessMove.of(x1, y1, x2, y2));
+      event.positionHash = getPositionHash(); // only the shadow board was touched
+      event.legal = legal;
+      event.commit();
+    }
+    return legal;
+  }
+
+  private boolean doTryMoveOnShadow(int x1, int y1, int x2, int y2) {
     ChessPiece shadowPieceToMove = shadow.getSquare(x1, y1);
 
     // try this move on the shadow board and see if we're in check afterwards
@@ -294,7 +904,17 @@ public class ChessGame {
   /**
    * Resets the shadow board based on the state of the main board
    */
-  private void syncShadow() {
+  void syncShadow() { // package-private for the benchmarks
+    if (!GameMetrics.isEnabled()) {
+      doSyncShadow();
+      return;
+    }
+    long start = System.nanoTime();
+    doSyncShadow();
+    GameMetrics.record(GameMetrics.SYNC_SHADOW, start);
+  }
+
+  private void doSyncShadow() {
     ChessPiece mainSquare;
     ChessPiece shadowSquare;
 
@@ -326,6 +946,10 @@ public class ChessGame {
 
     // reset lastActivePiece
     // point to the same coordinates of the main board's last active piece
+    if (board.lastActivePiece == null) { // nothing has moved yet
+      shadow.lastActivePiece = null;
+      return;
+    }
     int xLastActive = board.lastActivePiece.getX();
     int yLastActive = board.lastActivePiece.getY();
     shadow.lastActivePiece = shadow.getSquare(xLastActive, yLastActive);
@@ -427,6 +1051,135 @@ public class ChessGame {
     return board;
   }
 
+  /**
+   * Returns the id set with setGameId(), or -1
+   */
+  public long getGameId() {
+    return gameId;
+  }
+
+  /**
+   * Sets the id this game is known by, e.g. in a GameSessionManager. It's only used to label JFR
+   * events (see GameEvents), and copies of the game keep it.
+   * @param gameId the id
+   */
+  public void setGameId(long gameId) {
+    this.gameId = gameId;
+  }
+
+  /**
+   * Returns the Zobrist hash of the current position, including side to move, castling rights and
+   * en passant availability
+   * @return 64-bit hash of the current position
+   */
+  public long getPositionHash() {
+    return Zobrist.hash(board, whoseTurn.getColor());
+  }
+
+  /**
+   * Returns an immutable snapshot of the current position, which can be shared between threads
+   * and turned back into a game with PackedPosition.toGame()
+   * @return the packed position
+   * @throws IllegalStateException if a pawn promotion is pending
+   */
+  public PackedPosition getPackedPosition() {
+    if (pawnToPromote != null) {
+      throw new IllegalStateException("Can't pack a position with a pending promotion");
+    }
+    return PackedPosition.of(board, whoseTurn.getColor());
+  }
+
+  /**
+   * Sets the cache getLegalMoves() looks in before generating moves. Copies of this game share it.
+   * @param legalMoveCache cache shared with other games, or null for none
+   */
+  public void setLegalMoveCache(LegalMoveCache legalMoveCache) {
+    this.legalMoveCache = legalMoveCache;
+  }
+
+  /**
+   * Sets the opening book consulted by getBookMove()
+   * @param openingBook book to use, or null for none
+   */
+  public void setOpeningBook(OpeningBook openingBook) {
+    this.openingBook = openingBook;
+  }
+
+  /**
+   * Looks up the highest-weighted opening book move for the current position
+   * @return packed move (see ChessMove), or ChessMove.NONE if there's no book, the position isn't
+   * in it, or the game can't take a move right now
+   */
+  public int getBookMove() {
+    if (openingBook == null || isGameOver() || pawnToPromote != null) {
+      return ChessMove.NONE;
+    }
+    return fromBookMove(openingBook.probeBest(getPositionHash()));
+  }
+
+  /**
+   * Picks an opening book move for the current position at random, in proportion to the book
+   * weights
+   * @param random source of randomness
+   * @return packed move (see ChessMove), or ChessMove.NONE if there's no book move
+   */
+  public int getBookMove(Random random) {
+    if (openingBook == null || isGameOver() || pawnToPromote != null) {
+      return ChessMove.NONE;
+    }
+    return fromBookMove(openingBook.probeWeighted(getPositionHash(), random));
+  }
+
+  /**
+   * Sets the endgame tablebases consulted by getTablebaseMove()
+   * @param tablebases tables to use (see Tablebase.generateAll())
+   */
+  public void setTablebases(Tablebase... tablebases) {
+    this.tablebases = tablebases;
+  }
+
+  /**
+   * Looks up the perfect move for the current position in the endgame tablebases, when the
+   * material matches one of them
+   * @return packed move (see ChessMove), or ChessMove.NONE if no table covers this position or the
+   * game can't take a move right now
+   */
+  public int getTablebaseMove() {
+    if (tablebases == null || isGameOver() || pawnToPromote != null) {
+      return ChessMove.NONE;
+    }
+    // tables don't know about castling
+    for (ChessColor color : ChessColor.values()) {
+      if (Zobrist.canCastle(board, color, 0) || Zobrist.canCastle(board, color, 7)) {
+        return ChessMove.NONE;
+      }
+    }
+    for (Tablebase tb : tablebases) {
+      int move = tb.bestMove(board, whoseTurn.getColor());
+      if (move != ChessMove.NONE) {
+        return move;
+      }
+    }
+    return ChessMove.NONE;
+  }
+
+  /**
+   * Translates a book move into a packed move, turning Polyglot's king-takes-rook castling into
+   * the king's two-square move
+   */
+  private int fromBookMove(int bookMove) {
+    if (bookMove == ChessMove.NONE) {
+      return bookMove;
+    }
+    int x1 = ChessMove.getFromX(bookMove);
+    int y1 = ChessMove.getFromY(bookMove);
+    int x2 = ChessMove.getToX(bookMove);
+    if (board.getSquare(x1, y1) instanceof King && Math.abs(x2 - x1) > 1) {
+      return ChessMove.of(x1, y1, x2 == 7 ? 6 : 2, ChessMove.getToY(bookMove));
+    }
+    return bookMove;
+  }
+
   /**
    * Checks whether the piece that just moved was a pawn moving to the back row
    * @param piece piece to check
@@ -470,11 +1223,43 @@ public class ChessGame {
    * @return true if the promotion was successful, false if not (invalid input)
    */
   public boolean promotePawn(String pieceCode) {
-    ChessColor color = pawnToPromote.getColor();
-    if (color != whoseTurn.getColor()) {
+    if (!GameEvents.PROMOTION.isEnabled()) {
+      return doPromotePawn(pieceCode);
+    }
+    GameEvents.Promotion event = new GameEvents.Promotion();
+    event.begin();
+    boolean promoted = doPromotePawn(pieceCode);
+    event.end();
+    if (promoted && event.shouldCommit()) {
+      event.gameId = gameId;
+      event.move = ChessMove.toString(undoStack.peek().move);
+      event.positionHash = getPositionHash();
+      event.commit();
+    }
+    return promoted;
+  }
+
+  private boolean doPromotePawn(String pieceCode) {
+    if (pawnToPromote.getColor() != whoseTurn.getColor()) {
       throw new IllegalStateException("Pawn promotion must occur during the promoter's turn");
     }
-    
+    if (!placePromotion(pieceCode)) {
+      return false;
+    }
+    syncShadow();
+
+    // finally, finish out the turn
+    finishTurn();
+    return true;
+  }
+
+  /**
+   * Replaces the pawn waiting on a promotion with the piece chosen, on the board only
+   * @param pieceCode Q, R, B or N
+   * @return true if the promotion was made, false if the code isn't one of those
+   */
+  private boolean placePromotion(String pieceCode) {
+    ChessColor color = pawnToPromote.getColor();
     pieceCode = pieceCode.toUpperCase();
     ChessPiece newPiece;
     int x = pawnToPromote.getX();
@@ -496,19 +1281,17 @@ public class ChessGame {
       return false;
     }
     
-    // update board and shadow
     board.setSquare(x, y, newPiece);
     board.lastActivePiece = newPiece;
-    syncShadow();
-    
-    // update player's material
-    whoseTurn.removeMaterial(pawnToPromote);
-    whoseTurn.giveMaterial(newPiece);
-    
-    // finally, release the hold and finish out the turn
+
+    // remember the choice for undo/redo
+    TurnRecord r = undoStack.peek();
+    r.promotedTo = newPiece;
+    r.move = ChessMove.of(ChessMove.getFromX(r.move), ChessMove.getFromY(r.move), x, y,
+        ChessMove.promotionFromCode(pieceCode));
+
+    // release the hold
     pawnToPromote = null;
-    finishTurn();
-    
     return true;
   }
 
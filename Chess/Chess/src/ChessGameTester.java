@@ -1,4 +1,24 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.Scanner;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 public class ChessGameTester {
 
@@ -11,7 +31,32 @@ public class ChessGameTester {
         testCheck() &&
         testCheckmate() &&
         testRook() &&
-        testBishop();
+        testBishop() &&
+        testPositionIndex() &&
+        testOpeningBook() &&
+        testPolyglotKeys() &&
+        testTablebase() &&
+        testMateSolver() &&
+        testMoveJournal() &&
+        testPackedPosition() &&
+        testUndoRedo() &&
+        testVariationTree() &&
+        testNnue() &&
+        testNnueLargeWeights() &&
+        testTexelTuner() &&
+        testGameMetrics() &&
+        testGameEvents() &&
+        testPerft() &&
+        testLineTables() &&
+        testPieceLists() &&
+        testParkedGames() &&
+        testGivesCheck() &&
+        testLegalMoveQueries() &&
+        testLegalMoveCache() &&
+        testMoveKinds() &&
+        testTrustedReplay() &&
+        testTournament() &&
+        testGameServer();
   }
 
   public static boolean testPawnMove() {
@@ -412,17 +457,1207 @@ public class ChessGameTester {
     return true;
   }
 
-}
+  public static boolean testPositionIndex() {
+    System.out.println("\n\ntestPositionIndex()...");
+    try {
+      Path dir = Files.createTempDirectory("chess");
+      Path shard1 = dir.resolve("a.txt");
+      Path shard2 = dir.resolve("b.txt");
+      Path index = dir.resolve("games.idx");
+      // games 1 and 2 transpose into the same position after 3 plies
+      Files.write(shard1, Arrays.asList("1 g1f3 g8f6 b1c3", "3 e2e4 e7e5"));
+      Files.write(shard2, Arrays.asList("2 b1c3 g8f6 g1f3 d7d5", "4 e2e4 e7e5 e1e3"));
 
+      // tiny runs so the merge actually has several runs to merge
+      long skipped = PositionIndex.build(Arrays.asList(shard1, shard2), index, 2, 3);
+      if (skipped != 1) { // game 4 has an illegal king move
+        return false;
+      }
 
+      ChessGame g = new ChessGame("Ben", "Maithilee");
+      g.nextTurnNotation("g1", "f3");
+      g.nextTurnNotation("g8", "f6");
+      g.nextTurnNotation("b1", "c3");
 
+      PositionIndex idx = PositionIndex.open(index);
+      long[] hits = idx.lookup(g.getPositionHash());
+      boolean ok = idx.size() == 4 + 5 + 3 && hits.length == 2
+          && PositionIndex.getGameId(hits[0]) == 1 && PositionIndex.getPly(hits[0]) == 3
+          && PositionIndex.getGameId(hits[1]) == 2 && PositionIndex.getPly(hits[1]) == 3
+          && idx.count(new ChessGame("Ben", "Maithilee").getPositionHash()) == 3
+          && idx.lookup(g.getPositionHash() + 1).length == 0;
+      idx.close();
+      if (!ok) {
+        return false;
+      }
 
+      // a shard that can't be read fails the build with its own error, and the runs the other
+      // shard spilled are cleaned up with the temp directory
+      try {
+        PositionIndex.build(Arrays.asList(shard1, dir.resolve("missing.txt"), shard2),
+            dir.resolve("broken.idx"), 2, 1);
+        return false;
+      } catch (NoSuchFileException e) {
+        if (e.getSuppressed().length != 0) {
+          return false;
+        }
+      }
+      try (DirectoryStream<Path> left = Files.newDirectoryStream(dir, "posidx*")) {
+        return !left.iterator().hasNext();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
 
+  public static boolean testOpeningBook() {
+    System.out.println("\n\ntestOpeningBook()...");
+    try {
+      Path dir = Files.createTempDirectory("chess");
+      Path pgn = dir.resolve("games.pgn");
+      Path bin = dir.resolve("book.bin");
+      Files.write(pgn, Arrays.asList(
+          "[Event \"Test\"]", "[Result \"1-0\"]", "",
+          "1. e4 e5 2. Nf3 {main line} Nc6 (2... d6 3. d4) 3. Bc4 Nf6 4. O-O 1-0", "",
+          "[Result \"1-0\"]", "",
+          "1. e4 c5 2. Nf3 1-0", "",
+          "[Result \"0-1\"]", "",
+          "1. d4 d5 0-1"));
 
+      OpeningBookBuilder builder = new OpeningBookBuilder(20);
+      builder.addPgn(pgn);
+      builder.write(bin, 1);
 
+      OpeningBook book = OpeningBook.open(bin);
+      ChessGame g = new ChessGame("Ben", "Maithilee");
+      g.setOpeningBook(book);
 
+      // e4 scored 4 points over two games, d4 scored 0 and is left out
+      if (g.getBookMove() != ChessMove.parse("e2e4")) {
+        return false;
+      }
+      String[] moves = new String[] {"e2e4", "e7e5", "g1f3", "b8c6", "f1c4", "g8f6"};
+      for (String m : moves) {
+        ChessMove.apply(g, ChessMove.parse(m));
+      }
+      // castling comes back as the king's own move
+      if (g.getBookMove() != ChessMove.parse("e1g1")) {
+        return false;
+      }
+      ChessMove.apply(g, ChessMove.parse("e1g1"));
+      boolean ok = g.getBookMove() == ChessMove.NONE;
+      book.close();
+      return ok;
+    } catch (IOException e) {
+      return false;
+    }
+  }
 
+  public static boolean testPolyglotKeys() {
+    System.out.println("\n\ntestPolyglotKeys()...");
+    // the reference positions from the Polyglot book format spec
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    if (g.getPositionHash() != 0x463b96181691fc9cL) {
+      return false;
+    }
+    String[] moves = new String[] {"e2e4", "d7d5", "e4e5", "f7f5", "e1e2", "e8f7"};
+    long[] hashes = new long[] {0x823c9b50fd114196L, 0x0756b94461c50fb0L, 0x662fafb965db29d4L,
+        0x22a48b5a8e47ff78L, 0x652a607ca3f242c1L, 0x00fdd303c946bdd9L};
+    for (int i = 0; i < moves.length; i++) {
+      ChessMove.apply(g, ChessMove.parse(moves[i]));
+      if (g.getPositionHash() != hashes[i]) {
+        return false;
+      }
+    }
 
+    // b4 can take en passant on c3, then the rook move drops white's long castling
+    g = new ChessGame("Ben", "Maithilee");
+    for (String m : new String[] {"a2a4", "b7b5", "h2h4", "b5b4", "c2c4"}) {
+      ChessMove.apply(g, ChessMove.parse(m));
+    }
+    if (g.getPositionHash() != 0x3c8123ea7b067637L) {
+      return false;
+    }
+    ChessMove.apply(g, ChessMove.parse("b4c3"));
+    ChessMove.apply(g, ChessMove.parse("a1a3"));
+    return g.getPositionHash() == 0x5c3f9b829b279560L;
+  }
 
+  public static boolean testTablebase() {
+    System.out.println("\n\ntestTablebase()...");
+    Tablebase[] tables = Tablebase.generateAll();
+    Tablebase kqk = tables[0];
 
+    // white Kb6 and Qc1 against black Ka8: Qc8 is mate
+    ChessBoard b = new ChessBoard(null);
+    for (int x = 0; x < ChessBoard.X_DIM; x++) {
+      for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+        b.setSquare(x, y, null);
+      }
+    }
+    b.setSquare(1, 5, new King(ChessColor.WHITE, b, 1, 5));
+    b.setSquare(2, 0, new Queen(ChessColor.WHITE, b, 2, 0));
+    b.setSquare(0, 7, new King(ChessColor.BLACK, b, 0, 7));
+
+    if (kqk.probe(b, ChessColor.WHITE) != 1
+        || tables[1].probe(b, ChessColor.WHITE) != Tablebase.ILLEGAL) {
+      return false;
+    }
+    int move = kqk.bestMove(b, ChessColor.WHITE);
+    b.getSquare(ChessMove.getFromX(move), ChessMove.getFromY(move))
+        .move(ChessMove.getToX(move), ChessMove.getToY(move));
+    byte after = kqk.probe(b, ChessColor.BLACK);
+    if (!Tablebase.isLoss(after) || Tablebase.matePlies(after) != 0) {
+      return false;
+    }
+
+    // with the colours swapped the table is probed from black's side
+    b = new ChessBoard(null);
+    for (int x = 0; x < ChessBoard.X_DIM; x++) {
+      for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+        b.setSquare(x, y, null);
+      }
+    }
+    b.setSquare(1, 2, new King(ChessColor.BLACK, b, 1, 2));
+    b.setSquare(2, 7, new Queen(ChessColor.BLACK, b, 2, 7));
+    b.setSquare(0, 0, new King(ChessColor.WHITE, b, 0, 0));
+    return kqk.probe(b, ChessColor.BLACK) == 1;
+  }
+
+  public static boolean testMateSolver() {
+    System.out.println("\n\ntestMateSolver()...");
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    String[] moves = new String[] {"e2e4", "e7e5", "f1c4", "b8c6", "d1h5", "g8f6"};
+    for (String m : moves) {
+      ChessMove.apply(g, ChessMove.parse(m));
+    }
 
+    // scholar's mate: Qxf7 is the only mate in 1, and still the only mate in 2
+    MateSolver.Result r = new MateSolver(1, false, 1 << 16).solve(g);
+    if (!r.isUnique() || r.getMatingMoves()[0] != ChessMove.parse("h5f7")) {
+      return false;
+    }
+    r = new MateSolver(2, true, 1 << 16).solve(g);
+    if (r.getStatus() != MateSolver.Status.MATE || !r.isUnique()) {
+      return false;
+    }
+
+    // nothing mates from the start position, and the solver must not touch the game it was given
+    ChessGame start = new ChessGame("Ben", "Maithilee");
+    r = new MateSolver(1, false, 1 << 16).solve(start);
+    return r.getStatus() == MateSolver.Status.NO_MATE && start.getBoard().lastActivePiece == null;
+  }
+
+  public static boolean testMoveJournal() {
+    System.out.println("\n\ntestMoveJournal()...");
+    try {
+      Path dir = Files.createTempDirectory("chess");
+      GameSessionManager m = new GameSessionManager(dir);
+      long g1 = m.createGame("Ben", "Maithilee");
+      long g2 = m.createGame("Maithilee", "Ben");
+      long g3 = m.createGame("Ben", "Ben");
+      m.move(g1, "e2e4");
+      m.move(g1, "e7e5");
+      m.move(g2, "d2d4");
+      m.checkpoint();
+      m.move(g1, "g1f3");
+      m.move(g2, "d7d5");
+      m.removeGame(g3);
+      long hash1 = m.withGame(g1, g -> g.getPositionHash());
+      long hash2 = m.withGame(g2, g -> g.getPositionHash());
+      m.close();
+
+      // a torn record at the end of the journal is ignored
+      try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "*.log")) {
+        for (Path log : logs) {
+          Files.write(log, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+        }
+      }
+
+      GameSessionManager r = new GameSessionManager(dir);
+      boolean ok = r.size() == 2
+          && r.withGame(g1, g -> g.getPositionHash()) == hash1
+          && r.withGame(g2, g -> g.getPositionHash()) == hash2
+          && r.createGame("Ben", "Maithilee") == g3 + 1;
+      r.close();
+      return ok;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public static boolean testPackedPosition() {
+    System.out.println("\n\ntestPackedPosition()...");
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    if (!g.getPackedPosition().toString().equals(
+        "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq -")) {
+      return false;
+    }
+    // white's king walks, black gets an en passant capture
+    for (String m : new String[] {"e2e4", "g8f6", "e1e2", "f6g8", "e4e5", "d7d5"}) {
+      ChessMove.apply(g, ChessMove.parse(m));
+    }
+    PackedPosition p = g.getPackedPosition();
+    if (!p.toString().equals("rnbqkbnr/ppp1pppp/8/3pP3/8/8/PPPPKPPP/RNBQ1BNR w kq d6")
+        || p.getHash() != g.getPositionHash()) {
+      return false;
+    }
+
+    // the rebuilt game plays on identically, en passant included
+    ChessGame copy = p.toGame("Ben", "Maithilee");
+    return copy.getPackedPosition().equals(p) && copy.nextTurnNotation("e5", "d6")
+        && copy.getBoard().getSquare(3, 4) == null;
+  }
+
+  public static boolean testUndoRedo() {
+    System.out.println("\n\ntestUndoRedo()...");
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    PackedPosition start = g.getPackedPosition();
+    // castling, an en passant capture, and a pawn that captures its way to promotion
+    String[] moves = {"e2e4", "a7a6", "g1f3", "a6a5", "f1c4", "a5a4", "e1g1", "b7b5", "a2a3",
+        "b5b4", "e4e5", "d7d5", "e5d6", "b4a3", "d6c7", "a3b2", "c7d8n"};
+    PackedPosition[] positions = new PackedPosition[moves.length];
+    for (int i = 0; i < moves.length; i++) {
+      positions[i] = g.getPackedPosition();
+      if (!ChessMove.apply(g, ChessMove.parse(moves[i]))) {
+        return false;
+      }
+    }
+    PackedPosition end = g.getPackedPosition();
+    int material = g.getPlayer(ChessColor.WHITE).getTotalMaterialValue();
+
+    for (int i = moves.length - 1; i >= 0; i--) {
+      if (!g.undo() || !g.getPackedPosition().equals(positions[i])) {
+        return false;
+      }
+      // undo only patches the shadow board, so it must still agree with a freshly copied one
+      int[] legal = g.getLegalMoves();
+      int[] fresh = g.getDeepCopy().getLegalMoves();
+      Arrays.sort(legal);
+      Arrays.sort(fresh);
+      if (!Arrays.equals(legal, fresh)) {
+        return false;
+      }
+    }
+    if (g.undo() || !g.getPackedPosition().equals(start)) {
+      return false;
+    }
+    while (g.redo()) {
+      // replay everything
+    }
+    if (!g.getPackedPosition().equals(end) || g.getMoveHistory().length != moves.length
+        || g.getPlayer(ChessColor.WHITE).getTotalMaterialValue() != material) {
+      return false;
+    }
+
+    // undoing a pawn that's waiting on its promotion, then redoing it, leaves it waiting again
+    g.undo();
+    if (!g.nextTurnNotation("c7", "d8") || !g.pawnNeedsPromotion() || !g.undo() || !g.redo()
+        || !g.pawnNeedsPromotion() || !(g.getBoard().getSquare(3, 7) instanceof Pawn)
+        || !g.promotePawn("N") || !g.getPackedPosition().equals(end)) {
+      return false;
+    }
+
+    // playing a new move after an undo drops the redo history
+    g.undo();
+    g.undo();
+    return g.nextTurnNotation("b8", "c6") && !g.redo();
+  }
+
+  public static boolean testVariationTree() {
+    System.out.println("\n\ntestVariationTree()...");
+    VariationTree tree = new VariationTree(new ChessGame("Ben", "Maithilee"));
+    VariationTree.Cursor cursor = tree.newCursor();
+    // main line, then a sideline branching off after 1. e4 e5
+    for (String m : new String[] {"e2e4", "e7e5", "g1f3", "b8c6", "f1b5"}) {
+      cursor.play(ChessMove.parse(m));
+    }
+    int ruyLopez = cursor.getNode();
+    cursor.goTo(tree.getChild(tree.getChild(VariationTree.ROOT, ChessMove.parse("e2e4")),
+        ChessMove.parse("e7e5")));
+    for (String m : new String[] {"f2f4", "e5f4"}) {
+      cursor.play(ChessMove.parse(m));
+    }
+    int kingsGambit = cursor.getNode();
+
+    // replaying a move that's already in the tree doesn't add a node, illegal moves are refused
+    cursor.back();
+    if (cursor.play(ChessMove.parse("e5f4")) != kingsGambit
+        || cursor.play(ChessMove.parse("e1e3")) != VariationTree.NONE || tree.size() != 8) {
+      return false;
+    }
+
+    cursor.goTo(ruyLopez);
+    if (cursor.getDepth() != 5 || cursor.getGame().getPositionHash() != tree.getHash(ruyLopez)) {
+      return false;
+    }
+    cursor.goTo(kingsGambit);
+    return cursor.getGame().getPositionHash() == tree.getHash(kingsGambit)
+        && tree.getChildren(tree.getParent(tree.getParent(kingsGambit))).length == 2
+        && ChessMove.toString(tree.getLine(kingsGambit)[2]).equals("f2f4");
+  }
+
+  public static boolean testNnue() {
+    System.out.println("\n\ntestNnue()...");
+    NnueNetwork net = NnueNetwork.random(64, 7);
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    NnueNetwork.Accumulator acc = net.attach(g.getBoard());
+    // en passant, a promotion that captures, a recapture and castling
+    String[] moves = {"e2e4", "a7a6", "e4e5", "d7d5", "e5d6", "a6a5", "d6c7", "a5a4", "c7b8q",
+        "a8b8", "g1f3", "a4a3", "f1e2", "a3b2", "e1g1"};
+    for (String m : moves) {
+      if (!ChessMove.apply(g, ChessMove.parse(m)) || !nnueMatchesRefresh(net, acc, g)) {
+        return false;
+      }
+    }
+    while (g.undo()) {
+      if (!nnueMatchesRefresh(net, acc, g)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static boolean testNnueLargeWeights() {
+    System.out.println("\n\ntestNnueLargeWeights()...");
+    // 256 neurons per side all at QA, all output weights at the int16 maximum: the sum is past
+    // Integer.MAX_VALUE
+    int hidden = 256;
+    ByteBuffer buf = ByteBuffer.allocate(12 + 2 * (NnueNetwork.INPUTS * hidden + 3 * hidden + 1))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buf.putLong(0x3145554e4e534843L).putInt(hidden); // "CHSNNUE1"
+    buf.position(buf.position() + 2 * NnueNetwork.INPUTS * hidden); // input weights all 0
+    for (int i = 0; i < 3 * hidden; i++) {
+      buf.putShort(Short.MAX_VALUE); // input biases, then output weights
+    }
+    try {
+      Path file = Files.createTempFile("chess", ".nnue");
+      Files.write(file, buf.array());
+      NnueNetwork net = NnueNetwork.load(file);
+      Files.delete(file);
+      long expected = 2L * hidden * NnueNetwork.QA * Short.MAX_VALUE * NnueNetwork.SCALE
+          / (NnueNetwork.QA * NnueNetwork.QB);
+      return net.evaluate(new ChessGame("Ben", "Maithilee")) == expected;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private static boolean nnueMatchesRefresh(NnueNetwork net, NnueNetwork.Accumulator acc,
+      ChessGame g) {
+    NnueNetwork.Accumulator fresh = net.attach(g.getDeepCopy().getBoard());
+    return net.evaluate(acc, ChessColor.WHITE) == net.evaluate(fresh, ChessColor.WHITE)
+        && net.evaluate(acc, ChessColor.BLACK) == net.evaluate(fresh, ChessColor.BLACK);
+  }
+
+  public static boolean testTexelTuner() {
+    System.out.println("\n\ntestTexelTuner()...");
+    // growing the position arrays doesn't overflow near the largest array size
+    if (TexelTuner.grow(1 << 16, (1 << 16) + 64) != 1 << 17
+        || TexelTuner.grow(1 << 30, (1L << 30) + 64) != Integer.MAX_VALUE - 8
+        || TexelTuner.grow(Integer.MAX_VALUE - 100, Integer.MAX_VALUE - 36L)
+            != Integer.MAX_VALUE - 8) {
+      return false;
+    }
+    try {
+      TexelTuner.grow(Integer.MAX_VALUE - 8, Integer.MAX_VALUE - 7L);
+      return false;
+    } catch (IllegalStateException e) {
+      // too many positions
+    }
+
+    TexelTuner tuner = new TexelTuner();
+    if (tuner.addPosition("8/8/8/8/8/8/8/8 w - - [1.0]")
+        || tuner.addPosition("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1")
+        || !tuner.addPosition(
+            "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - c9 \"1/2-1/2\";")) {
+      return false;
+    }
+
+    // positions from random games, labelled by who is ahead in material (pawns counting extra)
+    Random random = new Random(5);
+    for (int game = 0; game < 40; game++) {
+      ChessGame g = new ChessGame("Ben", "Maithilee");
+      for (int ply = 0; ply < 80 && !g.isGameOver(); ply++) {
+        int[] legal = g.getLegalMoves();
+        ChessMove.apply(g, legal[random.nextInt(legal.length)]);
+        int diff = g.getPlayer(ChessColor.WHITE).getTotalMaterialValue()
+            - g.getPlayer(ChessColor.BLACK).getTotalMaterialValue();
+        String label = diff > 0 ? "1-0" : diff < 0 ? "0-1" : "1/2-1/2";
+        if (!tuner.addPosition(PackedPosition.of(g.getBoard(), g.getWhoseTurn().getColor())
+            + " " + label)) {
+          return false;
+        }
+      }
+    }
+    // the gradient split over threads adds up to the single-threaded one
+    double[] whole = tuner.gradient(0, tuner.size(), 1);
+    double[] split = tuner.gradient(0, tuner.size(), 4);
+    for (int i = 0; i < TexelTuner.PARAMS; i++) {
+      if (Math.abs(whole[i] - split[i]) > 1e-9 * (1 + Math.abs(whole[i]))) {
+        return false;
+      }
+    }
+
+    double before = tuner.loss();
+    tuner.fitScale();
+    for (int e = 0; e < 5; e++) {
+      tuner.epoch(256, 2.0, random);
+    }
+    double[] params = tuner.getParameters();
+    return tuner.loss() < before && params[4] > params[0];
+  }
+
+  public static boolean testGameMetrics() {
+    System.out.println("\n\ntestGameMetrics()...");
+    // bucket boundaries line up
+    for (int b = 1; b < 200; b++) {
+      if (GameMetrics.bucket(GameMetrics.bucketLowest(b)) != b
+          || GameMetrics.bucket(GameMetrics.bucketLowest(b) - 1) != b - 1) {
+        return false;
+      }
+    }
+
+    boolean wasEnabled = GameMetrics.isEnabled();
+    GameMetrics.setEnabled(false);
+    GameMetrics.reset();
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    g.nextTurnNotation("e2", "e4");
+    if (GameMetrics.getCount(GameMetrics.NEXT_TURN) != 0) {
+      return false;
+    }
+
+    GameMetrics.setEnabled(true);
+    g.nextTurnNotation("e7", "e5");
+    g.nextTurnNotation("e1", "e3"); // illegal, still counted
+    boolean ok = GameMetrics.getCount(GameMetrics.NEXT_TURN) == 2
+        && GameMetrics.getCount(GameMetrics.CHECK_AND_MATE_DETECTION) == 1
+        && GameMetrics.getCount(GameMetrics.IS_THREATENED) > 0
+        && GameMetrics.getPercentileNanos(GameMetrics.NEXT_TURN, 50)
+            <= GameMetrics.getMaxNanos(GameMetrics.NEXT_TURN)
+        && GameMetrics.dump().contains("tryMoveOnShadow");
+    GameMetrics.setEnabled(wasEnabled);
+    GameMetrics.reset();
+    return ok;
+  }
+
+  public static boolean testGameEvents() {
+    System.out.println("\n\ntestGameEvents()...");
+    try {
+      Path file = Files.createTempFile("chess", ".jfr");
+      int turns = 0;
+      int checks = 0;
+      int legalityChecks = 0;
+      boolean promoted = false;
+      try (Recording recording = new Recording()) {
+        recording.enable("chess.Turn");
+        recording.enable("chess.GameOverCheck");
+        recording.enable("chess.Promotion");
+        recording.enable("chess.LegalityCheck").withThreshold(Duration.ZERO);
+        recording.start();
+        ChessGame g = new ChessGame("Ben", "Maithilee");
+        g.setGameId(42);
+        for (String m : new String[] {"e2e4", "a7a6", "e4e5", "d7d5", "e5d6", "a6a5", "d6c7",
+            "a5a4", "c7b8q"}) {
+          ChessMove.apply(g, ChessMove.parse(m));
+        }
+        g.nextTurnNotation("a8", "a1"); // illegal
+        recording.stop();
+        recording.dump(file);
+      }
+
+      for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+        if (e.getLong("gameId") != 42) {
+          return false;
+        }
+        String type = e.getEventType().getName();
+        if (type.equals("chess.Turn")) {
+          turns++;
+        }
+        else if (type.equals("chess.GameOverCheck")) {
+          checks++;
+        }
+        else if (type.equals("chess.LegalityCheck")) {
+          legalityChecks++;
+        }
+        else if (type.equals("chess.Promotion")) {
+          promoted = e.getString("move").equals("c7b8q");
+        }
+      }
+      Files.delete(file);
+      return turns == 10 && checks == 9 && legalityChecks > 9 && promoted;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public static boolean testPerft() {
+    System.out.println("\n\ntestPerft()...");
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    for (int depth = 1; depth <= 3; depth++) {
+      if (Perft.perft(g, depth) != Perft.START_COUNTS[depth]) {
+        return false;
+      }
+    }
+
+    // the game is put back the way it was
+    g.nextTurnNotation("e2", "e4");
+    long hash = g.getPositionHash();
+    long nodes = Perft.perft(g, 2);
+    return nodes == 600 && g.getPositionHash() == hash && g.getMoveHistory().length == 1;
+  }
+
+  public static boolean testLineTables() {
+    System.out.println("\n\ntestLineTables()...");
+    if (Long.bitCount(AttackTables.between(0, 0, 7, 7)) != 6
+        || AttackTables.between(0, 0, 1, 2) != 0 || AttackTables.between(3, 3, 3, 3) != 0
+        || AttackTables.between(4, 0, 7, 0) != (AttackTables.bit(5, 0) | AttackTables.bit(6, 0))
+        || AttackTables.between(4, 0, 7, 0) != AttackTables.between(7, 0, 4, 0)
+        || Long.bitCount(AttackTables.line(1, 1, 3, 3)) != 8
+        || !AttackTables.contains(AttackTables.line(1, 1, 3, 3), 7, 7)
+        || !AttackTables.contains(AttackTables.line(6, 0, 5, 1), 0, 6)
+        || AttackTables.line(0, 0, 1, 2) != 0) {
+      return false;
+    }
+
+    // the occupancy follows moves, captures and copies
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    g.nextTurnNotation("e2", "e4");
+    g.nextTurnNotation("d7", "d5");
+    g.nextTurnNotation("e4", "d5");
+    ChessBoard b = g.getBoard().getDeepCopy(g);
+    long occupied = 0;
+    for (int x = 0; x < ChessBoard.X_DIM; x++) {
+      for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+        if (b.getSquare(x, y) != null) {
+          occupied |= AttackTables.bit(x, y);
+        }
+      }
+    }
+    return b.getOccupied() == occupied && g.getBoard().getOccupied() == occupied
+        && b.hasClearPath(3, 0, 7, 4) && !b.hasClearPath(3, 0, 3, 5) && !b.hasClearPath(3, 0, 4, 2)
+        && b.hasClearDiagonalPath(5, 0, 1, 4) && !b.hasClearVerticalPath(0, 0, 0, 2);
+  }
+
+  public static boolean testPieceLists() {
+    System.out.println("\n\ntestPieceLists()...");
+    // random games with undos: the lists always hold exactly the pieces on the board
+    Random random = new Random(5);
+    for (int game = 0; game < 20; game++) {
+      ChessGame g = new ChessGame("Ben", "Maithilee");
+      for (int ply = 0; ply < 120 && !g.isGameOver(); ply++) {
+        int[] moves = g.getLegalMoves();
+        ChessMove.apply(g, moves[random.nextInt(moves.length)]);
+        if (random.nextInt(8) == 0) {
+          g.undo();
+        }
+        for (ChessBoard b : new ChessBoard[] {g.getBoard(), g.getBoard().getDeepCopy(g)}) {
+          for (ChessColor color : ChessColor.values()) {
+            int onBoard = 0;
+            for (int x = 0; x < ChessBoard.X_DIM; x++) {
+              for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+                if (b.getSquare(x, y) != null && b.getSquare(x, y).getColor() == color) {
+                  onBoard++;
+                }
+              }
+            }
+            if (b.getPieceCount(color) != onBoard) {
+              return false;
+            }
+            for (int i = 0; i < b.getPieceCount(color); i++) {
+              ChessPiece c = b.getPiece(color, i);
+              if (c.getColor() != color || b.getSquare(c.getX(), c.getY()) != c) {
+                return false;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    // captured pieces leave the player's material
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    g.nextTurnNotation("e2", "e4");
+    g.nextTurnNotation("d7", "d5");
+    g.nextTurnNotation("e4", "d5");
+    return g.getPlayer(ChessColor.BLACK).getMaterial().size() == 15
+        && g.getPlayer(ChessColor.WHITE).getMaterial().size() == 16
+        && g.getPlayer(ChessColor.WHITE).getTotalMaterialValue()
+            - g.getPlayer(ChessColor.BLACK).getTotalMaterialValue() == 1;
+  }
+
+  public static boolean testParkedGames() {
+    System.out.println("\n\ntestParkedGames()...");
+    // parked games play exactly like live ones
+    GameSessionManager live = new GameSessionManager();
+    GameSessionManager parked = new GameSessionManager();
+    long id = live.createGame("Ben", "Maithilee");
+    parked.setParkIdleGames(true);
+    if (parked.createGame("Ben", "Maithilee") != id) {
+      return false;
+    }
+    Random random = new Random(9);
+    for (int ply = 0; ply < 150 && !live.withGame(id, g -> g.isGameOver()); ply++) {
+      int[] moves = live.withGame(id, g -> g.getLegalMoves());
+      int[] parkedMoves = parked.withGame(id, g -> g.getLegalMoves());
+      Arrays.sort(moves);
+      Arrays.sort(parkedMoves);
+      if (!Arrays.equals(moves, parkedMoves)) {
+        return false;
+      }
+      String move = ChessMove.toString(moves[random.nextInt(moves.length)]);
+      if (!live.move(id, move) || !parked.move(id, move)
+          || !live.withGame(id, g -> g.getPositionHash())
+              .equals(parked.withGame(id, g -> g.getPositionHash()))
+          || parked.withGame(id, g -> g.getGameId()) != id) {
+        return false;
+      }
+    }
+    if (live.withGame(id, g -> g.isGameOver()) != parked.withGame(id, g -> g.isGameOver())) {
+      return false;
+    }
+
+    // a pending promotion keeps the game live until the choice is made
+    long p = parked.createGame("Ben", "Maithilee");
+    for (String m : new String[] {"h2h4", "g7g5", "h4g5", "h7h6", "g5h6", "f8g7", "h6g7", "a7a6"}) {
+      parked.move(p, m);
+    }
+    return parked.withGame(p, g -> g.nextTurnNotation("g7", "h8"))
+        && parked.withGame(p, g -> g.pawnNeedsPromotion())
+        && parked.withGame(p, g -> g.promotePawn("Q"))
+        && parked.withGame(p, g -> g.getBoard().getSquare(7, 7) instanceof Queen);
+  }
+
+  public static boolean testGivesCheck() {
+    System.out.println("\n\ntestGivesCheck()...");
+    // g4h5 uncovers the bishop on h3 against the king on e6
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    for (String m : ("f2f3 g8f6 a2a4 d7d6 g2g4 d6d5 c2c3 e8d7 a4a5 b7b6 b1a3 b6a5 b2b3 h7h5 f1h3 "
+        + "d7e6 g4h5").split(" ")) {
+      ChessMove.apply(g, ChessMove.parse(m));
+    }
+    if (!g.getBoard().getKing(ChessColor.BLACK).getIsInCheck()
+        || g.getBoard().getSquare(7, 4).canCapture(4, 5)) {
+      return false;
+    }
+
+    // the check flags worked out from the moves match a full look at the board
+    Random random = new Random(13);
+    for (int game = 0; game < 30; game++) {
+      g = new ChessGame("Ben", "Maithilee");
+      for (int ply = 0; ply < 200 && !g.isGameOver(); ply++) {
+        int[] moves = g.getLegalMoves();
+        ChessMove.apply(g, moves[random.nextInt(moves.length)]);
+        ChessColor color = g.getWhoseTurn().getColor();
+        King king = g.getBoard().getKing(color);
+        if (king.getIsInCheck() != g.getBoard().isThreatened(king.getX(), king.getY(),
+            ChessGame.getOtherColor(color))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  public static boolean testLegalMoveQueries() {
+    System.out.println("\n\ntestLegalMoveQueries()...");
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    int[] all = g.getLegalMoves();
+    int[] knight = g.getLegalMoves("g1");
+    if (all.length != 20 || knight.length != 2 || g.getLegalMoves(4, 1).length != 2
+        || g.getLegalMoves("e7").length != 0 || g.getLegalMoves("e4").length != 0) {
+      return false;
+    }
+    // callers get their own copies
+    all[0] = ChessMove.NONE;
+    if (g.getLegalMoves()[0] == ChessMove.NONE) {
+      return false;
+    }
+
+    // the list follows moves, undo and redo, and only holds moves nextTurn() accepts
+    g.nextTurnNotation("e2", "e4");
+    if (g.getLegalMoves("e7").length != 2 || g.getLegalMoves("e2").length != 0) {
+      return false;
+    }
+    g.undo();
+    if (g.getLegalMoves().length != 20 || g.getLegalMoves("e2").length != 2) {
+      return false;
+    }
+    g.redo();
+    for (int m : g.getLegalMoves()) {
+      ChessGame copy = g.getDeepCopy();
+      if (!ChessMove.apply(copy, m)) {
+        return false;
+      }
+    }
+
+    // fool's mate: nothing left to list
+    g = new ChessGame("Ben", "Maithilee");
+    for (String m : new String[] {"f2f3", "e7e5", "g2g4", "d8h4"}) {
+      ChessMove.apply(g, ChessMove.parse(m));
+    }
+    return g.getWinner() != null && g.getLegalMoves().length == 0;
+  }
+
+  public static boolean testLegalMoveCache() {
+    System.out.println("\n\ntestLegalMoveCache()...");
+    LegalMoveCache cache = new LegalMoveCache(1024);
+    ChessGame a = new ChessGame("Ben", "Maithilee");
+    ChessGame b = new ChessGame("Ben", "Maithilee");
+    a.setLegalMoveCache(cache);
+    b.setLegalMoveCache(cache);
+
+    // the same position by different move orders: generated once, then a hit
+    for (String m : new String[] {"g1f3", "g8f6", "e2e4"}) {
+      ChessMove.apply(a, ChessMove.parse(m));
+    }
+    for (String m : new String[] {"e2e4", "g8f6", "g1f3"}) {
+      ChessMove.apply(b, ChessMove.parse(m));
+    }
+    int[] first = a.getLegalMoves();
+    int[] second = b.getLegalMoves();
+    if (cache.getMissCount() != 1 || cache.getHitCount() != 1 || cache.getHitRate() != 0.5
+        || !Arrays.equals(first, second)) {
+      return false;
+    }
+    // callers still get copies, not the shared array
+    second[0] = ChessMove.NONE;
+    if (a.getLegalMoves()[0] == ChessMove.NONE) {
+      return false;
+    }
+
+    // with and without the cache the lists match, all the way down a random game
+    Random r = new Random(48);
+    ChessGame cached = new ChessGame("Ben", "Maithilee");
+    ChessGame plain = new ChessGame("Ben", "Maithilee");
+    cached.setLegalMoveCache(cache);
+    for (int ply = 0; ply < 200 && plain.getWinner() == null; ply++) {
+      int[] moves = plain.getLegalMoves();
+      if (moves.length == 0 || !Arrays.equals(moves, cached.getLegalMoves())) {
+        break;
+      }
+      int m = moves[r.nextInt(moves.length)];
+      ChessMove.apply(plain, m);
+      ChessMove.apply(cached, m);
+    }
+    if (!Arrays.equals(plain.getLegalMoves(), cached.getLegalMoves())) {
+      return false;
+    }
+
+    // a small cache stays within its capacity, evicting as it fills
+    LegalMoveCache small = new LegalMoveCache(16);
+    Perft.perft(startWith(small), 3);
+    if (small.size() > small.getCapacity() || small.getCapacity() != 16
+        || small.getEvictionCount() == 0) {
+      return false;
+    }
+
+    // threads sharing a cache all count right
+    LegalMoveCache shared = new LegalMoveCache(64);
+    long[] counts = new long[4];
+    Thread[] threads = new Thread[counts.length];
+    for (int i = 0; i < threads.length; i++) {
+      int t = i;
+      threads[i] = new Thread(() -> counts[t] = Perft.perft(startWith(shared), 3));
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) {
+      try {
+        threads[i].join();
+      } catch (InterruptedException e) {
+        return false;
+      }
+      if (counts[i] != Perft.START_COUNTS[3]) {
+        return false;
+      }
+    }
+    shared.clear();
+    return shared.size() == 0 && shared.getHitCount() == 0;
+  }
+
+  private static ChessGame startWith(LegalMoveCache cache) {
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    g.setLegalMoveCache(cache);
+    return g;
+  }
+
+  public static boolean testMoveKinds() {
+    System.out.println("\n\ntestMoveKinds()...");
+    // en passant is the only way to deal with the pawn checking the king on e4 other than moving
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    for (String m : new String[] {"e2e4", "a7a6", "e4e5", "a6a5", "e1e2", "a5a4", "e2e3", "h7h6",
+        "e3e4", "d7d5"}) {
+      ChessMove.apply(g, ChessMove.parse(m));
+    }
+    int[] evasions = g.getLegalMoves(ChessGame.MoveKind.EVASIONS);
+    Arrays.sort(evasions);
+    int[] all = g.getLegalMoves();
+    Arrays.sort(all);
+    if (!Arrays.equals(evasions, all) || Arrays.binarySearch(all, ChessMove.parse("e5d6")) < 0) {
+      return false;
+    }
+
+    // the kinds split the legal moves up right all the way through random games, whether or not
+    // the full list was already worked out that turn
+    Random r = new Random(49);
+    for (int game = 0; game < 20; game++) {
+      g = new ChessGame("Ben", "Maithilee");
+      for (int ply = 0; ply < 150 && !g.isGameOver(); ply++) {
+        ChessGame fresh = g.getDeepCopy();
+        all = g.getLegalMoves();
+        if (!splitsRight(fresh, all) || !splitsRight(g, all)) {
+          return false;
+        }
+        ChessMove.apply(g, all[r.nextInt(all.length)]);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks the moves of each kind in g against the full list of its legal moves
+   */
+  private static boolean splitsRight(ChessGame g, int[] all) {
+    int[] captures = g.getLegalMoves(ChessGame.MoveKind.CAPTURES);
+    int[] quiet = g.getLegalMoves(ChessGame.MoveKind.QUIET);
+    int[] evasions = g.getLegalMoves(ChessGame.MoveKind.EVASIONS);
+    int[] checks = g.getLegalMoves(ChessGame.MoveKind.QUIET_CHECKS);
+    boolean inCheck = g.getBoard().getKing(g.getWhoseTurn().getColor()).getIsInCheck();
+
+    int[] both = Arrays.copyOf(captures, captures.length + quiet.length);
+    System.arraycopy(quiet, 0, both, captures.length, quiet.length);
+    int[] sorted = all.clone();
+    Arrays.sort(sorted);
+    Arrays.sort(both);
+    Arrays.sort(evasions);
+    if (!Arrays.equals(sorted, both) || !Arrays.equals(evasions, inCheck ? sorted : new int[0])) {
+      return false;
+    }
+    for (int m : captures) {
+      ChessBoard b = g.getBoard();
+      if (b.getSquare(ChessMove.getToX(m), ChessMove.getToY(m)) == null
+          && ChessMove.getPromotion(m) == ChessMove.PROMO_NONE
+          && !(b.getSquare(ChessMove.getFromX(m), ChessMove.getFromY(m)) instanceof Pawn)) {
+        return false;
+      }
+    }
+
+    // the quiet checks are exactly the quiet moves that leave the other side in check
+    int n = 0;
+    for (int m : quiet) {
+      ChessGame child = g.getDeepCopy();
+      ChessMove.apply(child, m);
+      if (child.getBoard().getKing(child.getWhoseTurn().getColor()).getIsInCheck()) {
+        if (!contains(checks, m)) {
+          return false;
+        }
+        n++;
+      }
+    }
+    return n == checks.length;
+  }
+
+  private static boolean contains(int[] moves, int move) {
+    for (int m : moves) {
+      if (m == move) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static boolean testTrustedReplay() {
+    System.out.println("\n\ntestTrustedReplay()...");
+    // random games, some ending in mate or stalemate, replayed both ways end up where they were
+    Random r = new Random(50);
+    for (int game = 0; game < 20; game++) {
+      ChessGame played = new ChessGame("Ben", "Maithilee");
+      for (int ply = 0; ply < 200 && !played.isGameOver(); ply++) {
+        int[] moves = played.getLegalMoves();
+        ChessMove.apply(played, moves[r.nextInt(moves.length)]);
+      }
+      int[] history = played.getMoveHistory();
+      for (boolean verify : new boolean[] {true, false}) {
+        ChessGame g = new ChessGame("Ben", "Maithilee");
+        if (!g.replay(history, verify) || g.getPositionHash() != played.getPositionHash()
+            || g.isGameOver() != played.isGameOver() || g.getWinner() != null
+            && !g.getWinner().getName().equals(played.getWinner().getName())
+            || !Arrays.equals(g.getLegalMoves(), played.getLegalMoves())
+            || !Arrays.equals(g.getMoveHistory(), history)) {
+          return false;
+        }
+        // and the replayed moves can be taken back
+        while (g.undo()) {
+        }
+        if (g.getPositionHash() != new ChessGame("Ben", "Maithilee").getPositionHash()
+            || g.getLegalMoves().length != 20) {
+          return false;
+        }
+      }
+    }
+
+    // fool's mate is only noticed at the end, but it is noticed
+    ChessGame g = new ChessGame("Ben", "Maithilee");
+    int[] mate = {ChessMove.parse("f2f3"), ChessMove.parse("e7e5"), ChessMove.parse("g2g4"),
+        ChessMove.parse("d8h4")};
+    if (!g.replay(mate, false) || g.getWinner() == null
+        || !g.getBoard().getKing(ChessColor.WHITE).getIsInCheck()) {
+      return false;
+    }
+    try {
+      g.replay(new int[] {ChessMove.parse("a2a3")}, false);
+      return false;
+    } catch (IllegalStateException e) {
+      // good, the game is over
+    }
+
+    // a move no piece can make stops the replay after the moves before it
+    g = new ChessGame("Ben", "Maithilee");
+    int[] bad = {ChessMove.parse("e2e4"), ChessMove.parse("e7e5"), ChessMove.parse("e4e5")};
+    if (g.replay(bad, false) || g.getMoveHistory().length != 2
+        || g.getWhoseTurn().getColor() != ChessColor.WHITE || g.getLegalMoves().length != 29) {
+      return false;
+    }
+    // only verifying catches a pinned pawn moving off the pin
+    int[] pinned = {ChessMove.parse("e2e4"), ChessMove.parse("d7d5"), ChessMove.parse("f1b5"),
+        ChessMove.parse("c7c6"), ChessMove.parse("d2d3"), ChessMove.parse("c6c5")};
+    g = new ChessGame("Ben", "Maithilee");
+    if (g.replay(pinned, true) || g.getMoveHistory().length != 5) {
+      return false;
+    }
+    return new ChessGame("Ben", "Maithilee").replay(pinned, false);
+  }
+
+  public static boolean testTournament() {
+    System.out.println("\n\ntestTournament()...");
+    // 60/20/20 scores 70%, comfortably above elo1 = 10, but 100 games aren't enough on their own
+    Tournament t = new Tournament(() -> new MaterialEngine(1, 1), () -> new MaterialEngine(1, 2),
+        new ArrayList<int[]>());
+    if (Math.abs(t.lowerBound() - Math.log(0.05 / 0.95)) > 1e-12
+        || Math.abs(t.upperBound() - Math.log(0.95 / 0.05)) > 1e-12
+        || Math.abs(Tournament.llr(new int[] {60, 20, 20}, 0, 10) - 1.7337133) > 1e-6
+        || Tournament.llr(new int[] {120, 40, 40}, 0, 10) < t.upperBound()
+        || Math.abs(Tournament.llr(new int[] {20, 20, 60}, 0, 10) + 1.8630827) > 1e-6
+        || Tournament.llr(new int[] {3, 0, 0}, 0, 10) != 0
+        || Tournament.llr(new int[] {0, 2, 0}, 0, 10) != 0) {
+      return false;
+    }
+
+    // knights out and back twice is a threefold repetition of the start position
+    ChessEngine knights = scriptedEngine("g1f3", "f3g1");
+    ChessEngine knights2 = scriptedEngine("g8f6", "f6g8");
+    if (t.play(knights, knights2, new ChessGame("Ben", "Maithilee"), 0) != Tournament.DRAW) {
+      return false;
+    }
+
+    // an illegal move forfeits, whichever side plays it
+    if (t.play(scriptedEngine("e2e5"), knights2, new ChessGame("Ben", "Maithilee"), 0)
+        != Tournament.LOSS
+        || t.play(scriptedEngine("e2e4"), scriptedEngine("e7e4"),
+            new ChessGame("Ben", "Maithilee"), 0) != Tournament.WIN) {
+      return false;
+    }
+
+    // a queen up for four plies is a win
+    ChessEngine white = new MaterialEngine(2, 1);
+    ChessEngine black = new MaterialEngine(2, 2);
+    ChessBoard b = new ChessBoard(null);
+    b.setSquare(3, 7, null);
+    t.setMaterialAdjudication(5, 4);
+    if (t.play(white, black, PackedPosition.of(b, ChessColor.WHITE).toGame("Ben", "Maithilee"), 0)
+        != Tournament.WIN) {
+      return false;
+    }
+    b = new ChessBoard(null);
+    b.setSquare(3, 0, null);
+    if (t.play(white, black, PackedPosition.of(b, ChessColor.WHITE).toGame("Ben", "Maithilee"), 0)
+        != Tournament.LOSS) {
+      return false;
+    }
+
+    // KQK is decided by the tablebase before anyone moves
+    t.setTablebases(new Tablebase[] {Tablebase.generate('Q', null, null)});
+    b = new ChessBoard(null);
+    for (int x = 0; x < ChessBoard.X_DIM; x++) {
+      for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+        b.setSquare(x, y, null);
+      }
+    }
+    b.setSquare(1, 5, new King(ChessColor.WHITE, b, 1, 5));
+    b.setSquare(2, 0, new Queen(ChessColor.WHITE, b, 2, 0));
+    b.setSquare(0, 7, new King(ChessColor.BLACK, b, 0, 7));
+    if (t.play(scriptedEngine("b6b5"), black,
+        PackedPosition.of(b, ChessColor.BLACK).toGame("Ben", "Maithilee"), 0) != Tournament.WIN) {
+      return false;
+    }
+    b.setSquare(2, 0, null);
+    b.setSquare(2, 7, new Queen(ChessColor.BLACK, b, 2, 7));
+    if (t.play(scriptedEngine("b6b5"), black,
+        PackedPosition.of(b, ChessColor.WHITE).toGame("Ben", "Maithilee"), 0) != Tournament.LOSS) {
+      return false;
+    }
+
+    // the shuffled openings are a permutation that only depends on the seed
+    List<int[]> openings = new ArrayList<int[]>();
+    for (String m : new String[] {"e2e4", "d2d4", "c2c4", "g1f3", "b2b3", "f2f4"}) {
+      openings.add(new int[] {ChessMove.parse(m)});
+    }
+    t = new Tournament(() -> new MaterialEngine(1, 1), () -> new MaterialEngine(1, 2), openings);
+    t.setSeed(7);
+    List<int[]> order = t.openingOrder();
+    if (!order.equals(t.openingOrder()) || order.size() != openings.size()
+        || !order.containsAll(openings) || order.equals(openings)) {
+      return false;
+    }
+
+    // a tiny match plays every game it's asked for
+    t.setThreads(2);
+    t.setMaxPlies(20);
+    try {
+      int[] results = t.run(4);
+      return results[Tournament.WIN] + results[Tournament.DRAW] + results[Tournament.LOSS] == 4;
+    } catch (InterruptedException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns an engine that plays the given moves in a loop, legal or not
+   */
+  private static ChessEngine scriptedEngine(String... moves) {
+    return new ChessEngine() {
+      private int next;
+
+      @Override
+      public String getName() {
+        return "scripted";
+      }
+
+      @Override
+      public int chooseMove(ChessGame game) {
+        return ChessMove.parse(moves[next++ % moves.length]);
+      }
+    };
+  }
+
+  public static boolean testGameServer() {
+    System.out.println("\n\ntestGameServer()...");
+    // games aren't parked, so they keep the move history checked below
+    GameSessionManager manager = new GameSessionManager();
+    manager.setLegalMoveCache(new LegalMoveCache(1 << 10));
+    GameServer server;
+    try {
+      server = new GameServer(manager, 0);
+    } catch (IOException e) {
+      return false;
+    }
+    server.start();
+    String base = "http://localhost:" + server.getPort() + "/games";
+    try {
+      StringBuilder body = new StringBuilder();
+      if (http("POST", base + "?white=Ben&black=Maithilee", body) != 201) {
+        return false;
+      }
+      long id = Long.parseLong(body.toString().replaceAll("^\\{\"id\":(\\d+),.*$", "$1"));
+      String game = base + "/" + id;
+
+      // fool's mate, with an illegal move and an unknown game along the way
+      if (http("POST", game + "/move?move=f2f3", null) != 200
+          || http("POST", game + "/move?move=e2e5", null) != 422
+          || http("POST", base + "/" + (id + 1000) + "/move?move=e7e5", null) != 404
+          || http("GET", base + "/" + (id + 1000), null) != 404
+          || http("POST", game + "/move?move=e7e5", null) != 200
+          || http("POST", game + "/move?move=g2g4", null) != 200
+          || http("POST", game + "/move?move=d8h4", null) != 200
+          || http("POST", game + "/move?move=a2a3", null) != 409
+          || http("GET", game, null) != 200) {
+        return false;
+      }
+
+      // threads racing to play the same line in one game: each move is played exactly once and
+      // the rest get 422, and every thread racing through a game of its own gets 200s only
+      String[] line = {"e2e4", "e7e5", "g1f3", "b8c6", "f1c4", "g8f6", "d2d3", "f8c5"};
+      long shared = manager.createGame("Ben", "Maithilee");
+      long[] own = new long[4];
+      int[] played = new int[own.length];
+      boolean[] sharedOk = new boolean[own.length];
+      boolean[] ownOk = new boolean[own.length];
+      Thread[] threads = new Thread[2 * own.length];
+      for (int i = 0; i < own.length; i++) {
+        int t = i;
+        own[t] = manager.createGame("Ben", "Maithilee");
+        threads[2 * t] = new Thread(() -> {
+          for (String m : line) {
+            int status = http("POST", base + "/" + shared + "/move?move=" + m, null);
+            if (status == 200) {
+              played[t]++;
+            }
+            else if (status != 422) {
+              return;
+            }
+          }
+          sharedOk[t] = true;
+        });
+        threads[2 * t + 1] = new Thread(() -> {
+          for (String m : line) {
+            if (http("POST", base + "/" + own[t] + "/move?move=" + m, null) != 200) {
+              return;
+            }
+          }
+          ownOk[t] = true;
+        });
+      }
+      for (Thread t : threads) {
+        t.start();
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+
+      int[] expected = new int[line.length];
+      for (int i = 0; i < line.length; i++) {
+        expected[i] = ChessMove.parse(line[i]);
+      }
+      int total = 0;
+      for (int i = 0; i < own.length; i++) {
+        total += played[i];
+        int[] history = manager.withGame(own[i], g -> g.getMoveHistory());
+        if (!sharedOk[i] || !ownOk[i] || !Arrays.equals(history, expected)) {
+          return false;
+        }
+      }
+      return total == line.length
+          && Arrays.equals(manager.withGame(shared, g -> g.getMoveHistory()), expected);
+    } catch (InterruptedException e) {
+      return false;
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Sends a request and returns the response status, or -1 if the request failed
+   * @param body if not null, gets the response body
+   */
+  private static int http(String method, String url, StringBuilder body) {
+    try {
+      HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+      c.setRequestMethod(method);
+      int status = c.getResponseCode();
+      InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream();
+      if (in != null) {
+        try (InputStream i = in) {
+          String text = new String(i.readAllBytes(), StandardCharsets.UTF_8);
+          if (body != null) {
+            body.append(text);
+          }
+        }
+      }
+      return status;
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Static helpers for moves packed into a single int. The bit layout is the same one Polyglot uses
+ * for book moves:
+ *    bits 0-2   target x
+ *    bits 3-5   target y
+ *    bits 6-8   source x
+ *    bits 9-11  source y
+ *    bits 12-14 promotion (0 none, 1 knight, 2 bishop, 3 rook, 4 queen)
+ * Castling is packed as the king's own two-square move, the same as ChessGame.nextTurn() takes it.
+ *
+ */
+public class ChessMove {
+  public static final int NONE = -1;
+
+  public static final int PROMO_NONE = 0;
+  public static final int PROMO_KNIGHT = 1;
+  public static final int PROMO_BISHOP = 2;
+  public static final int PROMO_ROOK = 3;
+  public static final int PROMO_QUEEN = 4;
+
+  private static final String PROMO_CODES = " NBRQ";
+
+  private ChessMove() {
+  }
+
+  /**
+   * Packs a move into an int
+   * @param x1 source x
+   * @param y1 source y
+   * @param x2 target x
+   * @param y2 target y
+   * @param promo promotion code (PROMO_NONE if this isn't a promotion)
+   * @return the packed move
+   */
+  public static int of(int x1, int y1, int x2, int y2, int promo) {
+    return x2 | (y2 << 3) | (x1 << 6) | (y1 << 9) | (promo << 12);
+  }
+
+  /**
+   * Packs a non-promoting move into an int
+   */
+  public static int of(int x1, int y1, int x2, int y2) {
+    return of(x1, y1, x2, y2, PROMO_NONE);
+  }
+
+  public static int getFromX(int move) {
+    return (move >>> 6) & 7;
+  }
+
+  public static int getFromY(int move) {
+    return (move >>> 9) & 7;
+  }
+
+  public static int getToX(int move) {
+    return move & 7;
+  }
+
+  public static int getToY(int move) {
+    return (move >>> 3) & 7;
+  }
+
+  public static int getPromotion(int move) {
+    return (move >>> 12) & 7;
+  }
+
+  /**
+   * Returns the ChessGame.promotePawn() code for a promotion
+   * @param promo promotion code (1-4)
+   * @return "N", "B", "R" or "Q"
+   */
+  public static String promotionCode(int promo) {
+    if (promo < PROMO_KNIGHT || promo > PROMO_QUEEN) {
+      throw new IllegalArgumentException("Not a promotion");
+    }
+    return PROMO_CODES.substring(promo, promo + 1);
+  }
+
+  /**
+   * Returns the promotion code for a ChessGame.promotePawn() piece code
+   * @param code "Q", "R", "B" or "N" (either case)
+   * @return PROMO_QUEEN, PROMO_ROOK, PROMO_BISHOP or PROMO_KNIGHT
+   * @throws IllegalArgumentException if the code isn't a promotion piece
+   */
+  public static int promotionFromCode(String code) {
+    int promo = code.length() == 1 ? PROMO_CODES.indexOf(code.toUpperCase()) : -1;
+    if (promo < PROMO_KNIGHT) {
+      throw new IllegalArgumentException("Invalid promotion: " + code);
+    }
+    return promo;
+  }
+
+  /**
+   * Parses a move in long algebraic notation, e.g. "e2e4", "e2:e4" or "e7e8q"
+   * @param text move text
+   * @return the packed move
+   * @throws IllegalArgumentException if the text isn't a move
+   */
+  public static int parse(String text) {
+    String s = text.replace(":", "").replace("=", "");
+    if (s.length() != 4 && s.length() != 5) {
+      throw new IllegalArgumentException("Invalid move: " + text);
+    }
+    int[] src = ChessGame.notationToCoordinates(s.substring(0, 2));
+    int[] tgt = ChessGame.notationToCoordinates(s.substring(2, 4));
+    int promo = PROMO_NONE;
+    if (s.length() == 5) {
+      promo = PROMO_CODES.indexOf(s.substring(4, 5).toUpperCase());
+      if (promo < PROMO_KNIGHT) {
+        throw new IllegalArgumentException("Invalid promotion: " + text);
+      }
+    }
+    return of(src[0], src[1], tgt[0], tgt[1], promo);
+  }
+
+  /**
+   * Returns the long algebraic notation of a packed move, e.g. "e2e4" or "e7e8q"
+   * @param move packed move
+   * @return the move as text
+   */
+  public static String toString(int move) {
+    String files = "abcdefgh";
+    String result = "" + files.charAt(getFromX(move)) + (getFromY(move) + 1)
+        + files.charAt(getToX(move)) + (getToY(move) + 1);
+    if (getPromotion(move) != PROMO_NONE) {
+      result += promotionCode(getPromotion(move)).toLowerCase();
+    }
+    return result;
+  }
+
+  /**
+   * Plays a packed move in the given game, including the follow-up promotion if there is one
+   * @param game game to play the move in
+   * @param move packed move
+   * @return true if the move (and promotion) was legal, false if not
+   */
+  public static boolean apply(ChessGame game, int move) {
+    if (!game.nextTurn(getFromX(move), getFromY(move), getToX(move), getToY(move))) {
+      return false;
+    }
+    if (game.pawnNeedsPromotion()) {
+      int promo = getPromotion(move);
+      // archives sometimes leave off the promotion piece; a queen is what was meant
+      return game.promotePawn(promo == PROMO_NONE ? "Q" : promotionCode(promo));
+    }
+    return true;
+  }
+
+}
@@ -148,6 +148,20 @@ public abstract class ChessPiece {
     this.y = -1;
   }
 
+  /**
+   * Reverses markAsCaptured(), putting the piece back where it was captured (for taking back
+   * moves). The caller puts it back on the board.
+   * @param prevX previous x-position the piece had before it was captured
+   * @param prevY previous y-position the piece had before it was captured
+   */
+  void unmarkAsCaptured(int prevX, int prevY) {
+    this.isCaptured = false;
+    this.x = this.prevX;
+    this.y = this.prevY;
+    this.prevX = prevX;
+    this.prevY = prevY;
+  }
+
   /**
    * Returns the captured status of this piece
    * @return true if the piece is in a captured state, false if not
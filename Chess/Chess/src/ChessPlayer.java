@@ -3,21 +3,24 @@ import java.util.ArrayList;
 public class ChessPlayer {
   private String name;
   private ChessColor color;
-  private ArrayList<ChessPiece> material = new ArrayList<ChessPiece>();
-
-  public ChessPlayer(String name, ChessColor color) {
+  private ChessBoard board; // the player's material is their pieces on this board
+
+  /**
+   * @param name player's name
+   * @param color side the player is on
+   * @param board board of the player's game
+   */
+  public ChessPlayer(String name, ChessColor color, ChessBoard board) {
     this.name = name;
     this.color = color;
-    
+    this.board = board;
   }
 
   public int getTotalMaterialValue() {
     int total = 0;
 
-    for (ChessPiece c : material) {
-      if (c != null && !c.getIsCaptured()) {
-        total += c.getMaterialValue();
-      }
+    for (int i = 0; i < board.getPieceCount(color); i++) {
+      total += board.getPiece(color, i).getMaterialValue();
     }
 
     return total;
@@ -31,8 +34,16 @@ public class ChessPlayer {
     return this.color;
   }
 
+  /**
+   * Returns the player's pieces still on the board, in no particular order
+   * @return a new list of the pieces
+   */
   public ArrayList<ChessPiece> getMaterial() {
-    return this.material;
+    ArrayList<ChessPiece> material = new ArrayList<ChessPiece>();
+    for (int i = 0; i < board.getPieceCount(color); i++) {
+      material.add(board.getPiece(color, i));
+    }
+    return material;
   }
 
   @Override
@@ -40,13 +51,4 @@ public class ChessPlayer {
     return this.getName();
   }
 
-  public void giveMaterial(ChessPiece piece) {
-    this.material.add(piece);
-  }
-  
-  
-  public void removeMaterial(ChessPiece piece) {
-    this.material.remove(piece);
-  }
-
 }
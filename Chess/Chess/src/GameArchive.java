@@ -0,0 +1,117 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Reader for plain-text game archives. Each non-blank line that doesn't start with '#' is one game:
+ * a numeric game id followed by the game's moves in long algebraic notation, e.g.
+ *    1042 e2e4 e7e5 g1f3 b8c6 f1b5
+ * Archives are streamed one game at a time so they can be much larger than the heap.
+ *
+ */
+public class GameArchive {
+
+  /**
+   * One archived game: its id and its packed moves (see ChessMove)
+   */
+  public static class Game {
+    private final long id;
+    private final int[] moves;
+
+    public Game(long id, int[] moves) {
+      this.id = id;
+      this.moves = moves;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public int[] getMoves() {
+      return moves;
+    }
+  }
+
+  private GameArchive() {
+  }
+
+  /**
+   * Reads every game in an archive file and hands it to the given consumer, in file order
+   * @param file archive file
+   * @param consumer called once per game
+   * @throws IOException if the file can't be read
+   * @throws IllegalArgumentException if a line is malformed
+   */
+  public static void forEach(Path file, Consumer<Game> consumer) throws IOException {
+    try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      int lineNo = 0;
+      while ((line = in.readLine()) != null) {
+        lineNo++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        try {
+          consumer.accept(parseGame(line));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException(file + ":" + lineNo + ": " + e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses a single archive line
+   * @param line "<id> <move> <move> ..."
+   * @return the parsed game
+   */
+  public static Game parseGame(String line) {
+    String[] tokens = line.trim().split("\\s+");
+    long id;
+    try {
+      id = Long.parseLong(tokens[0]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Game id must be a number: " + tokens[0]);
+    }
+
+    int[] moves = new int[tokens.length - 1];
+    for (int i = 1; i < tokens.length; i++) {
+      moves[i - 1] = ChessMove.parse(tokens[i]);
+    }
+    return new Game(id, moves);
+  }
+
+  /**
+   * Replays a game from the starting position, checking every move
+   * @param game archived game
+   * @return the ChessGame after the last move
+   * @throws IllegalArgumentException if one of the moves is illegal
+   */
+  public static ChessGame replay(Game game) {
+    return replay(game, true);
+  }
+
+  /**
+   * Replays a game from the starting position
+   * @param game archived game
+   * @param verify false to trust the moves to be legal, which is much faster for archives this
+   * program wrote itself (see ChessGame.replay())
+   * @return the ChessGame after the last move
+   * @throws IllegalArgumentException if one of the moves is illegal (without verify, only moves no
+   * piece could make are caught)
+   */
+  public static ChessGame replay(Game game, boolean verify) {
+    ChessGame g = new ChessGame("White", "Black");
+    if (!g.replay(game.getMoves(), verify)) {
+      int ply = g.getMoveHistory().length;
+      throw new IllegalArgumentException("Game " + game.getId() + ": illegal move "
+          + ChessMove.toString(game.getMoves()[ply]) + " at ply " + (ply + 1));
+    }
+    return g;
+  }
+
+}
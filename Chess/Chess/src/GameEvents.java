@@ -0,0 +1,108 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events emitted by ChessGame, under the "Chess" category in JDK Mission
+ * Control. Every event carries the game id (see ChessGame.setGameId()) and the Zobrist hash of the
+ * position (see ChessGame.getPositionHash()), so slow turns can be tied to the positions they were
+ * played in. Stack traces are left off to keep the events cheap.
+ *
+ * ChessGame asks each event's EventType (TURN, LEGALITY_CHECK, ...) whether it's enabled before
+ * allocating the event, together with GameMetrics.isEnabled(), so while neither a recording nor
+ * the metrics are on it pays for one branch and never allocates an event object. The position
+ * hash is only computed for events that are going to be committed.
+ *
+ */
+public final class GameEvents {
+
+  public static final EventType TURN = EventType.getEventType(Turn.class);
+  public static final EventType LEGALITY_CHECK = EventType.getEventType(LegalityCheck.class);
+  public static final EventType GAME_OVER_CHECK = EventType.getEventType(GameOverCheck.class);
+  public static final EventType PROMOTION = EventType.getEventType(Promotion.class);
+
+  private GameEvents() {
+  }
+
+  @Name("chess.Turn")
+  @Label("Turn")
+  @Category("Chess")
+  @Description("A call to ChessGame.nextTurn(), legal or not")
+  @StackTrace(false)
+  public static class Turn extends Event {
+    @Label("Game Id")
+    long gameId;
+
+    @Label("Move")
+    String move;
+
+    @Label("Position Hash")
+    @Description("Zobrist hash of the position the move was played from")
+    long positionHash;
+
+    @Label("Legal")
+    boolean legal;
+  }
+
+  @Name("chess.LegalityCheck")
+  @Label("Legality Check")
+  @Category("Chess")
+  @Description("A move tried out on the shadow board to see if it leaves the mover in check")
+  @StackTrace(false)
+  @Threshold("10 us") // there are hundreds of these a turn; a recording can lower the threshold
+  public static class LegalityCheck extends Event {
+    @Label("Game Id")
+    long gameId;
+
+    @Label("Move")
+    String move;
+
+    @Label("Position Hash")
+    @Description("Zobrist hash of the position the move was tried from")
+    long positionHash;
+
+    @Label("Legal")
+    boolean legal;
+  }
+
+  @Name("chess.GameOverCheck")
+  @Label("Checkmate/Stalemate Evaluation")
+  @Category("Chess")
+  @Description("Check, checkmate and stalemate detection for the player about to move")
+  @StackTrace(false)
+  public static class GameOverCheck extends Event {
+    @Label("Game Id")
+    long gameId;
+
+    @Label("Position Hash")
+    long positionHash;
+
+    @Label("Outcome")
+    @Description("none, check, checkmate or stalemate")
+    String outcome;
+  }
+
+  @Name("chess.Promotion")
+  @Label("Promotion")
+  @Category("Chess")
+  @Description("A pawn promotion, which finishes the turn that moved the pawn")
+  @StackTrace(false)
+  public static class Promotion extends Event {
+    @Label("Game Id")
+    long gameId;
+
+    @Label("Move")
+    @Description("The pawn's move, with the promotion piece")
+    String move;
+
+    @Label("Position Hash")
+    @Description("Zobrist hash of the position after the promotion")
+    long positionHash;
+  }
+
+}
@@ -0,0 +1,314 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Call counts and latency histograms for the hot paths of move processing (see the operation
+ * constants). Off by default; turn on with -Dchess.metrics=true, setEnabled() or over JMX (see
+ * registerMBean()). Instrumented methods check isEnabled() once and call straight through when
+ * it's off, so disabled metrics cost one predictable branch.
+ *
+ * Histograms are log-linear like HdrHistogram's: exact below 16 ns, then 8 buckets per power of
+ * two, so a recorded latency is within 12.5% of the true one. Recording is lock-free. Threads are
+ * spread over stripes of atomic counters by thread id so they rarely touch the same cells, and the
+ * stripes are added up when the metrics are read. Timings are inclusive: an operation's time
+ * includes the instrumented operations it calls.
+ *
+ */
+public final class GameMetrics {
+  public static final int NEXT_TURN = 0;
+  public static final int TRY_MOVE_ON_SHADOW = 1;
+  public static final int SYNC_SHADOW = 2;
+  public static final int IS_THREATENED = 3;
+  public static final int CHECK_AND_MATE_DETECTION = 4;
+  public static final int OPERATIONS = 5;
+
+  private static final String[] NAMES = {"nextTurn", "tryMoveOnShadow", "syncShadow",
+      "isThreatened", "checkAndMateDetection"};
+
+  private static final int BUCKETS = 16 + 60 * 8; // exact below 16, then 8 per power of two
+  private static final int TOTAL = BUCKETS; // per operation: buckets, total nanos, max nanos
+  private static final int MAX = BUCKETS + 1;
+  private static final int STRIDE = BUCKETS + 2;
+
+  private static final AtomicLongArray[] stripes;
+  private static final int stripeMask;
+  private static volatile boolean enabled = Boolean.getBoolean("chess.metrics");
+
+  static {
+    int n = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1))
+        << 1;
+    stripes = new AtomicLongArray[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new AtomicLongArray(OPERATIONS * STRIDE);
+    }
+    stripeMask = n - 1;
+  }
+
+  private GameMetrics() {
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  public static void setEnabled(boolean enabled) {
+    GameMetrics.enabled = enabled;
+  }
+
+  /**
+   * Returns the display name of an operation
+   */
+  public static String getName(int op) {
+    return NAMES[op];
+  }
+
+  /**
+   * Records one call of an operation. Call sites check isEnabled() first.
+   * @param op operation (one of the constants above)
+   * @param startNanos System.nanoTime() from when the call started
+   */
+  public static void record(int op, long startNanos) {
+    long nanos = Math.max(0, System.nanoTime() - startNanos);
+    @SuppressWarnings("deprecation") // Thread.threadId() is Java 19+
+    AtomicLongArray cells = stripes[(int) Thread.currentThread().getId() & stripeMask];
+    int base = op * STRIDE;
+    cells.incrementAndGet(base + bucket(nanos));
+    cells.addAndGet(base + TOTAL, nanos);
+    if (nanos > cells.get(base + MAX)) {
+      cells.accumulateAndGet(base + MAX, nanos, Math::max);
+    }
+  }
+
+  /**
+   * Returns the histogram bucket of a latency
+   */
+  static int bucket(long nanos) {
+    if (nanos < 16) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos); // at least 4
+    return 16 + (exponent - 4) * 8 + (int) ((nanos >>> (exponent - 3)) & 7);
+  }
+
+  /**
+   * Returns the smallest latency that falls in a bucket
+   */
+  static long bucketLowest(int bucket) {
+    if (bucket < 16) {
+      return bucket;
+    }
+    int exponent = (bucket - 16) / 8 + 4;
+    return (long) (8 + (bucket - 16) % 8) << (exponent - 3);
+  }
+
+  /**
+   * Adds up one operation's histogram over all stripes
+   * @return BUCKETS counts, then the total and the max in nanoseconds
+   */
+  private static long[] snapshot(int op) {
+    long[] sum = new long[STRIDE];
+    int base = op * STRIDE;
+    for (AtomicLongArray cells : stripes) {
+      for (int i = 0; i < STRIDE; i++) {
+        long v = cells.get(base + i);
+        sum[i] = i == MAX ? Math.max(sum[i], v) : sum[i] + v;
+      }
+    }
+    return sum;
+  }
+
+  private static long count(long[] snapshot) {
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      n += snapshot[i];
+    }
+    return n;
+  }
+
+  /**
+   * Returns the number of recorded calls of an operation
+   */
+  public static long getCount(int op) {
+    return count(snapshot(op));
+  }
+
+  /**
+   * Returns the mean latency of an operation, or 0 if it hasn't been called
+   */
+  public static double getMeanNanos(int op) {
+    long[] s = snapshot(op);
+    long n = count(s);
+    return n == 0 ? 0 : (double) s[TOTAL] / n;
+  }
+
+  public static long getMaxNanos(int op) {
+    return snapshot(op)[MAX];
+  }
+
+  /**
+   * Returns a latency percentile of an operation, rounded up to the top of its bucket
+   * @param op operation
+   * @param percentile between 0 and 100
+   * @return latency in nanoseconds, or 0 if the operation hasn't been called
+   */
+  public static long getPercentileNanos(int op, double percentile) {
+    return percentile(snapshot(op), percentile);
+  }
+
+  private static long percentile(long[] s, double percentile) {
+    long n = count(s);
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += s[i];
+      if (seen >= rank) {
+        return i + 1 < BUCKETS ? Math.min(s[MAX], bucketLowest(i + 1) - 1) : s[MAX];
+      }
+    }
+    return s[MAX];
+  }
+
+  /**
+   * Clears every count and histogram. Calls being recorded at the same time may be half-cleared.
+   */
+  public static void reset() {
+    for (AtomicLongArray cells : stripes) {
+      for (int i = 0; i < cells.length(); i++) {
+        cells.set(i, 0);
+      }
+    }
+  }
+
+  /**
+   * Returns a text table of every operation's count and latencies
+   */
+  public static String dump() {
+    StringBuilder out = new StringBuilder(String.format("%-22s %12s %10s %10s %10s %10s %12s%n",
+        "operation", "count", "mean ns", "p50 ns", "p90 ns", "p99 ns", "max ns"));
+    for (int op = 0; op < OPERATIONS; op++) {
+      long[] s = snapshot(op);
+      long n = count(s);
+      out.append(String.format("%-22s %12d %10.0f %10d %10d %10d %12d%n", NAMES[op], n,
+          n == 0 ? 0.0 : (double) s[TOTAL] / n, percentile(s, 50), percentile(s, 90),
+          percentile(s, 99), s[MAX]));
+    }
+    if (!enabled) {
+      out.append("(metrics are disabled)").append(System.lineSeparator());
+    }
+    return out.toString();
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server as chess:type=GameMetrics. Registering
+   * twice is harmless.
+   */
+  public static void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+          new ObjectName("chess:type=GameMetrics"));
+    } catch (InstanceAlreadyExistsException e) {
+      // already registered
+    } catch (JMException e) {
+      throw new IllegalStateException("Can't register the metrics MBean", e);
+    }
+  }
+
+  /**
+   * JMX view of the metrics
+   */
+  public interface GameMetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    Map<String, Long> getCounts();
+
+    Map<String, Double> getMeanNanos();
+
+    Map<String, Long> getP50Nanos();
+
+    Map<String, Long> getP99Nanos();
+
+    Map<String, Long> getMaxNanos();
+
+    String dump();
+
+    void reset();
+  }
+
+  private static class Bean implements GameMetricsMXBean {
+    @Override
+    public boolean isEnabled() {
+      return GameMetrics.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+      GameMetrics.setEnabled(enabled);
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+      Map<String, Long> m = new LinkedHashMap<String, Long>();
+      for (int op = 0; op < OPERATIONS; op++) {
+        m.put(NAMES[op], getCount(op));
+      }
+      return m;
+    }
+
+    @Override
+    public Map<String, Double> getMeanNanos() {
+      Map<String, Double> m = new LinkedHashMap<String, Double>();
+      for (int op = 0; op < OPERATIONS; op++) {
+        m.put(NAMES[op], GameMetrics.getMeanNanos(op));
+      }
+      return m;
+    }
+
+    @Override
+    public Map<String, Long> getP50Nanos() {
+      return percentiles(50);
+    }
+
+    @Override
+    public Map<String, Long> getP99Nanos() {
+      return percentiles(99);
+    }
+
+    private Map<String, Long> percentiles(double percentile) {
+      Map<String, Long> m = new LinkedHashMap<String, Long>();
+      for (int op = 0; op < OPERATIONS; op++) {
+        m.put(NAMES[op], getPercentileNanos(op, percentile));
+      }
+      return m;
+    }
+
+    @Override
+    public Map<String, Long> getMaxNanos() {
+      Map<String, Long> m = new LinkedHashMap<String, Long>();
+      for (int op = 0; op < OPERATIONS; op++) {
+        m.put(NAMES[op], GameMetrics.getMaxNanos(op));
+      }
+      return m;
+    }
+
+    @Override
+    public String dump() {
+      return GameMetrics.dump();
+    }
+
+    @Override
+    public void reset() {
+      GameMetrics.reset();
+    }
+  }
+
+}
@@ -0,0 +1,346 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP front end for a GameSessionManager, using the JDK's built-in HttpServer. Endpoints:
+ *    POST   /games?white=NAME&black=NAME    start a game, returns its state (including its id)
+ *    GET    /games/ID                       state of a game
+ *    POST   /games/ID/move?move=e2e4        play a move ("e7e8q" to promote)
+ *    GET    /games/ID/moves[?square=e2]     legal moves, e.g. to show as hints
+ *    DELETE /games/ID                       stop hosting a game
+ *    GET    /metrics                        hot path metrics as text (see GameMetrics), and
+ *                                           the legal move cache's hit rate
+ * Responses are small JSON objects, sent once the change is journalled when the manager has a
+ * journal. Every request runs on its own virtual thread when the JVM has them (Java 21+), and on a
+ * thread pool otherwise.
+ *
+ */
+public class GameServer {
+  private final GameSessionManager manager;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  static {
+    // the JDK server writes headers and body separately, so without TCP_NODELAY each response
+    // sits out the client's delayed ACK (about 40 ms). Read once, when the first server is made.
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+  }
+
+  /**
+   * Creates a server (call start() to begin serving)
+   * @param manager games to serve
+   * @param port TCP port to listen on (0 picks a free one)
+   * @throws IOException if the port can't be bound
+   */
+  public GameServer(GameSessionManager manager, int port) throws IOException {
+    this.manager = manager;
+    this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+    this.executor = newRequestExecutor();
+    server.setExecutor(executor);
+    server.createContext("/games", this::handle);
+    server.createContext("/metrics", this::handleMetrics);
+  }
+
+  /**
+   * Returns a virtual-thread-per-task executor if this JVM has one, else a fixed thread pool.
+   * Looked up reflectively so the project still builds on Java 11.
+   */
+  private static ExecutorService newRequestExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(4 * Runtime.getRuntime().availableProcessors());
+    }
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  /**
+   * Returns the port the server is listening on
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  private void handle(HttpExchange ex) throws IOException {
+    try {
+      String[] path = ex.getRequestURI().getPath().split("/"); // "", "games", id, action
+      Map<String, String> params = parseQuery(ex.getRequestURI().getRawQuery());
+      String method = ex.getRequestMethod();
+
+      if (path.length == 2 && method.equals("POST")) {
+        String white = params.getOrDefault("white", "White");
+        String black = params.getOrDefault("black", "Black");
+        long id = manager.createGame(white, black);
+        respond(ex, 201, manager.withGame(id, g -> toJson(id, g)));
+      }
+      else if (path.length == 3 && method.equals("GET")) {
+        long id = Long.parseLong(path[2]);
+        respond(ex, 200, manager.withGame(id, g -> toJson(id, g)));
+      }
+      else if (path.length == 3 && method.equals("DELETE")) {
+        long id = Long.parseLong(path[2]);
+        if (!manager.removeGame(id)) {
+          throw new IllegalArgumentException("No game with id " + id);
+        }
+        respond(ex, 204, null);
+      }
+      else if (path.length == 4 && path[3].equals("move") && method.equals("POST")) {
+        long id = Long.parseLong(path[2]);
+        String move = params.get("move");
+        if (move == null) {
+          respond(ex, 400, error("Missing move parameter"));
+          return;
+        }
+        if (!manager.move(id, move)) {
+          respond(ex, 422, error("Illegal move"));
+        }
+        else {
+          respond(ex, 200, manager.withGame(id, g -> toJson(id, g)));
+        }
+      }
+      else if (path.length == 4 && path[3].equals("moves") && method.equals("GET")) {
+        long id = Long.parseLong(path[2]);
+        String square = params.get("square");
+        respond(ex, 200, manager.withGame(id, g -> movesJson(square == null ? g.getLegalMoves()
+            : g.getLegalMoves(square))));
+      }
+      else {
+        respond(ex, 404, error("Unknown endpoint"));
+      }
+    } catch (NumberFormatException e) {
+      respond(ex, 400, error("Invalid game id"));
+    } catch (IllegalArgumentException e) {
+      respond(ex, e.getMessage() != null && e.getMessage().startsWith("No game") ? 404 : 400,
+          error(e.getMessage()));
+    } catch (IllegalStateException e) {
+      respond(ex, 409, error(e.getMessage()));
+    } catch (RuntimeException e) {
+      respond(ex, 500, error(e.toString()));
+    } finally {
+      ex.close();
+    }
+  }
+
+  private void handleMetrics(HttpExchange ex) throws IOException {
+    try {
+      String text = GameMetrics.dump();
+      if (manager.getLegalMoveCache() != null) {
+        text += manager.getLegalMoveCache() + System.lineSeparator();
+      }
+      byte[] body = text.getBytes(StandardCharsets.UTF_8);
+      ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      ex.sendResponseHeaders(200, body.length);
+      try (OutputStream out = ex.getResponseBody()) {
+        out.write(body);
+      }
+    } finally {
+      ex.close();
+    }
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query == null) {
+      return params;
+    }
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0) {
+        params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+      }
+    }
+    return params;
+  }
+
+  private static String toJson(long id, ChessGame g) {
+    ChessColor turn = g.getWhoseTurn().getColor();
+    return "{\"id\":" + id
+        + ",\"turn\":\"" + turn + "\""
+        + ",\"check\":" + g.getBoard().getKing(turn).getIsInCheck()
+        + ",\"promotionPending\":" + g.pawnNeedsPromotion()
+        + ",\"over\":" + g.isGameOver()
+        + ",\"winner\":" + (g.getWinner() == null ? "null" : "\"" + g.getWinner().getColor() + "\"")
+        + ",\"stalemate\":" + g.getIsStalemate()
+        + ",\"hash\":\"" + Long.toHexString(g.getPositionHash()) + "\"}";
+  }
+
+  private static String movesJson(int[] moves) {
+    StringBuilder json = new StringBuilder("{\"moves\":[");
+    for (int i = 0; i < moves.length; i++) {
+      json.append(i == 0 ? "\"" : ",\"").append(ChessMove.toString(moves[i])).append('"');
+    }
+    return json.append("]}").toString();
+  }
+
+  private static String error(String message) {
+    return "{\"error\":\"" + String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"")
+        + "\"}";
+  }
+
+  private static void respond(HttpExchange ex, int status, String body) throws IOException {
+    if (body == null) {
+      ex.sendResponseHeaders(status, -1);
+      return;
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    ex.getResponseHeaders().set("Content-Type", "application/json");
+    ex.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = ex.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Starts a server, or with "bench" runs a latency benchmark against a local one:
+   *    GameServer [port] [journal directory]
+   *    GameServer bench [games] [client threads]
+   * The bench defaults to one client thread per core; with more, the client-side latencies mostly
+   * measure requests queueing for a CPU. With a journal directory, games survive restarts and a
+   * snapshot is taken every minute. Run with -Dchess.metrics=true to collect the metrics shown at
+   * /metrics and over JMX.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("bench")) {
+      int games = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+      int clients = args.length > 2 ? Integer.parseInt(args[2])
+          : Runtime.getRuntime().availableProcessors();
+      bench(games, clients);
+      return;
+    }
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+    GameSessionManager manager;
+    if (args.length > 1) {
+      long start = System.nanoTime();
+      manager = new GameSessionManager(Paths.get(args[1]));
+      System.out.printf("Recovered %d games in %.1f s%n", manager.size(),
+          (System.nanoTime() - start) / 1e9);
+      ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "journal-checkpoint");
+        t.setDaemon(true);
+        return t;
+      });
+      checkpoints.scheduleWithFixedDelay(() -> {
+        try {
+          manager.checkpoint();
+        } catch (IOException e) {
+          System.err.println("Checkpoint failed: " + e);
+        }
+      }, 1, 1, TimeUnit.MINUTES);
+    }
+    else {
+      manager = new GameSessionManager();
+    }
+    manager.setParkIdleGames(true); // hosted games sit idle far more than they're played
+    manager.setLegalMoveCache(new LegalMoveCache(1 << 16));
+    GameMetrics.registerMBean();
+    GameServer s = new GameServer(manager, port);
+    s.start();
+    System.out.println("Serving games on port " + s.getPort());
+  }
+
+  /**
+   * Creates the given number of active games, then has several client threads play the first few
+   * moves of each over HTTP and reports the move latency distribution, both round trip as the
+   * clients see it and the server's own nextTurn time from GameMetrics
+   */
+  private static void bench(int games, int clients) throws Exception {
+    GameMetrics.setEnabled(true);
+    GameMetrics.reset();
+    GameSessionManager manager = new GameSessionManager();
+    GameServer s = new GameServer(manager, 0);
+    s.start();
+    long[] ids = new long[games];
+    for (int i = 0; i < games; i++) {
+      ids[i] = manager.createGame("White", "Black");
+    }
+
+    HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(clients))
+        .build();
+    String base = "http://localhost:" + s.getPort() + "/games/";
+    String[] opening = {"e2e4", "e7e5", "g1f3", "b8c6"};
+    ExecutorService pool = Executors.newFixedThreadPool(clients);
+    List<Future<long[]>> parts = new ArrayList<Future<long[]>>();
+
+    for (int c = 0; c < clients; c++) {
+      final int first = c;
+      parts.add(pool.submit(() -> {
+        List<Long> latencies = new ArrayList<Long>();
+        for (int i = first; i < games; i += clients) {
+          for (String move : opening) {
+            URI uri = URI.create(base + ids[i] + "/move?move=" + move);
+            HttpRequest req = HttpRequest.newBuilder(uri)
+                .POST(HttpRequest.BodyPublishers.noBody()).build();
+            long t0 = System.nanoTime();
+            HttpResponse<String> resp = client.send(req, HttpResponse.BodyHandlers.ofString());
+            latencies.add(System.nanoTime() - t0);
+            if (resp.statusCode() != 200) {
+              throw new IllegalStateException("Unexpected response " + resp.body());
+            }
+          }
+        }
+        long[] out = new long[latencies.size()];
+        for (int i = 0; i < out.length; i++) {
+          out[i] = latencies.get(i);
+        }
+        return out;
+      }));
+    }
+
+    List<long[]> all = new ArrayList<long[]>();
+    int total = 0;
+    for (Future<long[]> f : parts) {
+      all.add(f.get());
+      total += all.get(all.size() - 1).length;
+    }
+    long[] latencies = new long[total];
+    int k = 0;
+    for (long[] part : all) {
+      System.arraycopy(part, 0, latencies, k, part.length);
+      k += part.length;
+    }
+    Arrays.sort(latencies);
+    System.out.printf("%d active games, %d moves, %d clients: round trip median %.3f ms, p99 %.3f"
+        + " ms, max %.3f ms; server nextTurn median %.3f ms, p99 %.3f ms%n", manager.size(), total,
+        clients, latencies[total / 2] / 1e6, latencies[(int) (total * 0.99)] / 1e6,
+        latencies[total - 1] / 1e6, GameMetrics.getPercentileNanos(GameMetrics.NEXT_TURN, 50) / 1e6,
+        GameMetrics.getPercentileNanos(GameMetrics.NEXT_TURN, 99) / 1e6);
+    System.out.print(GameMetrics.dump());
+
+    pool.shutdown();
+    s.stop();
+    System.exit(0); // the HttpClient's selector thread isn't a daemon
+  }
+
+}
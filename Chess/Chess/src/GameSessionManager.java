@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Owns many concurrent ChessGame instances keyed by id. ChessGame isn't thread-safe, so every game
+ * has its own lock: requests for the same game run one at a time, while requests for different
+ * games never wait on each other. Locks are ReentrantLocks rather than synchronized blocks so
+ * waiting virtual threads don't pin their carrier threads.
+ *
+ * A manager can be backed by a MoveJournal, in which case every creation, move and removal is
+ * journalled and only reported back once it's durable, and the games are rebuilt from the journal
+ * when the manager is created again after a restart or crash.
+ *
+ * With setParkIdleGames(true), a game that isn't being used is kept as a PackedPosition (a few
+ * dozen bytes) instead of a ChessGame with two boards of piece objects (several KB), and is turned
+ * back into a ChessGame for each request. That trades a few microseconds per request for fitting
+ * far more games in the heap. A parked game keeps its position, turn, castling and en passant
+ * rights and its game id, but not its undo/redo history, and a game waiting on a promotion choice
+ * isn't parked until the choice is made.
+ *
+ * setLegalMoveCache() gives every hosted game the same LegalMoveCache, so a position's legal moves
+ * are only generated once however many games reach it.
+ *
+ */
+public class GameSessionManager {
+
+  /**
+   * One hosted game and the lock that serialises access to it
+   */
+  private static class Session {
+    private final long id;
+    private final String white;
+    private final String black;
+    private final ReentrantLock lock = new ReentrantLock();
+    // the game, or null while it's parked as position; both guarded by lock
+    private ChessGame game;
+    private PackedPosition position;
+    // journalled form of the game, guarded by lock (null without a journal)
+    private final MoveJournal.GameState state;
+
+    Session(long id, String white, String black, ChessGame game, MoveJournal.GameState state) {
+      this.id = id;
+      this.white = white;
+      this.black = black;
+      this.game = game;
+      this.state = state;
+    }
+
+    /**
+     * Returns the game, unparking it if need be. Call with the lock held.
+     */
+    ChessGame open(LegalMoveCache cache) {
+      if (game == null) {
+        game = position.toGame(white, black);
+        game.setGameId(id);
+        position = null;
+      }
+      game.setLegalMoveCache(cache);
+      return game;
+    }
+
+    /**
+     * Parks the game unless it's waiting on a promotion choice. Call with the lock held.
+     */
+    void park() {
+      if (game != null && !game.pawnNeedsPromotion()) {
+        position = game.getPackedPosition();
+        game = null;
+      }
+    }
+  }
+
+  private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+  private final AtomicLong nextId = new AtomicLong(1);
+  private final MoveJournal journal;
+  private volatile boolean parkIdleGames = false;
+  private volatile LegalMoveCache legalMoveCache;
+
+  /**
+   * Creates a manager that keeps its games only in memory
+   */
+  public GameSessionManager() {
+    this.journal = null;
+  }
+
+  /**
+   * Creates a manager backed by a journal, first rebuilding every game the journal holds
+   * @param journalDir journal directory (see MoveJournal)
+   * @throws IOException if the journal can't be opened
+   * @throws IllegalStateException if a journalled game can't be replayed
+   */
+  public GameSessionManager(Path journalDir) throws IOException {
+    this.journal = MoveJournal.open(journalDir);
+    List<MoveJournal.GameState> games = journal.getRecoveredGames();
+    // games are independent, so replay them in parallel
+    games.parallelStream().forEach(state -> {
+      ChessGame g = new ChessGame(state.getWhite(), state.getBlack());
+      g.setGameId(state.getId());
+      // every journalled move was checked when it was played, so there's no need to again
+      if (!g.replay(state.getMoves(), false)) {
+        int m = state.getMoves()[g.getMoveHistory().length];
+        throw new IllegalStateException("Journalled move " + ChessMove.toString(m)
+            + " is illegal in game " + state.getId());
+      }
+      sessions.put(state.getId(), new Session(state.getId(), state.getWhite(), state.getBlack(), g,
+          state));
+    });
+    nextId.set(journal.getRecoveredMaxId() + 1);
+  }
+
+  /**
+   * Starts a new game
+   * @param white name of the player on white
+   * @param black name of the player on black
+   * @return id of the new game
+   */
+  public long createGame(String white, String black) {
+    long id = nextId.getAndIncrement();
+    MoveJournal.GameState state = journal == null ? null
+        : new MoveJournal.GameState(id, white, black, new int[0]);
+    ChessGame game = new ChessGame(white, black);
+    game.setGameId(id);
+    // put before logging so a concurrent checkpoint can't miss the game (see MoveJournal)
+    Session s = new Session(id, white, black, game, state);
+    if (parkIdleGames) {
+      s.park();
+    }
+    sessions.put(id, s);
+    if (journal != null) {
+      awaitDurable(journal.logCreate(id, white, black));
+    }
+    return id;
+  }
+
+  /**
+   * Stops hosting a game
+   * @param id id of the game
+   * @return true if the game existed
+   */
+  public boolean removeGame(long id) {
+    if (sessions.remove(id) == null) {
+      return false;
+    }
+    if (journal != null) {
+      awaitDurable(journal.logRemove(id));
+    }
+    return true;
+  }
+
+  /**
+   * Sets whether games are parked in packed form between requests (see the class comment).
+   * Turning it on parks every game that isn't in use.
+   */
+  public void setParkIdleGames(boolean parkIdleGames) {
+    this.parkIdleGames = parkIdleGames;
+    if (!parkIdleGames) {
+      return; // parked games are unparked as they're used
+    }
+    for (Session s : sessions.values()) {
+      if (s.lock.tryLock()) { // one in use gets parked when its request finishes
+        try {
+          s.park();
+        }
+        finally {
+          s.lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the legal move cache shared by every hosted game, from their next request on
+   * @param legalMoveCache the cache, or null for none
+   */
+  public void setLegalMoveCache(LegalMoveCache legalMoveCache) {
+    this.legalMoveCache = legalMoveCache;
+  }
+
+  public LegalMoveCache getLegalMoveCache() {
+    return legalMoveCache;
+  }
+
+  /**
+   * Returns the number of hosted games
+   */
+  public int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Runs an action against one game while holding that game's lock. Moves made this way aren't
+   * journalled; use move() for that.
+   * @param id id of the game
+   * @param action action to run; must not keep a reference to the game
+   * @return whatever the action returns
+   * @throws IllegalArgumentException if there's no game with this id
+   */
+  public <T> T withGame(long id, Function<ChessGame, T> action) {
+    Session s = sessions.get(id);
+    if (s == null) {
+      throw new IllegalArgumentException("No game with id " + id);
+    }
+    s.lock.lock();
+    try {
+      return action.apply(s.open(legalMoveCache));
+    }
+    finally {
+      if (parkIdleGames) {
+        s.park();
+      }
+      s.lock.unlock();
+    }
+  }
+
+  /**
+   * Plays a move, including the promotion choice if the move promotes a pawn
+   * @param id id of the game
+   * @param move move in long algebraic notation, e.g. "e2e4" or "e7e8q"
+   * @return true if the move was legal, false if not
+   * @throws IllegalArgumentException if there's no such game or the move can't be read
+   * @throws IllegalStateException if the game is already over
+   */
+  public boolean move(long id, String move) {
+    int m = ChessMove.parse(move);
+    Session s = sessions.get(id);
+    if (s == null) {
+      throw new IllegalArgumentException("No game with id " + id);
+    }
+    long seq;
+    s.lock.lock();
+    try {
+      if (!ChessMove.apply(s.open(legalMoveCache), m)) {
+        return false;
+      }
+      if (journal == null) {
+        return true;
+      }
+      // replaying through ChessMove.apply makes the same default promotion choice
+      seq = journal.logMove(id, s.state.getNumMoves(), m);
+      s.state.addMove(m);
+    }
+    finally {
+      if (parkIdleGames) {
+        s.park();
+      }
+      s.lock.unlock();
+    }
+    // wait outside the lock so other moves in this game can join the same fsync batch
+    awaitDurable(seq);
+    return true;
+  }
+
+  /**
+   * Writes a journal snapshot of every game so recovery doesn't have to replay the whole journal.
+   * Games keep running while it's written.
+   * @throws IOException if the snapshot can't be written
+   * @throws IllegalStateException if there's no journal
+   */
+  public void checkpoint() throws IOException {
+    if (journal == null) {
+      throw new IllegalStateException("No journal");
+    }
+    journal.checkpoint(() -> {
+      List<MoveJournal.GameState> states = new ArrayList<MoveJournal.GameState>();
+      for (Session s : sessions.values()) {
+        s.lock.lock();
+        try {
+          MoveJournal.GameState st = s.state;
+          states.add(new MoveJournal.GameState(st.getId(), st.getWhite(), st.getBlack(),
+              Arrays.copyOf(st.getMoves(), st.getNumMoves())));
+        }
+        finally {
+          s.lock.unlock();
+        }
+      }
+      return states;
+    });
+  }
+
+  /**
+   * Flushes and closes the journal, if there is one
+   */
+  public void close() throws IOException {
+    if (journal != null) {
+      journal.close();
+    }
+  }
+
+  private void awaitDurable(long seq) {
+    try {
+      journal.awaitDurable(seq);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+}
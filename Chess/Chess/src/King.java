@@ -56,10 +56,7 @@ public class King extends ChessPiece {
    * @return true if x,y is exactly one space away
    */
   private boolean isAdjacentSquare(int x, int y) {
-    int dx = Math.abs(this.getX() - x);
-    int dy = Math.abs(this.getY() - y);
-
-    return (dx <= 1 && dy <= 1 && dx + dy > 0);
+    return AttackTables.contains(AttackTables.king(this.getX(), this.getY()), x, y);
   }
 
   /**
@@ -243,17 +240,44 @@ public class King extends ChessPiece {
    */
   public ArrayList<Integer[]> getPossibleMovesOrCaptures() {
     ArrayList<Integer[]> moves = new ArrayList<Integer[]>();
-    for (int x = this.getX() - 1; x < this.getX() + 2; x++) {
-      for (int y = this.getY() - 1; y < this.getY() + 2; y++) {
-        if (this.canMove(x, y) || this.canCapture(x, y)) {
-          moves.add(new Integer[] {x, y});
-        }
+    ChessPiece target;
+    // every adjacent square from the table that's empty or holds an enemy piece
+    for (long m = AttackTables.king(this.getX(), this.getY()); m != 0; m &= m - 1) {
+      int sq = Long.numberOfTrailingZeros(m);
+      target = this.board.getSquare(sq % 8, sq / 8);
+      if (target == null || target.getColor() != this.getColor()) {
+        moves.add(new Integer[] {sq % 8, sq / 8});
       }
     }
 
+    // castling (canCastle...() bails out early once the king has moved)
+    if (this.canCastleKingside(this.getX() + 2, this.getY())) {
+      moves.add(new Integer[] {this.getX() + 2, this.getY()});
+    }
+    if (this.canCastleQueenside(this.getX() - 2, this.getY())) {
+      moves.add(new Integer[] {this.getX() - 2, this.getY()});
+    }
+
     return moves;
   }
 
+  /**
+   * Returns whether this King has moved or captured
+   * @return true if this King has moved or captured, false if not
+   */
+  public boolean getHasMovedOrCaptured() {
+    return this.hasMovedOrCaptured;
+  }
+
+  /**
+   * Sets whether this King has moved or captured, for setting up positions and
+   * taking back moves
+   * @param hasMovedOrCaptured true if the king has lost its castling rights
+   */
+  void setHasMovedOrCaptured(boolean hasMovedOrCaptured) {
+    this.hasMovedOrCaptured = hasMovedOrCaptured;
+  }
+
   /**
    * Returns the in-check status of this king
    * @return true if this king is in check, false if not
@@ -30,34 +30,19 @@ public class Knight extends ChessPiece {
   }
   
   private boolean isKnightMove(int x, int y) {
-    int dx = Math.abs(getX() - x);
-    int dy = Math.abs(getY() - y);
-    return Math.min(dx, dy) == 1 && Math.max(dx, dy) == 2;
+    return AttackTables.contains(AttackTables.knight(getX(), getY()), x, y);
   }
 
   @Override
   public ArrayList<Integer[]> getPossibleMovesOrCaptures() {
     ArrayList<Integer[]> moves = new ArrayList<Integer[]>();
-    int[] flip = new int[] {1, -1};
-    int [] vals = new int[] {1, 2};
-    int dx, dy;
-    int x2, y2;
-    for (int i : flip) {
-      for (int j : vals) {
-        dx = i * j; // goes through 1, 2, -1, -2
-        for (int k : flip) {
-          if (Math.abs(dx) == 1) {
-            dy = k * 2; // 2, -2 if |dx| is 1
-          }
-          else {
-            dy = k * 1; // 1, -1 if |dx| is 2
-          }
-          x2 = getX() + dx;
-          y2 = getY() + dy;
-          if (this.canMove(x2, y2) || this.canCapture(x2, y2)) {
-            moves.add(new Integer[] {x2, y2});
-          }
-        }
+    ChessPiece target;
+    // every target from the table that's empty or holds an enemy piece
+    for (long m = AttackTables.knight(getX(), getY()); m != 0; m &= m - 1) {
+      int sq = Long.numberOfTrailingZeros(m);
+      target = this.board.getSquare(sq % 8, sq / 8);
+      if (target == null || target.getColor() != this.getColor()) {
+        moves.add(new Integer[] {sq % 8, sq / 8});
       }
     }
     return moves;
@@ -0,0 +1,178 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache from positions to their legal moves, shared by any number of games and threads
+ * (see ChessGame.setLegalMoveCache()). Positions that come up in many games, like opening lines and
+ * common endgames, then only have their moves generated once.
+ *
+ * The slots are split into sets of WAYS picked by the position's hash, and each set evicts with its
+ * own CLOCK: a hit sets the entry's referenced bit, and inserting into a full set sweeps the set's
+ * hand past referenced entries, clearing their bits, to the first one that hasn't been used since
+ * the last sweep. Lookups and inserts only touch one set, with a CAS per slot and no locks, so
+ * threads working on different positions don't contend. Two threads missing on the same position
+ * both generate its moves and one insert wins, which is harmless. Entries are keyed by the whole
+ * PackedPosition, so a hash collision can't hand back another position's moves.
+ *
+ */
+public final class LegalMoveCache {
+  private static final int WAYS = 8;
+
+  private static final class Entry {
+    private final PackedPosition position;
+    private final int[] moves;
+    private volatile boolean referenced;
+
+    Entry(PackedPosition position, int[] moves) {
+      this.position = position;
+      this.moves = moves;
+    }
+  }
+
+  private final AtomicReferenceArray<Entry> slots;
+  private final AtomicIntegerArray hands; // CLOCK hand of each set
+  private final int setMask;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates an empty cache
+   * @param capacity most positions to hold, rounded down to a power of two (at least WAYS)
+   */
+  public LegalMoveCache(int capacity) {
+    int sets = Integer.highestOneBit(Math.max(1, capacity / WAYS));
+    slots = new AtomicReferenceArray<Entry>(sets * WAYS);
+    hands = new AtomicIntegerArray(sets);
+    setMask = sets - 1;
+  }
+
+  private int firstSlot(PackedPosition position) {
+    int h = position.hashCode();
+    return ((h ^ (h >>> 16)) & setMask) * WAYS;
+  }
+
+  /**
+   * Looks up the legal moves of a position
+   * @param position position to look up
+   * @return packed moves (see ChessMove), shared with every other caller so never to be modified,
+   * or null if the position isn't cached
+   */
+  public int[] get(PackedPosition position) {
+    int first = firstSlot(position);
+    for (int i = first; i < first + WAYS; i++) {
+      Entry e = slots.get(i);
+      if (e != null && e.position.equals(position)) {
+        if (!e.referenced) {
+          e.referenced = true; // only write when it changes, to keep the cache line shared
+        }
+        hits.increment();
+        return e.moves;
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Caches the legal moves of a position, possibly evicting another
+   * @param position position
+   * @param moves its packed legal moves, which the cache keeps and shares, so the caller mustn't
+   * modify them afterwards
+   */
+  public void put(PackedPosition position, int[] moves) {
+    int first = firstSlot(position);
+    Entry added = new Entry(position, moves);
+    for (int i = first; i < first + WAYS; i++) {
+      Entry e = slots.get(i);
+      if (e == null && slots.compareAndSet(i, null, added)) {
+        return;
+      }
+      if (e != null && e.position.equals(position)) {
+        return; // another thread got there first
+      }
+    }
+
+    // the set is full: sweep its hand round, giving referenced entries a second chance
+    int set = first / WAYS;
+    for (int n = 0; n < 2 * WAYS; n++) {
+      int i = first + (hands.getAndIncrement(set) & (WAYS - 1));
+      Entry e = slots.get(i);
+      if (e != null && e.referenced) {
+        e.referenced = false;
+      }
+      else if (slots.compareAndSet(i, e, added)) {
+        if (e != null) {
+          evictions.increment();
+        }
+        return;
+      }
+    }
+    // everything in the set kept getting used while we swept; dropping the insert is fine
+  }
+
+  /**
+   * Returns the most positions the cache holds
+   */
+  public int getCapacity() {
+    return slots.length();
+  }
+
+  /**
+   * Returns the number of positions cached right now
+   */
+  public int size() {
+    int n = 0;
+    for (int i = 0; i < slots.length(); i++) {
+      if (slots.get(i) != null) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * Returns the share of lookups that were hits, or 0 before the first lookup
+   */
+  public double getHitRate() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  /**
+   * Empties the cache and zeroes its counts
+   */
+  public void clear() {
+    for (int i = 0; i < slots.length(); i++) {
+      slots.set(i, null);
+    }
+    hits.reset();
+    misses.reset();
+    evictions.reset();
+  }
+
+  /**
+   * Returns a one-line summary of the cache's counts, e.g. for a metrics page
+   */
+  @Override
+  public String toString() {
+    return String.format("legal move cache: %d/%d positions, %d hits, %d misses (%.1f%% hits), "
+        + "%d evictions", size(), getCapacity(), getHitCount(), getMissCount(),
+        100 * getHitRate(), getEvictionCount());
+  }
+
+}
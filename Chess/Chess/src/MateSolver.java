@@ -0,0 +1,371 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Proves or disproves "mate in N" for the side to move using proof-number search, and reports
+ * every first move that forces mate so puzzles can be checked for a unique solution.
+ *
+ * Each first move gets its own search over an explicit tree kept in fixed-size primitive arrays,
+ * so a search that runs out of nodes stops with an UNKNOWN result instead of growing without
+ * bound. Positions aren't stored in the tree; they're rebuilt by replaying moves from the root.
+ *
+ */
+public class MateSolver {
+  private static final int INF = Integer.MAX_VALUE / 2;
+
+  /**
+   * Outcome of a search
+   */
+  public enum Status {
+    MATE,
+    NO_MATE,
+    UNKNOWN
+  }
+
+  /**
+   * Result of solving one position
+   */
+  public static class Result {
+    private final Status status;
+    private final int[] matingMoves;
+    private final boolean complete;
+    private final long nodes;
+
+    Result(Status status, int[] matingMoves, boolean complete, long nodes) {
+      this.status = status;
+      this.matingMoves = matingMoves;
+      this.complete = complete;
+      this.nodes = nodes;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    /**
+     * Returns every first move proven to force mate (see ChessMove)
+     */
+    public int[] getMatingMoves() {
+      return matingMoves;
+    }
+
+    /**
+     * Returns whether every first move was either proven or disproven
+     */
+    public boolean isComplete() {
+      return complete;
+    }
+
+    /**
+     * Returns whether exactly one first move mates and every other one was disproven
+     */
+    public boolean isUnique() {
+      return complete && matingMoves.length == 1;
+    }
+
+    public long getNodes() {
+      return nodes;
+    }
+  }
+
+  private final int mateIn;
+  private final boolean checksOnly;
+  private final int maxNodes;
+
+  // the node table
+  private final int[] proof;
+  private final int[] disproof;
+  private final int[] parent;
+  private final int[] firstChild;
+  private final int[] childCount;
+  private final int[] move;
+  private int size;
+  private long totalNodes;
+
+  /**
+   * Creates a solver. A solver isn't thread-safe; use one per thread.
+   * @param mateIn number of moves for the attacker, N in "mate in N"
+   * @param checksOnly if true, only checking moves are considered for the attacker
+   * @param maxNodes size of the node table for each first move's search
+   */
+  public MateSolver(int mateIn, boolean checksOnly, int maxNodes) {
+    if (mateIn < 1) {
+      throw new IllegalArgumentException("N must be at least 1");
+    }
+    this.mateIn = mateIn;
+    this.checksOnly = checksOnly;
+    this.maxNodes = maxNodes;
+    proof = new int[maxNodes];
+    disproof = new int[maxNodes];
+    parent = new int[maxNodes];
+    firstChild = new int[maxNodes];
+    childCount = new int[maxNodes];
+    move = new int[maxNodes];
+  }
+
+  /**
+   * Solves mate in N for the player whose turn it is. The game itself isn't modified.
+   * @param game position to solve
+   * @return the mating first moves and whether the search was complete
+   */
+  public Result solve(ChessGame game) {
+    totalNodes = 0;
+    int[] firstMoves = candidateMoves(game, true);
+    int[] mating = new int[firstMoves.length];
+    int numMating = 0;
+    boolean complete = true;
+
+    for (int m : firstMoves) {
+      ChessGame afterFirst = game.getDeepCopy();
+      ChessMove.apply(afterFirst, m);
+      int status = evaluateAfterAttackerMove(afterFirst, 1);
+      if (status == 0 && mateIn > 1) {
+        status = prove(afterFirst);
+      }
+      if (status == 1) {
+        mating[numMating++] = m;
+      }
+      else if (status == 0) {
+        complete = false;
+      }
+    }
+
+    Status status;
+    if (numMating > 0) {
+      status = Status.MATE;
+    }
+    else {
+      status = complete ? Status.NO_MATE : Status.UNKNOWN;
+    }
+    return new Result(status, Arrays.copyOf(mating, numMating), complete, totalNodes);
+  }
+
+  /**
+   * Classifies the position right after the attacker's movesUsed-th move
+   * @return 1 if it's mate, -1 if the attacker can no longer mate in time (or the move isn't
+   * allowed), 0 if it's still open
+   */
+  private int evaluateAfterAttackerMove(ChessGame g, int movesUsed) {
+    if (g.isGameOver()) {
+      return g.getWinner() != null ? 1 : -1;
+    }
+    if (movesUsed >= mateIn) {
+      return -1;
+    }
+    if (checksOnly && !g.getBoard().getKing(g.getWhoseTurn().getColor()).getIsInCheck()) {
+      return -1;
+    }
+    return 0;
+  }
+
+  /**
+   * Runs proof-number search from a position where the defender is to move
+   * @return 1 if mate is proven, -1 if disproven, 0 if the node table ran out
+   */
+  private int prove(ChessGame root) {
+    size = 1;
+    proof[0] = 1;
+    disproof[0] = 1;
+    parent[0] = -1;
+    childCount[0] = -1; // not expanded
+
+    while (proof[0] != 0 && disproof[0] != 0) {
+      // walk down to the most-proving node, replaying its moves
+      ChessGame g = root.getDeepCopy();
+      int node = 0;
+      int ply = 0; // plies since root, so even plies are defender (AND) nodes
+      while (childCount[node] >= 0) {
+        int best = -1;
+        for (int c = firstChild[node]; c < firstChild[node] + childCount[node]; c++) {
+          int key = ply % 2 == 0 ? disproof[c] : proof[c];
+          if (best == -1 || key < (ply % 2 == 0 ? disproof[best] : proof[best])) {
+            best = c;
+          }
+        }
+        node = best;
+        ChessMove.apply(g, move[node]);
+        ply++;
+      }
+
+      if (!expand(node, g, ply)) {
+        return 0; // out of nodes
+      }
+
+      // back the new numbers up towards the root
+      for (int n = node, p = ply; n != -1; n = parent[n], p--) {
+        int pn;
+        int dn;
+        if (childCount[n] == 0) {
+          // AND node without moves only happens after a checkmate or stalemate, and those are
+          // already scored when created; an OR node without (allowed) moves can't mate
+          pn = p % 2 == 0 ? 0 : INF;
+          dn = p % 2 == 0 ? INF : 0;
+        }
+        else if (p % 2 == 0) { // AND: defender to move
+          pn = 0;
+          dn = INF;
+          for (int c = firstChild[n]; c < firstChild[n] + childCount[n]; c++) {
+            pn = Math.min(INF, pn + proof[c]);
+            dn = Math.min(dn, disproof[c]);
+          }
+        }
+        else { // OR: attacker to move
+          pn = INF;
+          dn = 0;
+          for (int c = firstChild[n]; c < firstChild[n] + childCount[n]; c++) {
+            pn = Math.min(pn, proof[c]);
+            dn = Math.min(INF, dn + disproof[c]);
+          }
+        }
+        if (pn == proof[n] && dn == disproof[n] && n != node) {
+          break; // nothing above changes either
+        }
+        proof[n] = pn;
+        disproof[n] = dn;
+      }
+    }
+    return proof[0] == 0 ? 1 : -1;
+  }
+
+  /**
+   * Lists the moves worth searching from a position: when only checks count, the attacker's
+   * captures (some of which check) and quiet checks, and for a defender in check its evasions
+   */
+  private int[] candidateMoves(ChessGame g, boolean attacker) {
+    if (attacker && checksOnly) {
+      int[] captures = g.getLegalMoves(ChessGame.MoveKind.CAPTURES);
+      int[] checks = g.getLegalMoves(ChessGame.MoveKind.QUIET_CHECKS);
+      int[] moves = Arrays.copyOf(captures, captures.length + checks.length);
+      System.arraycopy(checks, 0, moves, captures.length, checks.length);
+      return moves;
+    }
+    if (!attacker && g.getBoard().getKing(g.getWhoseTurn().getColor()).getIsInCheck()) {
+      return g.getLegalMoves(ChessGame.MoveKind.EVASIONS);
+    }
+    return g.getLegalMoves();
+  }
+
+  /**
+   * Creates the children of a node, scoring terminal ones right away
+   * @return false if the node table is full
+   */
+  private boolean expand(int node, ChessGame g, int ply) {
+    boolean defenderToMove = ply % 2 == 0;
+    int[] moves = candidateMoves(g, !defenderToMove);
+    if (size + moves.length > maxNodes) {
+      return false;
+    }
+    int attackerMovesUsed = 1 + ply / 2; // the first move was made before the search started
+
+    firstChild[node] = size;
+    int count = 0;
+    for (int m : moves) {
+      ChessGame child = g.getDeepCopy();
+      ChessMove.apply(child, m);
+      totalNodes++;
+
+      int status;
+      if (defenderToMove) {
+        // checkmating or stalemating the attacker both refute the mate
+        status = child.isGameOver() ? -1 : 0;
+      }
+      else {
+        status = evaluateAfterAttackerMove(child, attackerMovesUsed + 1);
+        if (status == -1 && !child.isGameOver()) {
+          continue; // not worth keeping: a non-check when only checks count, or out of moves
+        }
+      }
+
+      int c = size + count;
+      parent[c] = node;
+      move[c] = m;
+      childCount[c] = -1;
+      proof[c] = status == 1 ? 0 : status == -1 ? INF : 1;
+      disproof[c] = status == 1 ? INF : status == -1 ? 0 : 1;
+      count++;
+    }
+    childCount[node] = count;
+    size += count;
+    return true;
+  }
+
+  /**
+   * Batch mode: solves every puzzle in a file in parallel. Each line is
+   *    <puzzle id> <N> <moves from the start position in long algebraic notation>...
+   * and produces one output line with the status and the mating first moves.
+   * @param args puzzle file, then optionally max nodes per search and "checks" to only consider
+   * checking moves for the attacker
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 1) {
+      System.out.println("Usage: MateSolver <puzzle file> [max nodes] [checks]");
+      return;
+    }
+    int maxNodes = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+    boolean checks = args.length > 2 && args[2].equals("checks");
+
+    List<String> lines = new ArrayList<String>();
+    for (String line : Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+      if (!line.trim().isEmpty() && !line.startsWith("#")) {
+        lines.add(line.trim());
+      }
+    }
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    // solvers own big node tables, so reuse one per worker thread
+    ThreadLocal<MateSolver[]> solvers = ThreadLocal.withInitial(() -> new MateSolver[16]);
+    long start = System.nanoTime();
+
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for (String line : lines) {
+      results.add(pool.submit(() -> {
+        String[] tokens = line.split("\\s+");
+        int n = Integer.parseInt(tokens[1]);
+        ChessGame g = new ChessGame("White", "Black");
+        for (int i = 2; i < tokens.length; i++) {
+          if (!ChessMove.apply(g, ChessMove.parse(tokens[i]))) {
+            return tokens[0] + " ERROR illegal move " + tokens[i];
+          }
+        }
+        MateSolver[] cache = solvers.get();
+        if (n >= cache.length) {
+          return tokens[0] + " ERROR N too large";
+        }
+        if (cache[n] == null) {
+          cache[n] = new MateSolver(n, checks, maxNodes);
+        }
+        Result r = cache[n].solve(g);
+        StringBuilder out = new StringBuilder(tokens[0] + " " + r.getStatus()
+            + (r.isUnique() ? " unique" : ""));
+        for (int m : r.getMatingMoves()) {
+          out.append(' ').append(ChessMove.toString(m));
+        }
+        return out.toString();
+      }));
+    }
+
+    for (Future<String> f : results) {
+      try {
+        System.out.println(f.get());
+      } catch (ExecutionException e) {
+        System.out.println("ERROR " + e.getCause());
+      }
+    }
+    pool.shutdown();
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%d puzzles in %.1f s (%.0f per minute)%n", lines.size(), seconds,
+        lines.size() / seconds * 60);
+  }
+
+}
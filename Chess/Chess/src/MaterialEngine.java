@@ -0,0 +1,93 @@
+import java.util.Random;
+
+/**
+ * Simple engine: fixed-depth alpha-beta over ChessGame copies, scoring positions by material
+ * (ChessPlayer.getTotalMaterialValue()). Ties between equally good moves are broken at random so
+ * self-play games don't all repeat. Book and tablebase moves are played when the game has them.
+ *
+ */
+public class MaterialEngine implements ChessEngine {
+  private static final int MATE = 100000;
+
+  private final int depth;
+  private final Random random;
+
+  /**
+   * Creates a new engine
+   * @param depth search depth in plies (at least 1)
+   * @param seed seed for breaking ties between equal moves
+   */
+  public MaterialEngine(int depth, long seed) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("Depth must be at least 1");
+    }
+    this.depth = depth;
+    this.random = new Random(seed);
+  }
+
+  @Override
+  public String getName() {
+    return "material-d" + depth;
+  }
+
+  @Override
+  public int chooseMove(ChessGame game) {
+    int move = game.getTablebaseMove();
+    if (move == ChessMove.NONE) {
+      move = game.getBookMove(random);
+    }
+    if (move != ChessMove.NONE) {
+      return move;
+    }
+
+    int[] moves = game.getLegalMoves();
+    int best = ChessMove.NONE;
+    int bestScore = -MATE - 1;
+    int ties = 0;
+    for (int m : moves) {
+      ChessGame child = game.getDeepCopy();
+      ChessMove.apply(child, m);
+      int score = -search(child, depth - 1, -MATE - 1, -bestScore + 1);
+      if (score > bestScore) {
+        bestScore = score;
+        best = m;
+        ties = 1;
+      }
+      else if (score == bestScore && random.nextInt(++ties) == 0) {
+        best = m; // reservoir sampling keeps every tied move equally likely
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Negamax alpha-beta
+   * @return score from the point of view of the player to move in g
+   */
+  private int search(ChessGame g, int depth, int alpha, int beta) {
+    if (g.isGameOver()) {
+      // the player to move has been mated (prefer quicker mates), or it's a stalemate
+      return g.getWinner() != null ? -MATE + (this.depth - depth) : 0;
+    }
+    if (depth == 0) {
+      return evaluate(g);
+    }
+    for (int m : g.getLegalMoves()) {
+      ChessGame child = g.getDeepCopy();
+      ChessMove.apply(child, m);
+      int score = -search(child, depth - 1, -beta, -alpha);
+      if (score >= beta) {
+        return score;
+      }
+      alpha = Math.max(alpha, score);
+    }
+    return alpha;
+  }
+
+  private static int evaluate(ChessGame g) {
+    ChessColor us = g.getWhoseTurn().getColor();
+    return g.getPlayer(us).getTotalMaterialValue()
+        - g.getPlayer(ChessGame.getOtherColor(us)).getTotalMaterialValue();
+  }
+
+}
@@ -0,0 +1,557 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for hosted games, kept in one directory. Game creations, moves and removals
+ * are appended to the current journal segment, and a background writer thread flushes whatever has
+ * accumulated with a single fsync (group commit), so many games moving at once share the cost of
+ * each fsync. A caller that needs a record to be durable waits on the sequence number append
+ * returned.
+ *
+ * A checkpoint writes a snapshot holding every live game's move list and then deletes the segments
+ * it replaces, so recovery only has to read the snapshot and the segments written since. Move
+ * records carry their ply, which makes replaying a record the snapshot already contains a no-op.
+ * Each record has a CRC, and recovery stops at the first torn or corrupt record in a segment.
+ *
+ */
+public class MoveJournal implements Closeable {
+  private static final long SNAPSHOT_MAGIC = 0x4a524e4c534e5031L; // "JRNLSNP1"
+  private static final String SNAPSHOT = "snapshot";
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private static final byte CREATE = 1;
+  private static final byte MOVE = 2;
+  private static final byte REMOVE = 3;
+
+  /**
+   * A game as recorded in the journal: its players and every move played so far. Not thread-safe;
+   * checkpoint() reads it, so it has to be guarded by the same lock its moves are logged under.
+   */
+  public static class GameState {
+    private final long id;
+    private final String white;
+    private final String black;
+    private int[] moves;
+    private int numMoves;
+
+    public GameState(long id, String white, String black, int[] moves) {
+      this.id = id;
+      this.white = white;
+      this.black = black;
+      this.moves = moves;
+      this.numMoves = moves.length;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getWhite() {
+      return white;
+    }
+
+    public String getBlack() {
+      return black;
+    }
+
+    /**
+     * Returns the packed moves played so far (see ChessMove)
+     */
+    public int[] getMoves() {
+      return numMoves == moves.length ? moves : Arrays.copyOf(moves, numMoves);
+    }
+
+    /**
+     * Returns the number of half-moves played so far
+     */
+    public int getNumMoves() {
+      return numMoves;
+    }
+
+    /**
+     * Appends a move to the list; the caller logs it separately
+     */
+    void addMove(int move) {
+      if (numMoves == moves.length) {
+        moves = Arrays.copyOf(moves, Math.max(16, 2 * numMoves));
+      }
+      moves[numMoves++] = move;
+    }
+  }
+
+  private final Path dir;
+  private final List<GameState> recovered;
+  private final long recoveredMaxId;
+
+  // guards everything below
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition workReady = lock.newCondition();
+  private final Condition flushed = lock.newCondition();
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  private long appendedSeq;
+  private long durableSeq;
+  private long maxId; // highest game id ever logged, so ids of removed games aren't reused
+  private int segment;
+  private int rotateRequests;
+  private boolean closed;
+  private IOException failure;
+
+  private FileChannel channel; // only touched by the writer thread after construction
+  private final Thread writer;
+
+  private MoveJournal(Path dir, List<GameState> recovered, long maxId, int segment)
+      throws IOException {
+    this.dir = dir;
+    this.recovered = recovered;
+    this.recoveredMaxId = maxId;
+    this.maxId = maxId;
+    this.segment = segment;
+    this.channel = openSegment(segment);
+    this.writer = new Thread(this::writeLoop, "move-journal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Opens the journal in a directory, recovering the games it holds, and starts a new segment
+   * @param dir journal directory (created if it doesn't exist)
+   * @return the opened journal; see getRecoveredGames()
+   * @throws IOException if the directory can't be read or written
+   */
+  public static MoveJournal open(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    Map<Long, GameState> games = new LinkedHashMap<Long, GameState>();
+    long[] maxId = new long[1];
+    int firstSegment = readSnapshot(dir.resolve(SNAPSHOT), games, maxId);
+
+    List<Integer> segments = listSegments(dir);
+    int last = firstSegment - 1;
+    for (int s : segments) {
+      if (s < firstSegment) {
+        Files.deleteIfExists(segmentPath(dir, s)); // left over from a checkpoint cut short
+      }
+      else {
+        replaySegment(segmentPath(dir, s), games, maxId);
+      }
+      last = Math.max(last, s);
+    }
+    return new MoveJournal(dir, new ArrayList<GameState>(games.values()), maxId[0], last + 1);
+  }
+
+  /**
+   * Returns the games that were live when the journal was last closed (or crashed), in the order
+   * they were created
+   */
+  public List<GameState> getRecoveredGames() {
+    return recovered;
+  }
+
+  /**
+   * Returns the highest game id the journal had seen when it was opened, including removed games
+   */
+  public long getRecoveredMaxId() {
+    return recoveredMaxId;
+  }
+
+  /**
+   * Appends a game creation
+   * @return sequence number to pass to awaitDurable()
+   */
+  public long logCreate(long id, String white, String black) {
+    lock.lock();
+    try {
+      maxId = Math.max(maxId, id);
+    }
+    finally {
+      lock.unlock();
+    }
+    return append(CREATE, id, out -> {
+      out.writeUTF(white);
+      out.writeUTF(black);
+    });
+  }
+
+  /**
+   * Appends a move
+   * @param id game id
+   * @param ply number of half-moves played before this one
+   * @param move packed move (see ChessMove), including the promotion choice
+   * @return sequence number to pass to awaitDurable()
+   */
+  public long logMove(long id, int ply, int move) {
+    return append(MOVE, id, out -> {
+      out.writeInt(ply);
+      out.writeInt(move);
+    });
+  }
+
+  /**
+   * Appends a game removal
+   * @return sequence number to pass to awaitDurable()
+   */
+  public long logRemove(long id) {
+    return append(REMOVE, id, out -> {
+    });
+  }
+
+  private interface Body {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private long append(byte type, long id, Body body) {
+    // encode outside the lock; only the copy into the pending batch is serialised
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+    try {
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(type);
+      out.writeLong(id);
+      body.write(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // can't happen writing to memory
+    }
+    byte[] record = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(record);
+
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Journal is closed");
+      }
+      writeInt(pending, record.length);
+      writeInt(pending, (int) crc.getValue());
+      pending.write(record, 0, record.length);
+      workReady.signal();
+      return ++appendedSeq;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int v) {
+    out.write(v >>> 24);
+    out.write(v >>> 16);
+    out.write(v >>> 8);
+    out.write(v);
+  }
+
+  /**
+   * Blocks until everything up to and including the given record is on disk
+   * @param seq sequence number returned by one of the log methods
+   * @throws IOException if the journal can no longer be written
+   */
+  public void awaitDurable(long seq) throws IOException {
+    lock.lock();
+    try {
+      while (durableSeq < seq) {
+        if (failure != null) {
+          throw new IOException("Journal write failed", failure);
+        }
+        flushed.awaitUninterruptibly();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Group commit: waits for appended records, writes every record that has accumulated meanwhile
+   * and fsyncs once for all of them
+   */
+  private void writeLoop() {
+    while (true) {
+      byte[] batch;
+      long batchSeq;
+      boolean rotate;
+      lock.lock();
+      try {
+        while (pending.size() == 0 && rotateRequests == 0 && !closed) {
+          workReady.awaitUninterruptibly();
+        }
+        if (pending.size() == 0 && rotateRequests == 0 && closed) {
+          return;
+        }
+        batch = pending.toByteArray();
+        pending.reset();
+        batchSeq = appendedSeq;
+        rotate = rotateRequests > 0;
+      }
+      finally {
+        lock.unlock();
+      }
+
+      IOException error = null;
+      try {
+        ByteBuffer buf = ByteBuffer.wrap(batch);
+        while (buf.hasRemaining()) {
+          channel.write(buf);
+        }
+        channel.force(false);
+        if (rotate) {
+          channel.close();
+          channel = openSegment(segment + 1);
+        }
+      } catch (IOException e) {
+        error = e;
+      }
+
+      lock.lock();
+      try {
+        if (error != null) {
+          failure = error;
+          closed = true;
+        }
+        else {
+          durableSeq = batchSeq;
+          if (rotate) {
+            segment++;
+            rotateRequests = 0;
+          }
+        }
+        flushed.signalAll();
+        if (error != null) {
+          return;
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private FileChannel openSegment(int s) throws IOException {
+    FileChannel c = FileChannel.open(segmentPath(dir, s), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    // make the new file's directory entry durable too
+    try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+      d.force(true);
+    } catch (IOException e) {
+      // not every platform can open or sync a directory
+    }
+    return c;
+  }
+
+  /**
+   * Writes a snapshot and drops the journal segments it replaces. Everything appended before this
+   * call starts goes to the old segments, so the games passed in must be captured after it's been
+   * called; the capture is asked for at the right moment through the given callback.
+   * @param capture returns the state of every live game; each game's state must be read under
+   * whatever lock its moves are logged under
+   * @throws IOException if the snapshot can't be written
+   */
+  public void checkpoint(Supplier<Collection<GameState>> capture)
+      throws IOException {
+    int newSegment;
+    long snapshotMaxId;
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Journal is closed");
+      }
+      int before = segment;
+      rotateRequests++;
+      workReady.signal();
+      while (segment == before) {
+        if (failure != null) {
+          throw new IOException("Journal write failed", failure);
+        }
+        flushed.awaitUninterruptibly();
+      }
+      newSegment = segment;
+      snapshotMaxId = maxId;
+    }
+    finally {
+      lock.unlock();
+    }
+
+    Collection<GameState> games = capture.get();
+    Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+    try (FileChannel c = FileChannel.open(tmp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          Channels.newOutputStream(c), 1 << 16));
+      out.writeLong(SNAPSHOT_MAGIC);
+      out.writeInt(newSegment);
+      out.writeLong(snapshotMaxId);
+      out.writeInt(games.size());
+      for (GameState g : games) {
+        out.writeLong(g.id);
+        out.writeUTF(g.white);
+        out.writeUTF(g.black);
+        out.writeInt(g.numMoves);
+        for (int i = 0; i < g.numMoves; i++) {
+          out.writeShort(g.moves[i]); // packed moves fit in 15 bits
+        }
+      }
+      out.flush();
+      c.force(false);
+    }
+    Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    for (int s : listSegments(dir)) {
+      if (s < newSegment) {
+        Files.deleteIfExists(segmentPath(dir, s));
+      }
+    }
+  }
+
+  /**
+   * Flushes everything appended so far and stops the writer thread
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      workReady.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+    if (failure != null) {
+      throw new IOException("Journal write failed", failure);
+    }
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // Recovery
+
+  private static Path segmentPath(Path dir, int s) {
+    return dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, s, SEGMENT_SUFFIX));
+  }
+
+  private static List<Integer> listSegments(Path dir) throws IOException {
+    List<Integer> segments = new ArrayList<Integer>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir,
+        SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path f : files) {
+        String name = f.getFileName().toString();
+        segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+            name.length() - SEGMENT_SUFFIX.length())));
+      }
+    }
+    segments.sort(null);
+    return segments;
+  }
+
+  /**
+   * Loads a snapshot, if there is one
+   * @return the first segment written after the snapshot
+   */
+  private static int readSnapshot(Path file, Map<Long, GameState> games, long[] maxId)
+      throws IOException {
+    if (!Files.exists(file)) {
+      return 0;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        Files.newInputStream(file), 1 << 16))) {
+      if (in.readLong() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a journal snapshot: " + file);
+      }
+      int firstSegment = in.readInt();
+      maxId[0] = in.readLong();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        long id = in.readLong();
+        String white = in.readUTF();
+        String black = in.readUTF();
+        int[] moves = new int[in.readInt()];
+        for (int j = 0; j < moves.length; j++) {
+          moves[j] = in.readShort();
+        }
+        games.put(id, new GameState(id, white, black, moves));
+      }
+      return firstSegment;
+    }
+  }
+
+  private static void replaySegment(Path file, Map<Long, GameState> games, long[] maxId)
+      throws IOException {
+    try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+      DataInputStream in = new DataInputStream(raw);
+      CRC32 crc = new CRC32();
+      while (true) {
+        byte[] record;
+        try {
+          int length = in.readInt();
+          int expected = in.readInt();
+          if (length <= 0 || length > 1 << 16) {
+            return; // garbage from a torn write
+          }
+          record = new byte[length];
+          in.readFully(record);
+          crc.reset();
+          crc.update(record);
+          if ((int) crc.getValue() != expected) {
+            return;
+          }
+        } catch (EOFException e) {
+          return; // clean end, or a torn final record
+        }
+
+        DataInputStream r = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = r.readByte();
+        long id = r.readLong();
+        if (type == CREATE) {
+          String white = r.readUTF();
+          String black = r.readUTF();
+          games.putIfAbsent(id, new GameState(id, white, black, new int[0]));
+          maxId[0] = Math.max(maxId[0], id);
+        }
+        else if (type == MOVE) {
+          int ply = r.readInt();
+          int move = r.readInt();
+          GameState g = games.get(id);
+          // ply < numMoves means the snapshot already has this move
+          if (g != null && ply == g.numMoves) {
+            g.addMove(move);
+          }
+        }
+        else if (type == REMOVE) {
+          games.remove(id);
+        }
+      }
+    }
+  }
+
+}
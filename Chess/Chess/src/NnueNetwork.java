@@ -0,0 +1,304 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Efficiently updatable neural network (NNUE) evaluation. The network is 768 inputs (piece kind x
+ * square, seen from each side) -> hidden layer of H neurons per side -> 1 output, with int16
+ * quantised weights:
+ *    accumulator[side] = bias + sum of the weight columns of the side's active features
+ *    output = outBias + clamp(acc[us], 0, QA) . outWeights[0..H) + clamp(acc[them], 0, QA) .
+ *        outWeights[H..2H)
+ *    eval (centipawns) = output * SCALE / (QA * QB)
+ * The accumulators are the expensive part, so an Accumulator listens to a ChessBoard and only adds
+ * or subtracts the weight columns of the pieces that changed. The inner loops are plain loops over
+ * short arrays so the JIT can vectorise them.
+ *
+ * Weight file layout (little-endian): the 8 byte magic "CHSNNUE1", the hidden size H as an int,
+ * then int16 arrays: input weights [768][H], input biases [H], output weights [2H], output bias.
+ *
+ */
+public class NnueNetwork {
+  public static final int INPUTS = 768;
+  public static final int QA = 255;
+  public static final int QB = 64;
+  public static final int SCALE = 400;
+  private static final long MAGIC = 0x3145554e4e534843L; // "CHSNNUE1" read little-endian
+
+  private final int hidden;
+  private final short[] inputWeights; // feature-major, so one feature's column is contiguous
+  private final short[] inputBias;
+  private final short[] outputWeights;
+  private final short outputBias;
+
+  private NnueNetwork(int hidden, short[] inputWeights, short[] inputBias, short[] outputWeights,
+      short outputBias) {
+    this.hidden = hidden;
+    this.inputWeights = inputWeights;
+    this.inputBias = inputBias;
+    this.outputWeights = outputWeights;
+    this.outputBias = outputBias;
+  }
+
+  public int getHiddenSize() {
+    return hidden;
+  }
+
+  /**
+   * Loads a network from a weight file
+   * @param file weight file (see the class comment for the layout)
+   * @return the network
+   * @throws IOException if the file can't be read or isn't a network
+   */
+  public static NnueNetwork load(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      map.order(ByteOrder.LITTLE_ENDIAN);
+      if (channel.size() < 12 || map.getLong() != MAGIC) {
+        throw new IOException("Not a network file: " + file);
+      }
+      int hidden = map.getInt();
+      long expected = 12 + 2L * ((long) INPUTS * hidden + 3L * hidden + 1);
+      if (hidden <= 0 || channel.size() != expected) {
+        throw new IOException("Network file has the wrong size: " + file);
+      }
+      short[] inputWeights = new short[INPUTS * hidden];
+      short[] inputBias = new short[hidden];
+      short[] outputWeights = new short[2 * hidden];
+      map.asShortBuffer().get(inputWeights);
+      map.position(map.position() + 2 * inputWeights.length);
+      map.asShortBuffer().get(inputBias);
+      map.position(map.position() + 2 * inputBias.length);
+      map.asShortBuffer().get(outputWeights);
+      map.position(map.position() + 2 * outputWeights.length);
+      return new NnueNetwork(hidden, inputWeights, inputBias, outputWeights, map.getShort());
+    }
+  }
+
+  /**
+   * Writes this network to a weight file
+   */
+  public void save(Path file) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(12 + 2 * (inputWeights.length + 3 * hidden + 1))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buf.putLong(MAGIC).putInt(hidden);
+    buf.asShortBuffer().put(inputWeights).put(inputBias).put(outputWeights).put(outputBias);
+    try (OutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(file)))) {
+      out.write(buf.array());
+    }
+  }
+
+  /**
+   * Creates a network with small random weights, for benchmarks and tests
+   * @param hidden hidden layer size per side
+   * @param seed random seed
+   */
+  public static NnueNetwork random(int hidden, long seed) {
+    Random random = new Random(seed);
+    short[] inputWeights = new short[INPUTS * hidden];
+    short[] inputBias = new short[hidden];
+    short[] outputWeights = new short[2 * hidden];
+    for (int i = 0; i < inputWeights.length; i++) {
+      inputWeights[i] = (short) (random.nextInt(65) - 32);
+    }
+    for (int i = 0; i < hidden; i++) {
+      inputBias[i] = (short) random.nextInt(64);
+    }
+    for (int i = 0; i < outputWeights.length; i++) {
+      outputWeights[i] = (short) (random.nextInt(129) - 64);
+    }
+    return new NnueNetwork(hidden, inputWeights, inputBias, outputWeights, (short) 0);
+  }
+
+  /**
+   * Returns the input feature for a piece on a square as seen by one side. Each side sees the
+   * board from its own end, with its own pieces as the "white" kinds.
+   * @param kind Zobrist piece kind (see Zobrist.pieceKind())
+   * @param x file of the square
+   * @param y rank of the square
+   * @param perspective the side looking
+   * @return feature index between 0 and 767
+   */
+  public static int feature(int kind, int x, int y, ChessColor perspective) {
+    if (perspective == ChessColor.WHITE) {
+      return 64 * kind + 8 * y + x;
+    }
+    return 64 * (kind ^ 1) + 8 * (7 - y) + x;
+  }
+
+  /**
+   * Creates an accumulator for a board and attaches it, so it follows every change to the board
+   * from now on
+   * @param board board to follow (a game's main board, see ChessGame.getBoard())
+   * @return the attached accumulator
+   */
+  public Accumulator attach(ChessBoard board) {
+    Accumulator acc = new Accumulator();
+    acc.refresh(board);
+    board.setListener(acc);
+    return acc;
+  }
+
+  /**
+   * Evaluates a position from its accumulator
+   * @param acc accumulator for the position
+   * @param toMove the side whose turn it is
+   * @return score in centipawns from the point of view of the side to move
+   */
+  public int evaluate(Accumulator acc, ChessColor toMove) {
+    short[] us = toMove == ChessColor.WHITE ? acc.white : acc.black;
+    short[] them = toMove == ChessColor.WHITE ? acc.black : acc.white;
+    // a clamped activation times a weight can reach 255 * 32767, about 2^23, so an int sum of 2H
+    // of them overflows once H passes 128
+    long sum = 0;
+    for (int i = 0; i < hidden; i++) {
+      sum += Math.max(0, Math.min(QA, us[i])) * outputWeights[i];
+    }
+    for (int i = 0; i < hidden; i++) {
+      sum += Math.max(0, Math.min(QA, them[i])) * outputWeights[hidden + i];
+    }
+    return (int) ((sum + outputBias) * SCALE / (QA * QB));
+  }
+
+  /**
+   * Evaluates a game's current position from scratch, without an accumulator
+   * @return score in centipawns from the point of view of the side to move
+   */
+  public int evaluate(ChessGame game) {
+    Accumulator acc = new Accumulator();
+    acc.refresh(game.getBoard());
+    return evaluate(acc, game.getWhoseTurn().getColor());
+  }
+
+  /**
+   * First-layer outputs for both sides, kept up to date with a board
+   */
+  public class Accumulator implements ChessBoard.Listener {
+    private final short[] white = new short[hidden];
+    private final short[] black = new short[hidden];
+
+    private Accumulator() {
+    }
+
+    /**
+     * Recomputes both sides from scratch
+     */
+    public void refresh(ChessBoard board) {
+      System.arraycopy(inputBias, 0, white, 0, hidden);
+      System.arraycopy(inputBias, 0, black, 0, hidden);
+      ChessPiece c;
+      for (int x = 0; x < ChessBoard.X_DIM; x++) {
+        for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+          c = board.getSquare(x, y);
+          if (c != null) {
+            pieceAdded(c, x, y);
+          }
+        }
+      }
+    }
+
+    @Override
+    public void pieceAdded(ChessPiece piece, int x, int y) {
+      int kind = Zobrist.pieceKind(piece);
+      add(white, feature(kind, x, y, ChessColor.WHITE) * hidden);
+      add(black, feature(kind, x, y, ChessColor.BLACK) * hidden);
+    }
+
+    @Override
+    public void pieceRemoved(ChessPiece piece, int x, int y) {
+      int kind = Zobrist.pieceKind(piece);
+      subtract(white, feature(kind, x, y, ChessColor.WHITE) * hidden);
+      subtract(black, feature(kind, x, y, ChessColor.BLACK) * hidden);
+    }
+
+    private void add(short[] acc, int offset) {
+      for (int i = 0; i < hidden; i++) {
+        acc[i] += inputWeights[offset + i];
+      }
+    }
+
+    private void subtract(short[] acc, int offset) {
+      for (int i = 0; i < hidden; i++) {
+        acc[i] -= inputWeights[offset + i];
+      }
+    }
+  }
+
+  /**
+   * Benchmark: NnueNetwork bench [weight file]
+   * Reports full evaluations per second and incremental move+evaluate+undo cycles per second over
+   * the positions of random games. Uses a random 256-neuron network without a weight file.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || !args[0].equals("bench")) {
+      System.out.println("Usage: NnueNetwork bench [weight file]");
+      return;
+    }
+    NnueNetwork net = args.length > 1 ? load(Paths.get(args[1])) : random(256, 1);
+
+    // positions from random games, each with one legal move to play incrementally
+    Random random = new Random(1);
+    int count = 2000;
+    ChessGame[] games = new ChessGame[count];
+    int[] moves = new int[count];
+    for (int i = 0; i < count; i++) {
+      ChessGame g = new ChessGame("White", "Black");
+      int plies = random.nextInt(60);
+      for (int p = 0; p < plies && !g.isGameOver(); p++) {
+        int[] legal = g.getLegalMoves();
+        ChessMove.apply(g, legal[random.nextInt(legal.length)]);
+      }
+      if (g.isGameOver()) {
+        g.undo();
+      }
+      int[] legal = g.getLegalMoves();
+      games[i] = g;
+      moves[i] = legal[random.nextInt(legal.length)];
+    }
+    Accumulator[] accs = new Accumulator[count];
+    for (int i = 0; i < count; i++) {
+      accs[i] = net.attach(games[i].getBoard());
+    }
+
+    long checksum = 0;
+    for (int round = 0; round < 3; round++) { // the first rounds are warm-up
+      long start = System.nanoTime();
+      int evals = 0;
+      while (System.nanoTime() - start < 2_000_000_000L) {
+        for (int i = 0; i < count; i++) {
+          accs[i].refresh(games[i].getBoard());
+          checksum += net.evaluate(accs[i], games[i].getWhoseTurn().getColor());
+        }
+        evals += count;
+      }
+      double fullRate = evals / ((System.nanoTime() - start) / 1e9);
+
+      start = System.nanoTime();
+      evals = 0;
+      while (System.nanoTime() - start < 2_000_000_000L) {
+        for (int i = 0; i < count; i++) {
+          ChessMove.apply(games[i], moves[i]);
+          checksum += net.evaluate(accs[i], games[i].getWhoseTurn().getColor());
+          games[i].undo();
+        }
+        evals += count;
+      }
+      double incrementalRate = evals / ((System.nanoTime() - start) / 1e9);
+      System.out.printf("H=%d: %.0f full evals/s, %.0f move+eval+undo/s%n", net.hidden, fullRate,
+          incrementalRate);
+    }
+    System.out.println("(checksum " + checksum + ")");
+  }
+
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Read-only opening book in the Polyglot .bin layout: 16-byte big-endian entries of
+ * (key u64, move u16, weight u16, learn u32) sorted by key. The file is memory-mapped and probed
+ * with a binary search, so probing never allocates.
+ *
+ * Keys are the hashes from Zobrist / ChessGame.getPositionHash(). Moves use the Polyglot encoding,
+ * which is the same bit layout as ChessMove except that castling is written as the king capturing
+ * its own rook (e1h1 rather than e1g1). ChessGame.getBookMove() translates that back.
+ *
+ */
+public class OpeningBook {
+  public static final int ENTRY_BYTES = 16;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer entries;
+  private final int size;
+
+  private OpeningBook(FileChannel channel, MappedByteBuffer entries, int size) {
+    this.channel = channel;
+    this.entries = entries;
+    this.size = size;
+  }
+
+  /**
+   * Opens a book file
+   * @param file Polyglot-layout .bin file
+   * @return the opened book
+   * @throws IOException if the file can't be read or isn't a whole number of entries
+   */
+  public static OpeningBook open(Path file) throws IOException {
+    FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+    long bytes = ch.size();
+    if (bytes % ENTRY_BYTES != 0 || bytes / ENTRY_BYTES > Integer.MAX_VALUE / ENTRY_BYTES) {
+      ch.close();
+      throw new IOException(file + " is not a valid book file");
+    }
+    MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+    return new OpeningBook(ch, map, (int) (bytes / ENTRY_BYTES));
+  }
+
+  /**
+   * Returns the number of entries in this book
+   */
+  public int size() {
+    return size;
+  }
+
+  public long getKey(int i) {
+    return entries.getLong(i * ENTRY_BYTES);
+  }
+
+  public int getMove(int i) {
+    return entries.getShort(i * ENTRY_BYTES + 8) & 0xFFFF;
+  }
+
+  public int getWeight(int i) {
+    return entries.getShort(i * ENTRY_BYTES + 10) & 0xFFFF;
+  }
+
+  /**
+   * Returns the index of the first entry for the given position
+   * @param key position hash
+   * @return index of the first entry with this key, or -1 if the position isn't in the book
+   */
+  public int firstIndex(long key) {
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      // Polyglot sorts keys as unsigned 64-bit numbers
+      if (Long.compareUnsigned(getKey(mid), key) < 0) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    return lo < size && getKey(lo) == key ? lo : -1;
+  }
+
+  /**
+   * Returns the highest-weighted book move for a position
+   * @param key position hash
+   * @return Polyglot-encoded move, or ChessMove.NONE if the position isn't in the book
+   */
+  public int probeBest(long key) {
+    int i = firstIndex(key);
+    if (i == -1) {
+      return ChessMove.NONE;
+    }
+    int best = ChessMove.NONE;
+    int bestWeight = -1;
+    for (; i < size && getKey(i) == key; i++) {
+      if (getWeight(i) > bestWeight) {
+        bestWeight = getWeight(i);
+        best = getMove(i);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Picks a book move for a position at random, in proportion to the move weights
+   * @param key position hash
+   * @param random source of randomness
+   * @return Polyglot-encoded move, or ChessMove.NONE if the position isn't in the book or all its
+   * moves have zero weight
+   */
+  public int probeWeighted(long key, Random random) {
+    int first = firstIndex(key);
+    if (first == -1) {
+      return ChessMove.NONE;
+    }
+    int total = 0;
+    int end = first;
+    for (; end < size && getKey(end) == key; end++) {
+      total += getWeight(end);
+    }
+    if (total == 0) {
+      return ChessMove.NONE;
+    }
+    int pick = random.nextInt(total);
+    for (int i = first; i < end; i++) {
+      pick -= getWeight(i);
+      if (pick < 0) {
+        return getMove(i);
+      }
+    }
+    return ChessMove.NONE; // unreachable
+  }
+
+  /**
+   * Releases the underlying file. The mapping itself is released once it's garbage collected.
+   */
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
@@ -0,0 +1,225 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds Polyglot-layout opening books (see OpeningBook) from PGN archives. Every move in the
+ * first maxPly plies of every game is counted against the position it was played from, and scored
+ * from the mover's point of view (2 for a win, 1 for a draw, 0 for a loss). A move's book weight is
+ * its total score, scaled down per position if needed to fit the 16-bit weight field.
+ *
+ * Statistics are kept as sorted primitive arrays of (position, move + counts) that are compacted
+ * whenever they fill up, so memory grows with the number of distinct book moves rather than with
+ * the number of games.
+ *
+ */
+public class OpeningBookBuilder {
+  // layout of a stats value: move (16 bits) | games (24 bits) | points (24 bits)
+  private static final long COUNT_MASK = (1L << 24) - 1;
+
+  private final int maxPly;
+  private long[] keys = new long[1 << 16];
+  private long[] values = new long[1 << 16];
+  private int n = 0;
+  private int gamesRead = 0;
+  private int gamesSkipped = 0;
+
+  /**
+   * Creates a new builder
+   * @param maxPly number of plies from the start of each game that go into the book
+   */
+  public OpeningBookBuilder(int maxPly) {
+    this.maxPly = maxPly;
+  }
+
+  /**
+   * Adds every game of a PGN file to the book statistics
+   * @param pgn PGN file
+   * @throws IOException if the file can't be read
+   */
+  public void addPgn(Path pgn) throws IOException {
+    PgnReader.forEach(pgn, this::addGame);
+  }
+
+  /**
+   * Adds one game to the book statistics. Games without a decisive or drawn result are skipped,
+   * and so is the rest of a game after an unreadable move.
+   * @param pgnGame game to add
+   */
+  public void addGame(PgnReader.PgnGame pgnGame) {
+    int whitePoints;
+    if (pgnGame.getResult().equals("1-0")) {
+      whitePoints = 2;
+    }
+    else if (pgnGame.getResult().equals("0-1")) {
+      whitePoints = 0;
+    }
+    else if (pgnGame.getResult().equals("1/2-1/2")) {
+      whitePoints = 1;
+    }
+    else {
+      gamesSkipped++;
+      return;
+    }
+    gamesRead++;
+
+    ChessGame g = new ChessGame("White", "Black");
+    List<String> moves = pgnGame.getMoves();
+    for (int ply = 0; ply < Math.min(maxPly, moves.size()) && !g.isGameOver(); ply++) {
+      long key = g.getPositionHash();
+      boolean whiteToMove = g.getWhoseTurn().getColor() == ChessColor.WHITE;
+      int move = PgnReader.playSan(g, moves.get(ply));
+      if (move == ChessMove.NONE) {
+        return;
+      }
+
+      // Polyglot writes castling as king-takes-rook
+      ChessPiece moved = g.getBoard().getSquare(ChessMove.getToX(move), ChessMove.getToY(move));
+      int dx = ChessMove.getToX(move) - ChessMove.getFromX(move);
+      if (moved instanceof King && Math.abs(dx) == 2) {
+        int rookX = ChessMove.getToX(move) == 6 ? 7 : 0;
+        move = ChessMove.of(ChessMove.getFromX(move), ChessMove.getFromY(move), rookX,
+            ChessMove.getToY(move));
+      }
+
+      add(key, move, whiteToMove ? whitePoints : 2 - whitePoints);
+    }
+  }
+
+  private void add(long key, int move, int points) {
+    if (n == keys.length) {
+      compact();
+      // still mostly distinct entries, so make room
+      if (n > keys.length * 3 / 4) {
+        keys = Arrays.copyOf(keys, keys.length * 2);
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+    }
+    // flip the sign bit so a signed sort yields Polyglot's unsigned key order
+    keys[n] = key ^ Long.MIN_VALUE;
+    values[n] = ((long) move << 48) | (1L << 24) | points;
+    n++;
+  }
+
+  /**
+   * Sorts the statistics and merges entries for the same position and move
+   */
+  private void compact() {
+    if (n == 0) {
+      return;
+    }
+    PositionIndex.sort(keys, values, 0, n - 1);
+    int out = 0;
+    for (int i = 1; i < n; i++) {
+      if (keys[i] == keys[out] && (values[i] >>> 48) == (values[out] >>> 48)) {
+        long games = Math.min(COUNT_MASK, ((values[out] >>> 24) & COUNT_MASK)
+            + ((values[i] >>> 24) & COUNT_MASK));
+        long points = Math.min(COUNT_MASK, (values[out] & COUNT_MASK) + (values[i] & COUNT_MASK));
+        values[out] = (values[out] & ~((1L << 48) - 1)) | (games << 24) | points;
+      }
+      else {
+        out++;
+        keys[out] = keys[i];
+        values[out] = values[i];
+      }
+    }
+    n = out + 1;
+  }
+
+  /**
+   * Writes the book
+   * @param output .bin file to write
+   * @param minGames moves played in fewer games than this are left out
+   * @return number of entries written
+   * @throws IOException if the file can't be written
+   */
+  public int write(Path output, int minGames) throws IOException {
+    compact();
+    int written = 0;
+    int[] moves = new int[256];
+    long[] weights = new long[256];
+
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(output), 1 << 16))) {
+      int i = 0;
+      while (i < n) {
+        // gather all moves for one position
+        int count = 0;
+        long maxPoints = 0;
+        int j = i;
+        for (; j < n && keys[j] == keys[i]; j++) {
+          long games = (values[j] >>> 24) & COUNT_MASK;
+          long points = values[j] & COUNT_MASK;
+          if (games >= minGames && points > 0 && count < moves.length) {
+            moves[count] = (int) (values[j] >>> 48);
+            weights[count] = points;
+            maxPoints = Math.max(maxPoints, points);
+            count++;
+          }
+        }
+
+        // best move first, as Polyglot tools expect
+        for (int a = 1; a < count; a++) {
+          for (int b = a; b > 0 && weights[b] > weights[b - 1]; b--) {
+            long w = weights[b];
+            weights[b] = weights[b - 1];
+            weights[b - 1] = w;
+            int m = moves[b];
+            moves[b] = moves[b - 1];
+            moves[b - 1] = m;
+          }
+        }
+
+        for (int k = 0; k < count; k++) {
+          long weight = weights[k];
+          if (maxPoints > 0xFFFF) {
+            weight = Math.max(1, weight * 0xFFFF / maxPoints);
+          }
+          out.writeLong(keys[i] ^ Long.MIN_VALUE);
+          out.writeShort(moves[k]);
+          out.writeShort((int) weight);
+          out.writeInt(0); // learn field, unused
+          written++;
+        }
+        i = j;
+      }
+    }
+    return written;
+  }
+
+  public int getGamesRead() {
+    return gamesRead;
+  }
+
+  public int getGamesSkipped() {
+    return gamesSkipped;
+  }
+
+  /**
+   * Command line entry point: <book file> <max ply> <min games> <pgn file>...
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 4) {
+      System.out.println("Usage: OpeningBookBuilder <book.bin> <max ply> <min games> <pgn>...");
+      return;
+    }
+    OpeningBookBuilder builder = new OpeningBookBuilder(Integer.parseInt(args[1]));
+    List<Path> pgns = new ArrayList<Path>();
+    for (int i = 3; i < args.length; i++) {
+      pgns.add(Paths.get(args[i]));
+    }
+    for (Path pgn : pgns) {
+      builder.addPgn(pgn);
+    }
+    int entries = builder.write(Paths.get(args[0]), Integer.parseInt(args[2]));
+    System.out.println(builder.getGamesRead() + " games read, " + builder.getGamesSkipped()
+        + " skipped, " + entries + " book entries written");
+  }
+
+}
@@ -0,0 +1,217 @@
+/**
+ * Immutable, compact snapshot of a position: four longs holding a 4-bit piece code per square,
+ * plus an int for the side to move, castling rights and en passant file. Unlike ChessBoard it has
+ * no back-references and never changes, so it can be shared freely between threads and used as a
+ * cache key. Packing a board walks its 64 squares without allocating anything but the result;
+ * toGame() turns a packed position back into a playable ChessGame.
+ *
+ * Square codes are the Zobrist (Polyglot) piece kind plus one, and 0 for an empty square. The en
+ * passant file is only recorded when a capture is actually available, the same rule the hash uses,
+ * so positions that play the same compare equal.
+ *
+ */
+public final class PackedPosition {
+  public static final int EMPTY = -1;
+
+  private static final int WHITE_TO_MOVE = 1;
+  private static final int CASTLE_SHIFT = 1; // 4 bits: white short, white long, black short, long
+  private static final int EP_SHIFT = 5; // 4 bits: file + 1, or 0 for none
+
+  // two ranks per long, 4 bits per square, square y*8+x at bit 4*(x + 8*(y % 2))
+  private final long ranks01;
+  private final long ranks23;
+  private final long ranks45;
+  private final long ranks67;
+  private final int state;
+  // Zobrist hash, worked out once since cache lookups ask for it on every get and put
+  private final long hash;
+
+  private PackedPosition(long ranks01, long ranks23, long ranks45, long ranks67, int state) {
+    this.ranks01 = ranks01;
+    this.ranks23 = ranks23;
+    this.ranks45 = ranks45;
+    this.ranks67 = ranks67;
+    this.state = state;
+    this.hash = computeHash();
+  }
+
+  /**
+   * Packs the position on a board
+   * @param board board to pack
+   * @param toMove the side whose turn it is
+   * @return the packed position
+   */
+  public static PackedPosition of(ChessBoard board, ChessColor toMove) {
+    long[] ranks = new long[4]; // escapes nowhere, so the JIT can keep it off the heap
+    ChessPiece c;
+    for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+      for (int x = 0; x < ChessBoard.X_DIM; x++) {
+        c = board.getSquare(x, y);
+        if (c != null) {
+          ranks[y / 2] |= (long) (Zobrist.pieceKind(c) + 1) << (4 * (x + 8 * (y % 2)));
+        }
+      }
+    }
+
+    int state = toMove == ChessColor.WHITE ? WHITE_TO_MOVE : 0;
+    if (Zobrist.canCastle(board, ChessColor.WHITE, 7)) { state |= 1 << CASTLE_SHIFT; }
+    if (Zobrist.canCastle(board, ChessColor.WHITE, 0)) { state |= 2 << CASTLE_SHIFT; }
+    if (Zobrist.canCastle(board, ChessColor.BLACK, 7)) { state |= 4 << CASTLE_SHIFT; }
+    if (Zobrist.canCastle(board, ChessColor.BLACK, 0)) { state |= 8 << CASTLE_SHIFT; }
+    state |= (Zobrist.enPassantFile(board, toMove) + 1) << EP_SHIFT;
+
+    return new PackedPosition(ranks[0], ranks[1], ranks[2], ranks[3], state);
+  }
+
+  /**
+   * Returns the piece on a square
+   * @param x file of the square
+   * @param y rank of the square
+   * @return Zobrist piece kind (see Zobrist.pieceKind()), or EMPTY
+   */
+  public int getPiece(int x, int y) {
+    return (int) ((rankPair(y / 2) >>> (4 * (x + 8 * (y % 2)))) & 0xF) - 1;
+  }
+
+  private long rankPair(int i) {
+    switch (i) {
+      case 0: return ranks01;
+      case 1: return ranks23;
+      case 2: return ranks45;
+      default: return ranks67;
+    }
+  }
+
+  public ChessColor getSideToMove() {
+    return (state & WHITE_TO_MOVE) != 0 ? ChessColor.WHITE : ChessColor.BLACK;
+  }
+
+  /**
+   * Checks whether a side still has the castling right towards the rook on rookX (see
+   * Zobrist.canCastle())
+   * @param color side to check
+   * @param rookX 7 for kingside, 0 for queenside
+   * @return true if the right is still there
+   */
+  public boolean canCastle(ChessColor color, int rookX) {
+    int bit = (color == ChessColor.WHITE ? 0 : 2) + (rookX == 7 ? 0 : 1);
+    return (state >>> CASTLE_SHIFT & (1 << bit)) != 0;
+  }
+
+  /**
+   * Returns the file of the pawn the side to move can capture en passant
+   * @return file (0-7), or -1 if there's no such capture
+   */
+  public int getEnPassantFile() {
+    return (state >>> EP_SHIFT & 0xF) - 1;
+  }
+
+  /**
+   * Returns the Zobrist hash of this position; the same value ChessGame.getPositionHash() gives
+   * for it
+   */
+  public long getHash() {
+    return hash;
+  }
+
+  private long computeHash() {
+    long h = 0;
+    for (int i = 0; i < 4; i++) {
+      long r = rankPair(i);
+      while (r != 0) {
+        int shift = Long.numberOfTrailingZeros(r) & ~3;
+        int sq = 16 * i + shift / 4;
+        h ^= Zobrist.pieceKey((int) ((r >>> shift) & 0xF) - 1, sq % 8, sq / 8);
+        r &= ~(0xFL << shift);
+      }
+    }
+    if (canCastle(ChessColor.WHITE, 7)) { h ^= Zobrist.key(Zobrist.CASTLE_WHITE_SHORT); }
+    if (canCastle(ChessColor.WHITE, 0)) { h ^= Zobrist.key(Zobrist.CASTLE_WHITE_LONG); }
+    if (canCastle(ChessColor.BLACK, 7)) { h ^= Zobrist.key(Zobrist.CASTLE_BLACK_SHORT); }
+    if (canCastle(ChessColor.BLACK, 0)) { h ^= Zobrist.key(Zobrist.CASTLE_BLACK_LONG); }
+    if (getEnPassantFile() != -1) {
+      h ^= Zobrist.key(Zobrist.EN_PASSANT + getEnPassantFile());
+    }
+    if (getSideToMove() == ChessColor.WHITE) {
+      h ^= Zobrist.key(Zobrist.TURN);
+    }
+    return h;
+  }
+
+  /**
+   * Rebuilds a playable game at this position
+   * @param white name of the player on white
+   * @param black name of the player on black
+   * @return a new game
+   * @throws IllegalArgumentException if either side doesn't have exactly one king
+   */
+  public ChessGame toGame(String white, String black) {
+    return new ChessGame(white, black, this);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof PackedPosition)) {
+      return false;
+    }
+    PackedPosition p = (PackedPosition) o;
+    return ranks01 == p.ranks01 && ranks23 == p.ranks23 && ranks45 == p.ranks45
+        && ranks67 == p.ranks67 && state == p.state;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(hash);
+  }
+
+  /**
+   * Returns the position in Forsyth-Edwards Notation (without the move counters)
+   */
+  @Override
+  public String toString() {
+    String letters = "pPnNbBrRqQkK";
+    StringBuilder fen = new StringBuilder();
+    for (int y = ChessBoard.Y_DIM - 1; y >= 0; y--) {
+      int empty = 0;
+      for (int x = 0; x < ChessBoard.X_DIM; x++) {
+        int kind = getPiece(x, y);
+        if (kind == EMPTY) {
+          empty++;
+          continue;
+        }
+        if (empty > 0) {
+          fen.append(empty);
+          empty = 0;
+        }
+        fen.append(letters.charAt(kind));
+      }
+      if (empty > 0) {
+        fen.append(empty);
+      }
+      if (y > 0) {
+        fen.append('/');
+      }
+    }
+
+    fen.append(getSideToMove() == ChessColor.WHITE ? " w " : " b ");
+    int length = fen.length();
+    if (canCastle(ChessColor.WHITE, 7)) { fen.append('K'); }
+    if (canCastle(ChessColor.WHITE, 0)) { fen.append('Q'); }
+    if (canCastle(ChessColor.BLACK, 7)) { fen.append('k'); }
+    if (canCastle(ChessColor.BLACK, 0)) { fen.append('q'); }
+    if (fen.length() == length) {
+      fen.append('-');
+    }
+
+    int ep = getEnPassantFile();
+    if (ep == -1) {
+      fen.append(" -");
+    }
+    else {
+      fen.append(' ').append((char) ('a' + ep))
+          .append(getSideToMove() == ChessColor.WHITE ? '6' : '3');
+    }
+    return fen.toString();
+  }
+
+}
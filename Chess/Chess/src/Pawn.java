@@ -46,6 +46,23 @@ public class Pawn extends ChessPiece {
     }
   }
 
+  /**
+   * Returns whether this pawn has moved or captured
+   * @return true if this pawn has moved or captured, false if not
+   */
+  public boolean getHasMovedOrCaptured() {
+    return this.hasMovedOrCaptured;
+  }
+
+  /**
+   * Sets whether this pawn has moved or captured, for setting up positions and
+   * taking back moves
+   * @param hasMovedOrCaptured true if this pawn can no longer double jump
+   */
+  void setHasMovedOrCaptured(boolean hasMovedOrCaptured) {
+    this.hasMovedOrCaptured = hasMovedOrCaptured;
+  }
+
   /**
    * Transforms the pawn's row change in a move to respect its direction. Basically, 'y + 1' only
    * works for white pawns and 'y - 1' only works for black pawns. y + pawnForward(1) works for both
@@ -130,12 +147,13 @@ public class Pawn extends ChessPiece {
       result.add(new Integer[] {this.getX(), this.getY() + pawnForward(2)});
     }
 
-    // captures
-    if (this.canCapture(this.getX() - 1, this.getY() + pawnForward(1))) {
-      result.add(new Integer[] {this.getX() - 1, this.getY() + pawnForward(1)});
-    }
-    if (this.canCapture(this.getX() + 1, this.getY() + pawnForward(1))) {
-      result.add(new Integer[] {this.getX() - 1, this.getY() + pawnForward(1)});
+    // captures (including en passant) on the squares this pawn attacks
+    for (long m = AttackTables.pawn(this.getColor(), this.getX(), this.getY()); m != 0;
+        m &= m - 1) {
+      int sq = Long.numberOfTrailingZeros(m);
+      if (this.canCapture(sq % 8, sq / 8)) {
+        result.add(new Integer[] {sq % 8, sq / 8});
+      }
     }
 
     return result;
@@ -163,17 +181,9 @@ public class Pawn extends ChessPiece {
       return false;
     }
 
-    // must be in an adjacent column
-    if (x != this.getX() + 1 && x != this.getX() - 1) {
-      return false;
-    }
-
-    // must be in the next row
-    if (y != this.getY() + pawnForward(1)) {
-      return false;
-    }
-
-    return true;
+    // must be diagonally forward
+    return AttackTables.contains(AttackTables.pawn(this.getColor(), this.getX(), this.getY()), x,
+        y);
   }
 
   /**
@@ -0,0 +1,68 @@
+/**
+ * Perft: counts the leaf nodes of the legal move tree to a fixed depth, the standard check that
+ * move generation is right (the counts from the start position are well known, see START_COUNTS)
+ * and a repeatable benchmark of the board code. Usage:
+ *    Perft [max depth] [move ...]
+ * plays the moves (e.g. e2e4 e7e5) from the start position, then prints the count and time of
+ * every depth from 1 to max depth, checking the counts when no moves were given. To compare two
+ * versions of the board, run both on the same arguments.
+ *
+ */
+public final class Perft {
+  /**
+   * Leaf counts from the start position, by depth
+   */
+  public static final long[] START_COUNTS = {1, 20, 400, 8902, 197281, 4865609, 119060324};
+
+  private Perft() {
+  }
+
+  /**
+   * Counts the positions reached after depth plies of legal moves. Plays and undoes moves on the
+   * game, leaving it as it was.
+   * @param game game to count from
+   * @param depth number of plies
+   * @return number of leaf positions
+   */
+  public static long perft(ChessGame game, int depth) {
+    if (depth == 0) {
+      return 1;
+    }
+    int[] moves = game.getLegalMoves();
+    if (depth == 1) {
+      return moves.length; // saves playing the last ply
+    }
+    long nodes = 0;
+    for (int move : moves) {
+      ChessMove.apply(game, move);
+      nodes += perft(game, depth - 1);
+      game.undo();
+    }
+    return nodes;
+  }
+
+  public static void main(String[] args) {
+    int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    ChessGame game = new ChessGame("white", "black");
+    for (int i = 1; i < args.length; i++) {
+      if (!ChessMove.apply(game, ChessMove.parse(args[i]))) {
+        throw new IllegalArgumentException("Illegal move " + args[i]);
+      }
+    }
+    boolean check = args.length < 2;
+
+    for (int depth = 1; depth <= maxDepth; depth++) {
+      long start = System.nanoTime();
+      long nodes = perft(game, depth);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      String verdict = "";
+      if (check && depth < START_COUNTS.length) {
+        verdict = nodes == START_COUNTS[depth] ? "  ok"
+            : "  WRONG, expected " + START_COUNTS[depth];
+      }
+      System.out.printf("depth %d: %12d nodes %9.3f s %12.0f nodes/s%s%n", depth, nodes, seconds,
+          nodes / seconds, verdict);
+    }
+  }
+
+}
@@ -0,0 +1,261 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Minimal PGN reader. Reads the tag pairs and the main line of each game (comments, variations and
+ * NAGs are skipped), and plays standard algebraic notation moves into a ChessGame.
+ *
+ */
+public class PgnReader {
+
+  /**
+   * One game from a PGN file: its tag pairs, its main line in SAN and its result
+   */
+  public static class PgnGame {
+    private final Map<String, String> tags;
+    private final List<String> moves;
+    private final String result;
+
+    public PgnGame(Map<String, String> tags, List<String> moves, String result) {
+      this.tags = tags;
+      this.moves = moves;
+      this.result = result;
+    }
+
+    public Map<String, String> getTags() {
+      return tags;
+    }
+
+    public List<String> getMoves() {
+      return moves;
+    }
+
+    /**
+     * Returns the game result: "1-0", "0-1", "1/2-1/2" or "*" if unknown
+     */
+    public String getResult() {
+      return result;
+    }
+  }
+
+  private PgnReader() {
+  }
+
+  /**
+   * Reads every game in a PGN file and hands it to the given consumer, in file order
+   * @param file PGN file
+   * @param consumer called once per game
+   * @throws IOException if the file can't be read
+   */
+  public static void forEach(Path file, Consumer<PgnGame> consumer) throws IOException {
+    try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+      Map<String, String> tags = new LinkedHashMap<String, String>();
+      StringBuilder movetext = new StringBuilder();
+      String line;
+
+      while ((line = in.readLine()) != null) {
+        String trimmed = line.trim();
+        if (trimmed.startsWith("[") && trimmed.endsWith("]")) {
+          // a tag after movetext means the previous game is done
+          if (movetext.length() > 0) {
+            consumer.accept(toGame(tags, movetext));
+            tags = new LinkedHashMap<String, String>();
+            movetext.setLength(0);
+          }
+          parseTag(trimmed, tags);
+        }
+        else if (!trimmed.startsWith("%")) { // '%' lines are escapes, ignored by spec
+          movetext.append(line).append('\n');
+        }
+      }
+
+      if (movetext.toString().trim().length() > 0 || !tags.isEmpty()) {
+        consumer.accept(toGame(tags, movetext));
+      }
+    }
+  }
+
+  private static void parseTag(String line, Map<String, String> tags) {
+    int space = line.indexOf(' ');
+    int open = line.indexOf('"');
+    int close = line.lastIndexOf('"');
+    if (space < 0 || open < 0 || close <= open) {
+      return; // not a well-formed tag, ignore it
+    }
+    tags.put(line.substring(1, space), line.substring(open + 1, close));
+  }
+
+  private static PgnGame toGame(Map<String, String> tags, CharSequence movetext) {
+    List<String> moves = new ArrayList<String>();
+    String result = tags.containsKey("Result") ? tags.get("Result") : "*";
+    StringBuilder token = new StringBuilder();
+    int depth = 0; // variation nesting depth
+
+    for (int i = 0; i <= movetext.length(); i++) {
+      char ch = i < movetext.length() ? movetext.charAt(i) : ' ';
+
+      if (ch == '{') { // brace comment
+        while (i < movetext.length() && movetext.charAt(i) != '}') {
+          i++;
+        }
+        ch = ' ';
+      }
+      else if (ch == ';') { // rest-of-line comment
+        while (i < movetext.length() && movetext.charAt(i) != '\n') {
+          i++;
+        }
+        ch = ' ';
+      }
+
+      if (ch == '(' || ch == ')' || Character.isWhitespace(ch)) {
+        if (token.length() > 0 && depth == 0) {
+          String t = token.toString();
+          if (t.equals("1-0") || t.equals("0-1") || t.equals("1/2-1/2") || t.equals("*")) {
+            result = t;
+          }
+          else if (!t.startsWith("$")) {
+            // strip move numbers like "12." or "12..." (possibly glued onto the move)
+            int j = 0;
+            while (j < t.length() && (Character.isDigit(t.charAt(j)) || t.charAt(j) == '.')) {
+              j++;
+            }
+            if (j < t.length() && (j == 0 || t.charAt(j - 1) == '.')) {
+              moves.add(t.substring(j));
+            }
+          }
+        }
+        token.setLength(0);
+        if (ch == '(') {
+          depth++;
+        }
+        else if (ch == ')') {
+          depth = Math.max(0, depth - 1);
+        }
+      }
+      else {
+        token.append(ch);
+      }
+    }
+    return new PgnGame(tags, moves, result);
+  }
+
+  /**
+   * Plays a move given in standard algebraic notation (e.g. "Nf3", "exd5", "O-O", "e8=Q+") for
+   * the side to move, including the promotion if there is one
+   * @param game game to play the move in
+   * @param san the move in SAN
+   * @return the packed move that was played (see ChessMove), or ChessMove.NONE if the move is
+   * illegal or can't be read
+   */
+  public static int playSan(ChessGame game, String san) {
+    String s = san.replaceAll("[+#!?]", "");
+    int y = game.getWhoseTurn().getColor() == ChessColor.WHITE ? 0 : 7;
+
+    // castling
+    if (s.equals("O-O-O") || s.equals("0-0-0")) {
+      return game.nextTurn(4, y, 2, y) ? ChessMove.of(4, y, 2, y) : ChessMove.NONE;
+    }
+    if (s.equals("O-O") || s.equals("0-0")) {
+      return game.nextTurn(4, y, 6, y) ? ChessMove.of(4, y, 6, y) : ChessMove.NONE;
+    }
+
+    String pieceName = "Pawn";
+    if (s.length() > 0 && "KQRBN".indexOf(s.charAt(0)) >= 0) {
+      pieceName = pieceNameFromLetter(s.charAt(0));
+      s = s.substring(1);
+    }
+
+    // promotion, either "e8=Q" or "e8Q"
+    int promo = ChessMove.PROMO_NONE;
+    if (pieceName.equals("Pawn") && s.length() > 2) {
+      int p = " NBRQ".indexOf(s.charAt(s.length() - 1));
+      if (p > 0) {
+        promo = p;
+        s = s.substring(0, s.length() - 1);
+        if (s.endsWith("=")) {
+          s = s.substring(0, s.length() - 1);
+        }
+      }
+    }
+
+    if (s.length() < 2) {
+      return ChessMove.NONE;
+    }
+    int[] target;
+    try {
+      target = ChessGame.notationToCoordinates(s.substring(s.length() - 2));
+    } catch (IllegalArgumentException e) {
+      return ChessMove.NONE;
+    }
+    String disambig = s.substring(0, s.length() - 2).replace("x", "");
+    int fileHint = -1;
+    int rankHint = -1;
+    for (char c : disambig.toCharArray()) {
+      if (c >= 'a' && c <= 'h') {
+        fileHint = c - 'a';
+      }
+      else if (c >= '1' && c <= '8') {
+        rankHint = c - '1';
+      }
+      else {
+        return ChessMove.NONE;
+      }
+    }
+
+    // try each piece that could make the move; SAN is unambiguous among legal moves, so the first
+    // one that nextTurn() accepts is the one that was meant
+    ChessColor color = game.getWhoseTurn().getColor();
+    ChessBoard board = game.getBoard();
+    for (int x = 0; x < ChessBoard.X_DIM; x++) {
+      if (fileHint != -1 && x != fileHint) {
+        continue;
+      }
+      for (int yy = 0; yy < ChessBoard.Y_DIM; yy++) {
+        if (rankHint != -1 && yy != rankHint) {
+          continue;
+        }
+        ChessPiece c = board.getSquare(x, yy);
+        if (c == null || c.getColor() != color || !c.getName().equals(pieceName)) {
+          continue;
+        }
+        if (!c.canMove(target[0], target[1]) && !c.canCapture(target[0], target[1])) {
+          continue;
+        }
+        if (game.nextTurn(x, yy, target[0], target[1])) {
+          if (game.pawnNeedsPromotion()) {
+            if (promo == ChessMove.PROMO_NONE) {
+              promo = ChessMove.PROMO_QUEEN;
+            }
+            game.promotePawn(ChessMove.promotionCode(promo));
+          }
+          return ChessMove.of(x, yy, target[0], target[1], promo);
+        }
+      }
+    }
+    return ChessMove.NONE;
+  }
+
+  private static String pieceNameFromLetter(char letter) {
+    switch (letter) {
+      case 'K':
+        return "King";
+      case 'Q':
+        return "Queen";
+      case 'R':
+        return "Rook";
+      case 'B':
+        return "Bishop";
+      default:
+        return "Knight";
+    }
+  }
+
+}
@@ -0,0 +1,531 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk index from position hash to every (game id, ply) in an archive where that position
+ * occurred. The file is a header followed by 16-byte entries (hash, game id << 16 | ply) sorted by
+ * hash, and is memory-mapped for lookups so the index never has to fit on the heap.
+ *
+ * Building replays every archived game through ChessGame. Each archive file (shard) is replayed on
+ * its own worker thread, which spills sorted runs to disk whenever its buffer fills up; the runs
+ * are then k-way merged into the final file.
+ *
+ */
+public class PositionIndex {
+  private static final long MAGIC = 0x504f534944583031L; // "POSIDX01"
+  private static final int HEADER_BYTES = 16;
+  private static final int ENTRY_BYTES = 16;
+  // entries per mapped segment (1 GiB), since one MappedByteBuffer tops out at 2 GiB
+  private static final int SEGMENT_ENTRIES = 1 << 26;
+  private static final int DEFAULT_RUN_ENTRIES = 1 << 22;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer[] segments;
+  private final long size;
+
+  private PositionIndex(FileChannel channel, MappedByteBuffer[] segments, long size) {
+    this.channel = channel;
+    this.segments = segments;
+    this.size = size;
+  }
+
+  /**
+   * Packs a game id and ply into an index value
+   * @param gameId id of the game (must fit in 48 bits)
+   * @param ply number of half-moves played when the position occurred (0 = start position)
+   * @return packed value
+   */
+  public static long pack(long gameId, int ply) {
+    if (gameId < 0 || gameId >= (1L << 48) || ply < 0 || ply > 0xFFFF) {
+      throw new IllegalArgumentException("Game id or ply out of range");
+    }
+    return (gameId << 16) | ply;
+  }
+
+  public static long getGameId(long value) {
+    return value >>> 16;
+  }
+
+  public static int getPly(long value) {
+    return (int) (value & 0xFFFF);
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // Lookup
+
+  /**
+   * Opens an index file for lookups
+   * @param file index file written by build()
+   * @return the opened index
+   * @throws IOException if the file can't be read or isn't an index
+   */
+  public static PositionIndex open(Path file) throws IOException {
+    FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    while (header.hasRemaining() && ch.read(header, header.position()) >= 0) {
+      // keep reading until the header is full or the file ends
+    }
+    header.flip();
+    if (header.remaining() < HEADER_BYTES || header.getLong() != MAGIC) {
+      ch.close();
+      throw new IOException(file + " is not a position index");
+    }
+    long count = header.getLong();
+    if (ch.size() != HEADER_BYTES + count * ENTRY_BYTES) {
+      ch.close();
+      throw new IOException(file + " is truncated");
+    }
+
+    int numSegments = (int) ((count + SEGMENT_ENTRIES - 1) / SEGMENT_ENTRIES);
+    MappedByteBuffer[] segs = new MappedByteBuffer[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      long first = (long) i * SEGMENT_ENTRIES;
+      long entries = Math.min(SEGMENT_ENTRIES, count - first);
+      segs[i] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * ENTRY_BYTES,
+          entries * ENTRY_BYTES);
+    }
+    return new PositionIndex(ch, segs, count);
+  }
+
+  /**
+   * Returns the number of (position, game, ply) entries in this index
+   */
+  public long size() {
+    return size;
+  }
+
+  private long keyAt(long i) {
+    return segments[(int) (i >>> 26)].getLong((int) (i & (SEGMENT_ENTRIES - 1)) * ENTRY_BYTES);
+  }
+
+  private long valueAt(long i) {
+    return segments[(int) (i >>> 26)].getLong((int) (i & (SEGMENT_ENTRIES - 1)) * ENTRY_BYTES + 8);
+  }
+
+  /**
+   * Finds the first entry whose key is >= hash. Zobrist keys are uniformly distributed, so a few
+   * interpolation steps narrow the range to a handful of entries before finishing with a binary
+   * search.
+   * @param hash key to search for
+   * @return index of the first entry with key >= hash (size() if there is none)
+   */
+  private long lowerBound(long hash) {
+    long lo = 0;
+    long hi = size; // search range is [lo, hi)
+
+    for (int step = 0; step < 8 && hi - lo > 32; step++) {
+      long kLo = keyAt(lo);
+      long kHi = keyAt(hi - 1);
+      if (hash <= kLo) {
+        return lo;
+      }
+      if (hash > kHi) {
+        return hi;
+      }
+      double fraction = ((double) hash - (double) kLo) / ((double) kHi - (double) kLo);
+      long guess = lo + (long) (fraction * (hi - 1 - lo));
+      guess = Math.max(lo + 1, Math.min(hi - 1, guess));
+      if (keyAt(guess) < hash) {
+        lo = guess + 1;
+      }
+      else {
+        // guess might be the answer itself, so keep it in range
+        hi = guess + 1;
+      }
+    }
+
+    while (lo < hi) {
+      long mid = (lo + hi) >>> 1;
+      if (keyAt(mid) < hash) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Returns how many times the given position occurs in the archive
+   * @param hash Zobrist hash of the position (see ChessGame.getPositionHash())
+   * @return number of (game, ply) pairs at which the position occurred
+   */
+  public long count(long hash) {
+    long i = lowerBound(hash);
+    long start = i;
+    while (i < size && keyAt(i) == hash) {
+      i++;
+    }
+    return i - start;
+  }
+
+  /**
+   * Returns every (game id, ply) at which the given position occurred
+   * @param hash Zobrist hash of the position (see ChessGame.getPositionHash())
+   * @return packed values, sorted by game id then ply; decode with getGameId() and getPly()
+   */
+  public long[] lookup(long hash) {
+    long i = lowerBound(hash);
+    int n = 0;
+    while (i + n < size && keyAt(i + n) == hash) {
+      n++;
+    }
+    long[] result = new long[n];
+    for (int j = 0; j < n; j++) {
+      result[j] = valueAt(i + j);
+    }
+    return result;
+  }
+
+  /**
+   * Releases the underlying file. The mapping itself is released once it's garbage collected.
+   */
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // Building
+
+  /**
+   * Builds an index over one or more archive files (see GameArchive), replaying shards in parallel
+   * @param shards archive files, one task per file
+   * @param output index file to write
+   * @param threads number of worker threads
+   * @return number of games that were skipped because they contained an illegal move
+   * @throws IOException if reading or writing fails
+   */
+  public static long build(List<Path> shards, Path output, int threads) throws IOException {
+    return build(shards, output, threads, DEFAULT_RUN_ENTRIES);
+  }
+
+  static long build(List<Path> shards, Path output, int threads, int runEntries)
+      throws IOException {
+    Path tmpDir = Files.createTempDirectory(output.toAbsolutePath().getParent(), "posidx");
+    List<Path> runs = new ArrayList<Path>();
+    AtomicLong skipped = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    Throwable failure = null;
+
+    try {
+      List<Future<List<Path>>> results = new ArrayList<Future<List<Path>>>();
+      for (Path shard : shards) {
+        results.add(pool.submit(() -> indexShard(shard, tmpDir, runEntries, skipped)));
+      }
+      for (Future<List<Path>> f : results) {
+        try {
+          runs.addAll(f.get());
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IllegalStateException("Indexing a shard failed", e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while building the index", e);
+        }
+      }
+
+      mergeRuns(runs, output);
+    } catch (Throwable e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      try {
+        cleanUp(pool, tmpDir);
+      } catch (IOException e) {
+        // don't let a leftover file hide why the build failed
+        if (failure == null) {
+          throw e;
+        }
+        failure.addSuppressed(e);
+      }
+    }
+    return skipped.get();
+  }
+
+  /**
+   * Stops the workers and deletes tmpDir with everything in it, including runs from shards whose
+   * results were never collected because another shard failed first
+   */
+  private static void cleanUp(ExecutorService pool, Path tmpDir) throws IOException {
+    pool.shutdownNow();
+    try {
+      // a worker still spilling a run would write it after the delete otherwise
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while stopping the index workers", e);
+    }
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(tmpDir)) {
+      files = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+    }
+    for (Path file : files) { // children before their directory
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Replays every game of one shard, spilling a sorted run each time the buffer fills up
+   */
+  private static List<Path> indexShard(Path shard, Path tmpDir, int runEntries, AtomicLong skipped)
+      throws IOException {
+    List<Path> runs = new ArrayList<Path>();
+    long[] keys = new long[runEntries];
+    long[] values = new long[runEntries];
+    int[] n = new int[1];
+    IOException[] error = new IOException[1];
+
+    // scratch arrays so a game that turns out to be illegal halfway through isn't half-indexed
+    long[][] gameKeys = new long[][] { new long[256] };
+
+    GameArchive.forEach(shard, game -> {
+      if (error[0] != null) {
+        return;
+      }
+      int[] moves = game.getMoves();
+      if (gameKeys[0].length < moves.length + 1) {
+        gameKeys[0] = new long[moves.length + 1];
+      }
+      ChessGame g = new ChessGame("White", "Black");
+      gameKeys[0][0] = g.getPositionHash();
+      try {
+        for (int ply = 0; ply < moves.length; ply++) {
+          if (!ChessMove.apply(g, moves[ply])) {
+            skipped.incrementAndGet();
+            return;
+          }
+          gameKeys[0][ply + 1] = g.getPositionHash();
+        }
+      } catch (IllegalStateException e) {
+        // moves after the game was already over
+        skipped.incrementAndGet();
+        return;
+      }
+
+      for (int ply = 0; ply <= moves.length; ply++) {
+        if (n[0] == runEntries) {
+          try {
+            runs.add(writeRun(keys, values, n[0], tmpDir));
+          } catch (IOException e) {
+            error[0] = e;
+            return;
+          }
+          n[0] = 0;
+        }
+        keys[n[0]] = gameKeys[0][ply];
+        values[n[0]] = pack(game.getId(), ply);
+        n[0]++;
+      }
+    });
+
+    if (error[0] != null) {
+      throw error[0];
+    }
+    if (n[0] > 0) {
+      runs.add(writeRun(keys, values, n[0], tmpDir));
+    }
+    return runs;
+  }
+
+  private static Path writeRun(long[] keys, long[] values, int n, Path tmpDir) throws IOException {
+    sort(keys, values, 0, n - 1);
+    Path run = Files.createTempFile(tmpDir, "run", ".bin");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+      for (int i = 0; i < n; i++) {
+        out.writeLong(keys[i]);
+        out.writeLong(values[i]);
+      }
+    }
+    return run;
+  }
+
+  /**
+   * One open run during the k-way merge
+   */
+  private static class RunReader implements Comparable<RunReader> {
+    private final DataInputStream in;
+    private long key;
+    private long value;
+
+    RunReader(Path run) throws IOException {
+      InputStream s = Files.newInputStream(run);
+      in = new DataInputStream(new BufferedInputStream(s, 1 << 16));
+    }
+
+    boolean advance() throws IOException {
+      try {
+        key = in.readLong();
+        value = in.readLong();
+        return true;
+      } catch (EOFException e) {
+        in.close();
+        return false;
+      }
+    }
+
+    @Override
+    public int compareTo(RunReader o) {
+      int c = Long.compare(key, o.key);
+      return c != 0 ? c : Long.compare(value, o.value);
+    }
+  }
+
+  private static void mergeRuns(List<Path> runs, Path output) throws IOException {
+    long count = 0;
+    for (Path run : runs) {
+      count += Files.size(run) / ENTRY_BYTES;
+    }
+
+    PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>();
+    try (OutputStream os = Files.newOutputStream(output);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+      out.writeLong(MAGIC);
+      out.writeLong(count);
+
+      for (Path run : runs) {
+        RunReader r = new RunReader(run);
+        if (r.advance()) {
+          heap.add(r);
+        }
+      }
+      while (!heap.isEmpty()) {
+        RunReader r = heap.poll();
+        out.writeLong(r.key);
+        out.writeLong(r.value);
+        if (r.advance()) {
+          heap.add(r);
+        }
+      }
+    }
+    finally {
+      for (RunReader r : heap) {
+        r.in.close();
+      }
+    }
+  }
+
+  /**
+   * Sorts two parallel arrays by key, then value, over [lo, hi]
+   */
+  static void sort(long[] keys, long[] values, int lo, int hi) {
+    while (hi - lo > 16) {
+      int mid = (lo + hi) >>> 1;
+      long pk = keys[mid];
+      long pv = values[mid];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (less(keys[i], values[i], pk, pv)) {
+          i++;
+        }
+        while (less(pk, pv, keys[j], values[j])) {
+          j--;
+        }
+        if (i <= j) {
+          swap(keys, values, i, j);
+          i++;
+          j--;
+        }
+      }
+      // recurse into the smaller half, loop on the larger one
+      if (j - lo < hi - i) {
+        sort(keys, values, lo, j);
+        lo = i;
+      }
+      else {
+        sort(keys, values, i, hi);
+        hi = j;
+      }
+    }
+
+    // insertion sort for the small leftovers
+    for (int i = lo + 1; i <= hi; i++) {
+      for (int j = i; j > lo && less(keys[j], values[j], keys[j - 1], values[j - 1]); j--) {
+        swap(keys, values, j, j - 1);
+      }
+    }
+  }
+
+  private static boolean less(long k1, long v1, long k2, long v2) {
+    return k1 < k2 || (k1 == k2 && v1 < v2);
+  }
+
+  private static void swap(long[] keys, long[] values, int i, int j) {
+    long k = keys[i];
+    keys[i] = keys[j];
+    keys[j] = k;
+    long v = values[i];
+    values[i] = values[j];
+    values[j] = v;
+  }
+
+  /**
+   * Command line entry point:
+   *    build <index file> <archive file>...
+   *    query <index file> <move>...    (moves from the start position, e.g. e2e4 e7e5)
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length >= 3 && args[0].equals("build")) {
+      List<Path> shards = new ArrayList<Path>();
+      for (int i = 2; i < args.length; i++) {
+        shards.add(Paths.get(args[i]));
+      }
+      long start = System.nanoTime();
+      long skipped = build(shards, Paths.get(args[1]), Runtime.getRuntime().availableProcessors());
+      System.out.println("Built index in " + (System.nanoTime() - start) / 1000000 + " ms ("
+          + skipped + " games skipped)");
+    }
+    else if (args.length >= 2 && args[0].equals("query")) {
+      ChessGame g = new ChessGame("White", "Black");
+      for (int i = 2; i < args.length; i++) {
+        if (!ChessMove.apply(g, ChessMove.parse(args[i]))) {
+          throw new IllegalArgumentException("Illegal move: " + args[i]);
+        }
+      }
+      PositionIndex index = open(Paths.get(args[1]));
+      long start = System.nanoTime();
+      long[] hits = index.lookup(g.getPositionHash());
+      long elapsed = System.nanoTime() - start;
+      for (long v : hits) {
+        System.out.println("game " + getGameId(v) + " ply " + getPly(v));
+      }
+      System.out.println(hits.length + " hits in " + elapsed / 1000 + " us");
+      index.close();
+    }
+    else {
+      System.out.println("Usage: PositionIndex build <index> <archive>... | "
+          + "query <index> <move>...");
+    }
+  }
+
+}
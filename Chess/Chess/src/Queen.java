@@ -19,9 +19,7 @@ public class Queen extends ChessPiece {
       return false;
     }
     
-    return board.hasClearHorizontalPath(getX(), getY(), x, y) ||
-        board.hasClearVerticalPath(getX(), getY(), x, y) ||
-        board.hasClearDiagonalPath(getX(), getY(), x, y);
+    return board.hasClearPath(getX(), getY(), x, y);
   }
 
   @Override
@@ -30,47 +28,13 @@ public class Queen extends ChessPiece {
       return false;
     }
     
-    return board.hasClearHorizontalPath(getX(), getY(), x, y) ||
-        board.hasClearVerticalPath(getX(), getY(), x, y) ||
-        board.hasClearDiagonalPath(getX(), getY(), x, y);
+    return board.hasClearPath(getX(), getY(), x, y);
   }
 
   @Override
   public ArrayList<Integer[]> getPossibleMovesOrCaptures() {
     ArrayList<Integer[]> moves = new ArrayList<Integer[]>();
-    int dx;
-    int[] yVals = new int[2];
-    
-    // TODO shamelessly copy+pasted from bishop and rook...it should be refactored I know
-    
-    // check diagonals
-    for (int x = 0; x < ChessBoard.X_DIM; x++) {
-      // it's hard to explain...just work it out on a board yourself
-      dx = x - this.getX();
-      yVals[0] = this.getY() + dx;
-      yVals[1] = this.getY() - dx;
-      
-      for (int y : yVals) {
-        if (this.canMove(x, y) || this.canCapture(x, y)) {
-          moves.add(new Integer[] {x, y});
-        }
-      }
-    }
-    
-    // check entire column
-    for (int y = 0; y < ChessBoard.Y_DIM; y++) {
-      if (this.canMove(this.getX(), y) || this.canCapture(this.getX(), y)) {
-        moves.add(new Integer[] { this.getX(), y });
-      }
-    }
-    
-    // check entire row
-    for (int x = 0; x < ChessBoard.X_DIM; x++) {
-      if (this.canMove(x, this.getY()) || this.canCapture(x, this.getY())) {
-        moves.add(new Integer[] { x, this.getY() });
-      }
-    }
-    
+    this.board.addSlides(this, ChessBoard.QUEEN_DIRECTIONS, moves);
     return moves;
   }
   
@@ -63,22 +63,7 @@ public class Rook extends ChessPiece {
   @Override
   public ArrayList<Integer[]> getPossibleMovesOrCaptures() {
     ArrayList<Integer[]> result = new ArrayList<Integer[]>();
-    
-    // check entire column
-    for (int yLoop = 0; yLoop < ChessBoard.Y_DIM; yLoop++) {
-      if (this.canMove(this.getX(), yLoop) || this.canCapture(this.getX(), yLoop)) {
-        result.add(new Integer[] { this.getX(), yLoop });
-      }
-    }
-    
-    // check entire row
-    for (int xLoop = 0; xLoop < ChessBoard.X_DIM; xLoop++) {
-      if (this.canMove(xLoop, this.getY()) || this.canCapture(xLoop, this.getY())) {
-        result.add(new Integer[] { xLoop, this.getY() });
-      }
-    }
-    
-    // check entire row
+    this.board.addSlides(this, ChessBoard.ROOK_DIRECTIONS, result);
     return result;
   }
   
@@ -102,6 +87,15 @@ public class Rook extends ChessPiece {
   public boolean getHasMovedOrCaptured() {
     return this.hasMovedOrCaptured;
   }
+
+  /**
+   * Sets whether this Rook has moved or captured, for setting up positions and
+   * taking back moves
+   * @param hasMovedOrCaptured true if this rook can no longer castle
+   */
+  void setHasMovedOrCaptured(boolean hasMovedOrCaptured) {
+    this.hasMovedOrCaptured = hasMovedOrCaptured;
+  }
   
   /**
    * Naive position-setter that bypasses canMove(), to be used by King for castling purposes ONLY.
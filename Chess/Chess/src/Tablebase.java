@@ -0,0 +1,641 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Distance-to-mate endgame tablebase for a king and one piece (queen, rook or pawn) against a lone
+ * king, i.e. KQK, KRK and KPK. The side with the extra piece is called the strong side. Tables are
+ * generated by retrograde analysis and probed by ChessGame.getTablebaseMove().
+ *
+ * Positions are indexed as (side to move, strong king, weak king, piece) with squares numbered
+ * y * 8 + x from the strong side's point of view, giving one byte per position:
+ *    0              draw
+ *    n > 0          side to move mates in n plies
+ *    -(n + 1) < 0   side to move gets mated in n plies (-1 means checkmated already)
+ *    ILLEGAL        not a reachable position
+ * isWin(), isLoss() and matePlies() decode these. Every generation pass is spread over all cores.
+ * Castling rights are ignored, so positions where castling is still possible aren't probed.
+ *
+ */
+public class Tablebase {
+  public static final byte ILLEGAL = Byte.MIN_VALUE;
+  public static final int SIZE = 2 * 64 * 64 * 64;
+
+  private static final long MAGIC = 0x4348455353544231L; // "CHESSTB1"
+  private static final int STRONG = 0; // side to move values used in the index
+  private static final int WEAK = 1;
+  private static final int MAX_PLIES = 125;
+
+  private static final int[] KING_DX = {-1, 0, 1, -1, 1, -1, 0, 1};
+  private static final int[] KING_DY = {-1, -1, -1, 0, 0, 1, 1, 1};
+  private static final int[] ROOK_DX = {1, -1, 0, 0};
+  private static final int[] ROOK_DY = {0, 0, 1, -1};
+  private static final int[] QUEEN_DX = {1, -1, 0, 0, 1, 1, -1, -1};
+  private static final int[] QUEEN_DY = {0, 0, 1, -1, 1, -1, 1, -1};
+
+  private final char piece; // 'Q', 'R' or 'P'
+  private final byte[] table;
+  // KPK needs the tables its promotions lead into
+  private final Tablebase queens;
+  private final Tablebase rooks;
+
+  private Tablebase(char piece, byte[] table, Tablebase queens, Tablebase rooks) {
+    this.piece = piece;
+    this.table = table;
+    this.queens = queens;
+    this.rooks = rooks;
+  }
+
+  /**
+   * Generates KQK, KRK and KPK
+   * @return the three tables, in that order
+   */
+  public static Tablebase[] generateAll() {
+    Tablebase kqk = generate('Q', null, null);
+    Tablebase krk = generate('R', null, null);
+    Tablebase kpk = generate('P', kqk, krk);
+    return new Tablebase[] {kqk, krk, kpk};
+  }
+
+  /**
+   * Returns the material signature of this table, e.g. "KQK"
+   */
+  public String getSignature() {
+    return "K" + piece + "K";
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // Index and value helpers
+
+  private static int index(int stm, int sk, int wk, int p) {
+    return (((stm << 6) | sk) << 12) | (wk << 6) | p;
+  }
+
+  private static byte win(int plies) {
+    return (byte) plies;
+  }
+
+  private static byte loss(int plies) {
+    return (byte) -(plies + 1);
+  }
+
+  /**
+   * Checks whether a table value is a win for the side to move
+   */
+  public static boolean isWin(byte value) {
+    return value > 0;
+  }
+
+  /**
+   * Checks whether a table value is a loss for the side to move
+   */
+  public static boolean isLoss(byte value) {
+    return value < 0 && value != ILLEGAL;
+  }
+
+  /**
+   * Returns the number of plies until mate for a won or lost value (0 if the side to move is
+   * already checkmated, or for draws)
+   */
+  public static int matePlies(byte value) {
+    if (isWin(value)) {
+      return value;
+    }
+    return isLoss(value) ? -value - 1 : 0;
+  }
+
+  /**
+   * Converts the value of the position after a move into a signed distance to mate for the side
+   * that made the move: positive if it mates, negative if it gets mated, 0 for a draw
+   */
+  private static int afterMove(byte successor) {
+    if (isLoss(successor)) {
+      return matePlies(successor) + 1;
+    }
+    if (isWin(successor)) {
+      return -(matePlies(successor) + 1);
+    }
+    return 0;
+  }
+
+  private static boolean adjacent(int a, int b) {
+    return Math.max(Math.abs((a & 7) - (b & 7)), Math.abs((a >> 3) - (b >> 3))) == 1;
+  }
+
+  private static int step(int sq, int dx, int dy) {
+    int x = (sq & 7) + dx;
+    int y = (sq >> 3) + dy;
+    return ChessBoard.isOnBoard(x, y) ? y * 8 + x : -1;
+  }
+
+  /**
+   * Checks whether the strong piece on p attacks square t, with the strong king as the only
+   * possible blocker (the weak king is either the target or has just left)
+   */
+  private boolean pieceAttacks(int p, int t, int sk) {
+    int dx = (t & 7) - (p & 7);
+    int dy = (t >> 3) - (p >> 3);
+    if (piece == 'P') {
+      return dy == 1 && Math.abs(dx) == 1;
+    }
+    if (dx == 0 && dy == 0) {
+      return false;
+    }
+    boolean straight = dx == 0 || dy == 0;
+    boolean diagonal = Math.abs(dx) == Math.abs(dy);
+    if (!straight && !(diagonal && piece == 'Q')) {
+      return false;
+    }
+    int sx = Integer.signum(dx);
+    int sy = Integer.signum(dy);
+    for (int sq = step(p, sx, sy); sq != t; sq = step(sq, sx, sy)) {
+      if (sq == sk) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isLegal(int stm, int sk, int wk, int p) {
+    if (sk == wk || p == sk || p == wk || adjacent(sk, wk)) {
+      return false;
+    }
+    if (piece == 'P' && ((p >> 3) == 0 || (p >> 3) == 7)) {
+      return false;
+    }
+    // the weak side can't have left its king in check
+    return stm == WEAK || !pieceAttacks(p, wk, sk);
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // Generation
+
+  /**
+   * Generates one table
+   * @param piece 'Q', 'R' or 'P'
+   * @param queens KQK table (needed for KPK promotions, otherwise null)
+   * @param rooks KRK table (needed for KPK promotions, otherwise null)
+   * @return the generated table
+   */
+  public static Tablebase generate(char piece, Tablebase queens, Tablebase rooks) {
+    if (piece != 'Q' && piece != 'R' && piece != 'P') {
+      throw new IllegalArgumentException("Only KQK, KRK and KPK are supported");
+    }
+    if (piece == 'P' && (queens == null || rooks == null)) {
+      throw new IllegalArgumentException("KPK needs the KQK and KRK tables for promotions");
+    }
+    Tablebase tb = new Tablebase(piece, new byte[SIZE], queens, rooks);
+    tb.solve();
+    return tb;
+  }
+
+  private void solve() {
+    final int half = SIZE / 2; // [0, half) strong to move, [half, SIZE) weak to move
+    byte[] promotions = new byte[half]; // KPK only: best mate distance reachable by promoting
+    LongAdder changed = new LongAdder();
+
+    // mark illegal positions, checkmates and promotion wins
+    IntStream.range(0, SIZE).parallel().forEach(idx -> {
+      int stm = idx >>> 18;
+      int sk = (idx >>> 12) & 63;
+      int wk = (idx >>> 6) & 63;
+      int p = idx & 63;
+      if (!isLegal(stm, sk, wk, p)) {
+        table[idx] = ILLEGAL;
+      }
+      else if (stm == WEAK) {
+        if (countWeakMoves(sk, wk, p) == 0 && pieceAttacks(p, wk, sk)) {
+          table[idx] = loss(0);
+        }
+      }
+      else if (piece == 'P') {
+        promotions[idx] = bestPromotion(sk, wk, p);
+      }
+    });
+
+    int lastPromotion = 0;
+    for (byte b : promotions) {
+      lastPromotion = Math.max(lastPromotion, b);
+    }
+
+    for (int d = 1; ; d += 2) {
+      if (d + 1 > MAX_PLIES) {
+        throw new IllegalStateException("Distance to mate doesn't fit in the table");
+      }
+      final int dist = d;
+      changed.reset();
+
+      // strong side to move wins in d if it has a move into a loss in d - 1...
+      IntStream.range(half, SIZE).parallel().forEach(idx -> {
+        if (table[idx] == loss(dist - 1)) {
+          int sk = (idx >>> 12) & 63;
+          int wk = (idx >>> 6) & 63;
+          int p = idx & 63;
+          forEachStrongUnmove(sk, wk, p, pred -> {
+            if (table[pred] == 0) {
+              table[pred] = win(dist);
+              changed.increment();
+            }
+          });
+        }
+      });
+      // ...or a promotion that mates in d
+      if (piece == 'P') {
+        IntStream.range(0, half).parallel().forEach(idx -> {
+          if (table[idx] == 0 && promotions[idx] == dist) {
+            table[idx] = win(dist);
+            changed.increment();
+          }
+        });
+      }
+
+      // weak side to move loses in d + 1 if every move leads into a win, the longest being d
+      IntStream.range(0, half).parallel().forEach(idx -> {
+        if (table[idx] == win(dist)) {
+          int sk = (idx >>> 12) & 63;
+          int wk = (idx >>> 6) & 63;
+          int p = idx & 63;
+          forEachWeakUnmove(sk, wk, p, pred -> {
+            if (table[pred] == 0 && allWeakMovesLose(pred)) {
+              table[pred] = loss(dist + 1);
+              changed.increment();
+            }
+          });
+        }
+      });
+
+      if (changed.sum() == 0 && d >= lastPromotion) {
+        break;
+      }
+    }
+  }
+
+  private interface SquareVisitor {
+    void visit(int value);
+  }
+
+  /**
+   * Visits the strong-to-move predecessors of a weak-to-move position
+   */
+  private void forEachStrongUnmove(int sk, int wk, int p, SquareVisitor v) {
+    // king unmoves
+    for (int i = 0; i < 8; i++) {
+      int f = step(sk, KING_DX[i], KING_DY[i]);
+      if (f != -1 && f != p && f != wk && !adjacent(f, wk) && isLegal(STRONG, f, wk, p)) {
+        v.visit(index(STRONG, f, wk, p));
+      }
+    }
+
+    // piece unmoves
+    if (piece == 'P') {
+      int f = step(p, 0, -1);
+      if (f != -1 && (f >> 3) >= 1 && f != sk && f != wk) {
+        if (isLegal(STRONG, sk, wk, f)) {
+          v.visit(index(STRONG, sk, wk, f));
+        }
+        int f2 = step(f, 0, -1);
+        if ((p >> 3) == 3 && f2 != sk && f2 != wk && isLegal(STRONG, sk, wk, f2)) {
+          v.visit(index(STRONG, sk, wk, f2));
+        }
+      }
+      return;
+    }
+    int[] dxs = piece == 'Q' ? QUEEN_DX : ROOK_DX;
+    int[] dys = piece == 'Q' ? QUEEN_DY : ROOK_DY;
+    for (int i = 0; i < dxs.length; i++) {
+      for (int f = step(p, dxs[i], dys[i]); f != -1 && f != sk && f != wk;
+          f = step(f, dxs[i], dys[i])) {
+        if (isLegal(STRONG, sk, wk, f)) {
+          v.visit(index(STRONG, sk, wk, f));
+        }
+      }
+    }
+  }
+
+  /**
+   * Visits the weak-to-move predecessors of a strong-to-move position
+   */
+  private void forEachWeakUnmove(int sk, int wk, int p, SquareVisitor v) {
+    for (int i = 0; i < 8; i++) {
+      int f = step(wk, KING_DX[i], KING_DY[i]);
+      if (f != -1 && f != sk && f != p && isLegal(WEAK, sk, f, p)) {
+        v.visit(index(WEAK, sk, f, p));
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the strong-to-move position after the weak king moves to t, -1 if that
+   * move is illegal, or -2 if it captures the piece (a dead draw)
+   */
+  private int weakMove(int sk, int wk, int p, int t) {
+    if (t == -1 || t == sk || adjacent(t, sk)) {
+      return -1;
+    }
+    if (t == p) {
+      return -2;
+    }
+    return pieceAttacks(p, t, sk) ? -1 : index(STRONG, sk, t, p);
+  }
+
+  private int countWeakMoves(int sk, int wk, int p) {
+    int count = 0;
+    for (int i = 0; i < 8; i++) {
+      if (weakMove(sk, wk, p, step(wk, KING_DX[i], KING_DY[i])) != -1) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private boolean allWeakMovesLose(int idx) {
+    int sk = (idx >>> 12) & 63;
+    int wk = (idx >>> 6) & 63;
+    int p = idx & 63;
+    boolean hasMove = false;
+    for (int i = 0; i < 8; i++) {
+      int succ = weakMove(sk, wk, p, step(wk, KING_DX[i], KING_DY[i]));
+      if (succ == -1) {
+        continue;
+      }
+      if (succ == -2 || table[succ] <= 0) {
+        return false;
+      }
+      hasMove = true;
+    }
+    return hasMove; // no moves at all is stalemate, not a loss
+  }
+
+  /**
+   * Returns the shortest mate reachable by promoting the pawn on p right now, or 0 if none
+   */
+  private byte bestPromotion(int sk, int wk, int p) {
+    int t = p + 8;
+    if ((p >> 3) != 6 || t == sk || t == wk) {
+      return 0;
+    }
+    int best = 0;
+    for (Tablebase tb : new Tablebase[] {queens, rooks}) {
+      int plies = afterMove(tb.table[index(WEAK, sk, wk, t)]);
+      if (plies > 0) {
+        if (best == 0 || plies < best) {
+          best = plies;
+        }
+      }
+    }
+    return (byte) best;
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // Probing
+
+  /**
+   * Probes the table for a position
+   * @param board board to probe
+   * @param toMove side to move
+   * @return table value (see isWin(), isLoss() and matePlies()), or ILLEGAL if the board doesn't
+   * have this table's material
+   */
+  public byte probe(ChessBoard board, ChessColor toMove) {
+    int idx = indexOf(board, toMove);
+    return idx < 0 ? ILLEGAL : table[idx];
+  }
+
+  /**
+   * Returns this table's index for a board, or -1 if the material doesn't match
+   */
+  private int indexOf(ChessBoard board, ChessColor toMove) {
+    ChessPiece extra = null;
+    int pieces = 0;
+    for (int x = 0; x < ChessBoard.X_DIM; x++) {
+      for (int y = 0; y < ChessBoard.Y_DIM; y++) {
+        ChessPiece c = board.getSquare(x, y);
+        if (c == null) {
+          continue;
+        }
+        pieces++;
+        if (!(c instanceof King)) {
+          extra = c;
+        }
+      }
+    }
+    if (pieces != 3 || extra == null || !matches(extra)) {
+      return -1;
+    }
+    ChessColor strong = extra.getColor();
+    ChessColor weak = ChessGame.getOtherColor(strong);
+    King sKing = board.getKing(strong);
+    King wKing = board.getKing(weak);
+    return index(toMove == strong ? STRONG : WEAK, square(sKing, strong), square(wKing, strong),
+        square(extra, strong));
+  }
+
+  private boolean matches(ChessPiece c) {
+    return (piece == 'Q' && c instanceof Queen) || (piece == 'R' && c instanceof Rook)
+        || (piece == 'P' && c instanceof Pawn);
+  }
+
+  /**
+   * Returns a piece's square from the strong side's point of view (flipped if strong is black)
+   */
+  private static int square(ChessPiece c, ChessColor strong) {
+    int y = strong == ChessColor.WHITE ? c.getY() : 7 - c.getY();
+    return y * 8 + c.getX();
+  }
+
+  /**
+   * Finds the best move for the side to move: the fastest mate when winning, the longest
+   * resistance when losing, and any move that keeps the draw otherwise
+   * @param board board to probe
+   * @param toMove side to move
+   * @return packed move (see ChessMove), or ChessMove.NONE if the material doesn't match or there
+   * is no legal move
+   */
+  public int bestMove(ChessBoard board, ChessColor toMove) {
+    int idx = indexOf(board, toMove);
+    if (idx < 0 || table[idx] == ILLEGAL) {
+      return ChessMove.NONE;
+    }
+    ChessColor strong = (idx >>> 18) == STRONG ? toMove : ChessGame.getOtherColor(toMove);
+    boolean flip = strong == ChessColor.BLACK;
+    int sk = (idx >>> 12) & 63;
+    int wk = (idx >>> 6) & 63;
+    int p = idx & 63;
+
+    int bestMove = ChessMove.NONE;
+    int bestScore = Integer.MIN_VALUE;
+
+    if ((idx >>> 18) == WEAK) {
+      for (int i = 0; i < 8; i++) {
+        int t = step(wk, KING_DX[i], KING_DY[i]);
+        int succ = weakMove(sk, wk, p, t);
+        if (succ == -1) {
+          continue;
+        }
+        int score = rank(succ == -2 ? 0 : afterMove(table[succ]));
+        if (score > bestScore) {
+          bestScore = score;
+          bestMove = toMove(wk, t, ChessMove.PROMO_NONE, flip);
+        }
+      }
+      return bestMove;
+    }
+
+    // strong king moves
+    for (int i = 0; i < 8; i++) {
+      int t = step(sk, KING_DX[i], KING_DY[i]);
+      if (t != -1 && t != p && t != wk && !adjacent(t, wk)) {
+        int score = rank(afterMove(table[index(WEAK, t, wk, p)]));
+        if (score > bestScore) {
+          bestScore = score;
+          bestMove = toMove(sk, t, ChessMove.PROMO_NONE, flip);
+        }
+      }
+    }
+
+    // piece moves
+    if (piece == 'P') {
+      int t = p + 8;
+      if (t != sk && t != wk) {
+        if ((t >> 3) == 7) {
+          int q = rank(afterMove(queens.table[index(WEAK, sk, wk, t)]));
+          int r = rank(afterMove(rooks.table[index(WEAK, sk, wk, t)]));
+          if (q > bestScore || r > bestScore) {
+            bestScore = Math.max(q, r);
+            bestMove = toMove(p, t, q >= r ? ChessMove.PROMO_QUEEN : ChessMove.PROMO_ROOK, flip);
+          }
+        }
+        else {
+          int score = rank(afterMove(table[index(WEAK, sk, wk, t)]));
+          if (score > bestScore) {
+            bestScore = score;
+            bestMove = toMove(p, t, ChessMove.PROMO_NONE, flip);
+          }
+          int t2 = p + 16;
+          if ((p >> 3) == 1 && t2 != sk && t2 != wk) {
+            score = rank(afterMove(table[index(WEAK, sk, wk, t2)]));
+            if (score > bestScore) {
+              bestScore = score;
+              bestMove = toMove(p, t2, ChessMove.PROMO_NONE, flip);
+            }
+          }
+        }
+      }
+    }
+    else {
+      int[] dxs = piece == 'Q' ? QUEEN_DX : ROOK_DX;
+      int[] dys = piece == 'Q' ? QUEEN_DY : ROOK_DY;
+      for (int i = 0; i < dxs.length; i++) {
+        for (int t = step(p, dxs[i], dys[i]); t != -1 && t != sk && t != wk;
+            t = step(t, dxs[i], dys[i])) {
+          // leaving the piece where the weak king can take it unprotected is just a draw
+          int score = rank(afterMove(table[index(WEAK, sk, wk, t)]));
+          if (score > bestScore) {
+            bestScore = score;
+            bestMove = toMove(p, t, ChessMove.PROMO_NONE, flip);
+          }
+        }
+      }
+    }
+    return bestMove;
+  }
+
+  /**
+   * Turns a signed distance to mate (from the mover's point of view) into something to maximise:
+   * quick mates first, then draws, then the longest-delayed losses
+   */
+  private static int rank(int plies) {
+    if (plies > 0) {
+      return 1000 - plies;
+    }
+    if (plies < 0) {
+      return -1000 - plies;
+    }
+    return 0;
+  }
+
+  private static int toMove(int from, int to, int promo, boolean flip) {
+    int y1 = from >> 3;
+    int y2 = to >> 3;
+    if (flip) {
+      y1 = 7 - y1;
+      y2 = 7 - y2;
+    }
+    return ChessMove.of(from & 7, y1, to & 7, y2, promo);
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // Storage
+
+  /**
+   * Writes this table to a file
+   * @param file file to write
+   * @throws IOException if the file can't be written
+   */
+  public void save(Path file) throws IOException {
+    try (OutputStream os = Files.newOutputStream(file);
+        DataOutputStream out = new DataOutputStream(os)) {
+      out.writeLong(MAGIC);
+      out.writeChar(piece);
+      out.write(table);
+    }
+  }
+
+  /**
+   * Reads a table written by save()
+   * @param file file to read
+   * @param queens KQK table (needed when loading KPK, otherwise null)
+   * @param rooks KRK table (needed when loading KPK, otherwise null)
+   * @return the loaded table
+   * @throws IOException if the file can't be read or isn't a table
+   */
+  public static Tablebase load(Path file, Tablebase queens, Tablebase rooks) throws IOException {
+    try (InputStream is = Files.newInputStream(file);
+        DataInputStream in = new DataInputStream(is)) {
+      if (in.readLong() != MAGIC) {
+        throw new IOException(file + " is not a tablebase file");
+      }
+      char piece = in.readChar();
+      if (piece == 'P' && (queens == null || rooks == null)) {
+        throw new IllegalArgumentException("KPK needs the KQK and KRK tables for promotions");
+      }
+      byte[] table = new byte[SIZE];
+      in.readFully(table);
+      return new Tablebase(piece, table, queens, rooks);
+    }
+  }
+
+  /**
+   * Generates all tables, prints their statistics and optionally saves them to a directory
+   * @param args optional output directory
+   */
+  public static void main(String[] args) throws IOException {
+    long start = System.nanoTime();
+    Tablebase[] tables = generateAll();
+    System.out.println("Generated in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+    for (Tablebase tb : tables) {
+      int wins = 0;
+      int longest = 0;
+      for (int i = 0; i < SIZE / 2; i++) {
+        if (tb.table[i] > 0) {
+          wins++;
+          longest = Math.max(longest, tb.table[i]);
+        }
+      }
+      System.out.println(tb.getSignature() + ": " + wins + " wins with strong side to move, "
+          + "longest mate " + longest + " plies");
+      if (args.length > 0) {
+        tb.save(Paths.get(args[0], tb.getSignature() + ".tb"));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,405 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Texel-style tuner for a material + piece-square table evaluation. Positions labelled with the
+ * result of the game they come from are loaded from a text file, and the parameters are fitted by
+ * minimising
+ *    E = 1/N * sum (result - sigmoid(K * eval))^2,   sigmoid(x) = 1 / (1 + 10^(-x / 400))
+ * with mini-batch gradient descent (Adam). Results are 1, 0.5 or 0 from white's point of view.
+ *
+ * The evaluation is linear: every piece adds (white) or subtracts (black) its piece value and its
+ * piece-square table entry, tables being from the owner's point of view. Parameters are in
+ * centipawns, starting from the material values of the piece constructors (1/3/3/5/9) and flat
+ * tables. Kings have a table but no value.
+ *
+ * Positions are kept as primitive arrays, one short per piece, so a position costs about 60 bytes
+ * and tens of millions of them fit in a few gigabytes. The pieces of all positions share one
+ * array, which caps a tuner at about 2^31 pieces, or some 80 million positions. Every loss and
+ * gradient computation is split into chunks that run on all cores, each with its own gradient
+ * array. A mini-batch is split into one chunk per core, so even the default batch size keeps them
+ * all busy.
+ *
+ */
+public class TexelTuner {
+  public static final int PST = 6; // parameters: 6 piece values, then 6 tables of 64 squares
+  public static final int PARAMS = PST + 6 * 64;
+
+  private static final String[] NAMES = {"Pawn", "Knight", "Bishop", "Rook", "Queen", "King"};
+  private static final int CHUNK = 1 << 14;
+  private static final int MIN_BATCH_CHUNK = 1024; // smaller ones cost more to hand out than to sum
+  private static final int CORES = Runtime.getRuntime().availableProcessors();
+  private static final double LN10_400 = Math.log(10) / 400;
+  private static final int MAX_ARRAY = Integer.MAX_VALUE - 8; // the most every JVM will allocate
+
+  // positions: features[start[p]..start[p + 1]) are (type * 64 + square + 1), negated for black
+  private short[] features = new short[1 << 16];
+  private int[] start = new int[1 << 12];
+  private byte[] result = new byte[1 << 12]; // white's points, in halves
+  private int n = 0;
+  private int skipped = 0;
+
+  private final double[] params = new double[PARAMS];
+  private double scale = 1.0;
+
+  // Adam state
+  private final double[] m = new double[PARAMS];
+  private final double[] v = new double[PARAMS];
+  private int steps = 0;
+
+  /**
+   * Creates a tuner with no positions, at the default parameters
+   */
+  public TexelTuner() {
+    params[0] = 100;
+    params[1] = 300;
+    params[2] = 300;
+    params[3] = 500;
+    params[4] = 900;
+  }
+
+  /**
+   * Loads every position of a file. Each line holds a FEN (only the piece placement is used) and
+   * the game result, as 1-0 / 0-1 / 1/2-1/2 or 1.0 / 0.0 / 0.5, optionally in quotes or brackets,
+   * e.g.
+   *    rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1 [0.5]
+   * Lines that can't be read are skipped (see getSkipped()).
+   * @param file position file
+   * @throws IOException if the file can't be read
+   */
+  public void load(Path file) throws IOException {
+    try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (!line.trim().isEmpty() && !addPosition(line)) {
+          skipped++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds one labelled position (see load() for the format)
+   * @return false if the line isn't a position with a result
+   */
+  public boolean addPosition(String line) {
+    String[] tokens = line.trim().split("\\s+");
+    int points = -1;
+    for (int i = tokens.length - 1; i > 0 && points == -1; i--) {
+      points = parseResult(tokens[i]);
+    }
+    if (points == -1) {
+      return false;
+    }
+
+    ensureCapacity(64);
+    int count = start[n];
+    int x = 0;
+    int y = 7;
+    int kings = 0;
+    for (int i = 0; i < tokens[0].length(); i++) {
+      char ch = tokens[0].charAt(i);
+      if (ch == '/') {
+        if (x != 8 || y == 0) {
+          return false;
+        }
+        x = 0;
+        y--;
+      }
+      else if (ch >= '1' && ch <= '8') {
+        x += ch - '0';
+      }
+      else {
+        int type = "pnbrqk".indexOf(Character.toLowerCase(ch));
+        if (type == -1 || x > 7 || count - start[n] == 32) {
+          return false;
+        }
+        boolean white = Character.isUpperCase(ch);
+        int square = white ? 8 * y + x : 8 * (7 - y) + x;
+        features[count++] = (short) (white ? type * 64 + square + 1 : -(type * 64 + square + 1));
+        if (type == 5) {
+          kings++;
+        }
+        x++;
+      }
+    }
+    if (x != 8 || y != 0 || kings != 2) {
+      return false;
+    }
+
+    result[n] = (byte) points;
+    start[++n] = count;
+    return true;
+  }
+
+  /**
+   * Parses a result token
+   * @return white's points in halves, or -1 if it isn't a result
+   */
+  private static int parseResult(String token) {
+    String t = token.replaceAll("[\\[\\]\";]", "");
+    if (t.equals("1-0") || t.equals("1.0")) {
+      return 2;
+    }
+    if (t.equals("0-1") || t.equals("0.0")) {
+      return 0;
+    }
+    if (t.equals("1/2-1/2") || t.equals("0.5")) {
+      return 1;
+    }
+    return -1;
+  }
+
+  private void ensureCapacity(int pieces) {
+    if (n + 2 > start.length) {
+      int length = grow(start.length, n + 2L);
+      start = Arrays.copyOf(start, length);
+      result = Arrays.copyOf(result, length);
+    }
+    if ((long) start[n] + pieces > features.length) {
+      features = Arrays.copyOf(features, grow(features.length, (long) start[n] + pieces));
+    }
+  }
+
+  /**
+   * Returns the length to grow an array to: double, but capped at the largest array size
+   * @param length current length
+   * @param needed length required
+   * @throws IllegalStateException if needed is past the largest array size
+   */
+  static int grow(int length, long needed) {
+    if (needed > MAX_ARRAY) {
+      throw new IllegalStateException("Too many positions for one tuner: needs an array of "
+          + needed + " entries, more than the " + MAX_ARRAY + " a Java array can hold");
+    }
+    return (int) Math.min(MAX_ARRAY, Math.max(2L * length, needed));
+  }
+
+  public int size() {
+    return n;
+  }
+
+  /**
+   * Returns the number of lines load() couldn't read
+   */
+  public int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * Returns the current parameters: PARAMS values, piece values (pawn, knight, bishop, rook,
+   * queen, king) first, then the table of each piece type with squares y * 8 + x from the owner's
+   * side
+   */
+  public double[] getParameters() {
+    return params.clone();
+  }
+
+  /**
+   * Returns the scaling constant K of the sigmoid
+   */
+  public double getScale() {
+    return scale;
+  }
+
+  /**
+   * Evaluates one loaded position with the current parameters
+   * @return centipawns from white's point of view
+   */
+  public double evaluate(int position) {
+    double e = 0;
+    for (int i = start[position]; i < start[position + 1]; i++) {
+      int f = features[i];
+      int idx = (f > 0 ? f : -f) - 1;
+      double w = params[idx >> 6] + params[PST + idx];
+      e += f > 0 ? w : -w;
+    }
+    return e;
+  }
+
+  /**
+   * Computes the mean squared error over all positions
+   */
+  public double loss() {
+    double sum = IntStream.range(0, (n + CHUNK - 1) / CHUNK).parallel()
+        .mapToDouble(c -> chunkLoss(c * CHUNK, Math.min(n, (c + 1) * CHUNK))).sum();
+    return n == 0 ? 0 : sum / n;
+  }
+
+  private double chunkLoss(int from, int to) {
+    double sum = 0;
+    for (int p = from; p < to; p++) {
+      double s = 1 / (1 + Math.exp(-scale * LN10_400 * evaluate(p)));
+      double err = result[p] * 0.5 - s;
+      sum += err * err;
+    }
+    return sum;
+  }
+
+  /**
+   * Fits the sigmoid's scaling constant K to the current parameters (golden-section search), as
+   * the first step of tuning
+   * @return the new K
+   */
+  public double fitScale() {
+    double phi = (Math.sqrt(5) - 1) / 2;
+    double lo = 0.05;
+    double hi = 5.0;
+    while (hi - lo > 1e-3) {
+      double a = hi - phi * (hi - lo);
+      double b = lo + phi * (hi - lo);
+      scale = a;
+      double la = loss();
+      scale = b;
+      double lb = loss();
+      if (la < lb) {
+        hi = b;
+      }
+      else {
+        lo = a;
+      }
+    }
+    scale = (lo + hi) / 2;
+    return scale;
+  }
+
+  /**
+   * Runs one pass of mini-batch gradient descent over all positions, in a random batch order
+   * @param batchSize positions per gradient step
+   * @param learningRate Adam step size, in centipawns
+   * @param random source of the batch order
+   * @return the loss after the pass
+   */
+  public double epoch(int batchSize, double learningRate, Random random) {
+    int batches = (n + batchSize - 1) / batchSize;
+    int[] order = new int[batches];
+    for (int i = 0; i < batches; i++) {
+      int j = random.nextInt(i + 1);
+      order[i] = order[j];
+      order[j] = i;
+    }
+    for (int b : order) {
+      int from = b * batchSize;
+      int to = Math.min(n, from + batchSize);
+      step(gradient(from, to, CORES), to - from, learningRate);
+    }
+    return loss();
+  }
+
+  /**
+   * Adds up d(error^2)/d(param) over a range of positions, split into about one chunk per thread
+   * @param from first position
+   * @param to one past the last position
+   * @param threads number of chunks to aim for
+   * @return the gradient, indexed like getParameters()
+   */
+  double[] gradient(int from, int to, int threads) { // package-private for the tests
+    int chunk = Math.max(MIN_BATCH_CHUNK, (to - from + threads - 1) / threads);
+    return IntStream.range(0, (to - from + chunk - 1) / chunk).parallel()
+        .mapToObj(c -> chunkGradient(from + c * chunk, Math.min(to, from + (c + 1) * chunk)))
+        .reduce(TexelTuner::sum).orElseGet(() -> new double[PARAMS]);
+  }
+
+  /**
+   * Adds up d(error^2)/d(param) over a range of positions
+   */
+  private double[] chunkGradient(int from, int to) {
+    double[] grad = new double[PARAMS];
+    for (int p = from; p < to; p++) {
+      double s = 1 / (1 + Math.exp(-scale * LN10_400 * evaluate(p)));
+      double g = -2 * (result[p] * 0.5 - s) * s * (1 - s) * scale * LN10_400;
+      for (int i = start[p]; i < start[p + 1]; i++) {
+        int f = features[i];
+        int idx = (f > 0 ? f : -f) - 1;
+        double signed = f > 0 ? g : -g;
+        grad[idx >> 6] += signed;
+        grad[PST + idx] += signed;
+      }
+    }
+    return grad;
+  }
+
+  private static double[] sum(double[] a, double[] b) {
+    for (int i = 0; i < a.length; i++) {
+      a[i] += b[i];
+    }
+    return a;
+  }
+
+  private void step(double[] grad, int count, double learningRate) {
+    final double beta1 = 0.9;
+    final double beta2 = 0.999;
+    steps++;
+    double c1 = 1 - Math.pow(beta1, steps);
+    double c2 = 1 - Math.pow(beta2, steps);
+    for (int i = 0; i < PARAMS; i++) {
+      double g = grad[i] / count;
+      m[i] = beta1 * m[i] + (1 - beta1) * g;
+      v[i] = beta2 * v[i] + (1 - beta2) * g * g;
+      params[i] -= learningRate * (m[i] / c1) / (Math.sqrt(v[i] / c2) + 1e-8);
+    }
+  }
+
+  /**
+   * Writes the parameters as text: the piece values, then each table from rank 8 down to rank 1
+   * as seen by white
+   */
+  public void write(Path file) throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      out.write(String.format("# K = %.4f, loss = %.6f over %d positions%n", scale, loss(), n));
+      for (int type = 0; type < 6; type++) {
+        out.write(String.format("%s %d%n", NAMES[type], Math.round(params[type])));
+      }
+      for (int type = 0; type < 6; type++) {
+        out.write(String.format("%n%s table%n", NAMES[type]));
+        for (int y = 7; y >= 0; y--) {
+          StringBuilder row = new StringBuilder();
+          for (int x = 0; x < 8; x++) {
+            row.append(String.format("%5d", Math.round(params[PST + type * 64 + 8 * y + x])));
+          }
+          out.write(row.append(System.lineSeparator()).toString());
+        }
+      }
+    }
+  }
+
+  /**
+   * Tunes on a position file: TexelTuner <positions> [epochs] [output file]
+   * Prints the loss and throughput of every epoch, then writes the parameters (see write()).
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.out.println("Usage: TexelTuner <positions> [epochs] [output file]");
+      return;
+    }
+    int epochs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    Path output = Paths.get(args.length > 2 ? args[2] : "tuned.txt");
+
+    TexelTuner tuner = new TexelTuner();
+    long start = System.nanoTime();
+    tuner.load(Paths.get(args[0]));
+    System.out.printf("Loaded %d positions (%d skipped) in %.1f s%n", tuner.size(),
+        tuner.getSkipped(), (System.nanoTime() - start) / 1e9);
+    System.out.printf("K = %.4f, loss %.6f%n", tuner.fitScale(), tuner.loss());
+
+    Random random = new Random(1);
+    for (int e = 1; e <= epochs; e++) {
+      start = System.nanoTime();
+      double loss = tuner.epoch(1 << 14, 1.0, random);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("epoch %d: loss %.6f (%.1f s, %.0f positions/s)%n", e, loss, seconds,
+          tuner.size() / seconds);
+    }
+    tuner.write(output);
+    System.out.println("Wrote " + output);
+  }
+
+}
@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Engine-vs-engine match runner. Games are played concurrently, one per worker thread, starting
+ * from a list of openings that are each played twice with colours reversed. The openings are
+ * shuffled with a fixed seed first, so a match that stops early hasn't only seen the head of the
+ * list. Games are adjudicated once they're decided (tablebase result, or a big material lead held
+ * for a while) or drawn (threefold repetition, or the ply limit), and a sequential probability
+ * ratio test stops the match as soon as the result is significant.
+ *
+ */
+public class Tournament {
+  public static final int WIN = 0;
+  public static final int DRAW = 1;
+  public static final int LOSS = 2;
+
+  private final Supplier<ChessEngine> engineA;
+  private final Supplier<ChessEngine> engineB;
+  private final List<int[]> openings;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int maxPlies = 300;
+  private int adjudicateMaterial = 10;
+  private int adjudicatePlies = 8;
+  private Tablebase[] tablebases;
+  private long seed = 1;
+
+  private double elo0 = 0;
+  private double elo1 = 10;
+  private double alpha = 0.05;
+  private double beta = 0.05;
+
+  // results from engine A's point of view, guarded by this
+  private final int[] results = new int[3];
+
+  /**
+   * Creates a new tournament
+   * @param engineA supplier for the engine under test (called once per worker thread)
+   * @param engineB supplier for the baseline engine (called once per worker thread)
+   * @param openings move sequences to start games from (see GameArchive); an empty list means
+   * every game starts from the standard position
+   */
+  public Tournament(Supplier<ChessEngine> engineA, Supplier<ChessEngine> engineB,
+      List<int[]> openings) {
+    this.engineA = engineA;
+    this.engineB = engineB;
+    this.openings = openings.isEmpty() ? Collections.singletonList(new int[0]) : openings;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * Sets the ply count after which a game is adjudicated as a draw
+   */
+  public void setMaxPlies(int maxPlies) {
+    this.maxPlies = maxPlies;
+  }
+
+  /**
+   * Sets material adjudication: a game is won once one side is ahead by at least material points
+   * for plies consecutive plies
+   */
+  public void setMaterialAdjudication(int material, int plies) {
+    this.adjudicateMaterial = material;
+    this.adjudicatePlies = plies;
+  }
+
+  /**
+   * Sets tablebases used to adjudicate games that reach a covered endgame
+   */
+  public void setTablebases(Tablebase[] tablebases) {
+    this.tablebases = tablebases;
+  }
+
+  /**
+   * Sets the seed the opening list is shuffled with
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Sets the SPRT hypotheses and error rates
+   * @param elo0 H0: engine A is elo0 stronger than engine B
+   * @param elo1 H1: engine A is elo1 stronger than engine B
+   * @param alpha false positive rate
+   * @param beta false negative rate
+   */
+  public void setSprt(double elo0, double elo1, double alpha, double beta) {
+    this.elo0 = elo0;
+    this.elo1 = elo1;
+    this.alpha = alpha;
+    this.beta = beta;
+  }
+
+  /**
+   * Plays up to maxGames games, stopping early once the SPRT accepts either hypothesis
+   * @param maxGames upper bound on games played
+   * @return {wins, draws, losses} for engine A
+   */
+  public int[] run(int maxGames) throws InterruptedException {
+    AtomicInteger nextGame = new AtomicInteger();
+    AtomicBoolean stop = new AtomicBoolean();
+    List<int[]> order = openingOrder();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+
+    for (int t = 0; t < threads; t++) {
+      pool.execute(() -> {
+        ChessEngine a = engineA.get();
+        ChessEngine b = engineB.get();
+        int i;
+        while (!stop.get() && (i = nextGame.getAndIncrement()) < maxGames) {
+          boolean aIsWhite = i % 2 == 0;
+          int[] opening = order.get((i / 2) % order.size());
+          int result = play(aIsWhite ? a : b, aIsWhite ? b : a, opening);
+          if (result == -1) {
+            continue; // opening didn't apply
+          }
+          // result is from white's point of view
+          int forA = aIsWhite ? result : 2 - result;
+          double llr;
+          synchronized (this) {
+            results[forA]++;
+            llr = llr();
+          }
+          if (llr >= upperBound() || llr <= lowerBound()) {
+            stop.set(true);
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    while (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+      report(start);
+    }
+    report(start);
+    synchronized (this) {
+      return results.clone();
+    }
+  }
+
+  /**
+   * Returns the openings in the order run() plays them: shuffled with the seed, each one still
+   * played by two consecutive games
+   */
+  List<int[]> openingOrder() {
+    List<int[]> order = new ArrayList<int[]>(openings);
+    Collections.shuffle(order, new Random(seed));
+    return order;
+  }
+
+  /**
+   * Plays one game
+   * @return WIN, DRAW or LOSS from white's point of view, or -1 if the opening is illegal
+   */
+  private int play(ChessEngine white, ChessEngine black, int[] opening) {
+    ChessGame g = new ChessGame(white.getName(), black.getName());
+    for (int m : opening) {
+      if (!ChessMove.apply(g, m)) {
+        return -1;
+      }
+    }
+    return play(white, black, g, opening.length);
+  }
+
+  /**
+   * Plays a game on from its current position until it ends or is adjudicated
+   * @param g game to play on (modified)
+   * @param ply plies already played, counted towards the ply limit
+   * @return WIN, DRAW or LOSS from white's point of view
+   */
+  int play(ChessEngine white, ChessEngine black, ChessGame g, int ply) {
+    Map<Long, Integer> seen = new HashMap<Long, Integer>();
+    int leadPlies = 0;
+    int leadSign = 0;
+    for (; ply < maxPlies; ply++) {
+      if (g.isGameOver()) {
+        if (g.getWinner() == null) {
+          return DRAW;
+        }
+        return g.getWinner().getColor() == ChessColor.WHITE ? WIN : LOSS;
+      }
+
+      // threefold repetition
+      if (seen.merge(g.getPositionHash(), 1, Integer::sum) >= 3) {
+        return DRAW;
+      }
+
+      // decided by the tablebases
+      if (tablebases != null) {
+        for (Tablebase tb : tablebases) {
+          byte v = tb.probe(g.getBoard(), g.getWhoseTurn().getColor());
+          if (v != Tablebase.ILLEGAL) {
+            if (v == 0) {
+              return DRAW;
+            }
+            boolean whiteToMove = g.getWhoseTurn().getColor() == ChessColor.WHITE;
+            return Tablebase.isWin(v) == whiteToMove ? WIN : LOSS;
+          }
+        }
+      }
+
+      // decided on material
+      int lead = g.getPlayer(ChessColor.WHITE).getTotalMaterialValue()
+          - g.getPlayer(ChessColor.BLACK).getTotalMaterialValue();
+      int sign = lead >= adjudicateMaterial ? 1 : lead <= -adjudicateMaterial ? -1 : 0;
+      leadPlies = sign != 0 && sign == leadSign ? leadPlies + 1 : (sign != 0 ? 1 : 0);
+      leadSign = sign;
+      if (leadPlies >= adjudicatePlies) {
+        return sign > 0 ? WIN : LOSS;
+      }
+
+      ChessEngine mover = g.getWhoseTurn().getColor() == ChessColor.WHITE ? white : black;
+      if (!ChessMove.apply(g, mover.chooseMove(g))) {
+        // an engine that plays an illegal move forfeits
+        return mover == white ? LOSS : WIN;
+      }
+    }
+    return DRAW;
+  }
+
+  /**
+   * Returns the log-likelihood ratio for the current results. Must hold the lock.
+   */
+  private double llr() {
+    return llr(results, elo0, elo1);
+  }
+
+  /**
+   * Returns the log-likelihood ratio of H1 over H0, using the normal approximation of the
+   * trinomial (win/draw/loss) model
+   * @param results {wins, draws, losses}
+   * @param elo0 elo difference under H0
+   * @param elo1 elo difference under H1
+   */
+  static double llr(int[] results, double elo0, double elo1) {
+    double n = results[WIN] + results[DRAW] + results[LOSS];
+    if (results[WIN] + results[DRAW] == 0 || results[LOSS] + results[DRAW] == 0
+        || results[WIN] + results[LOSS] == 0) {
+      return 0; // one kind of result only, so there's no variance yet
+    }
+    double score = (results[WIN] + 0.5 * results[DRAW]) / n;
+    double variance = (results[WIN] * Math.pow(1 - score, 2)
+        + results[DRAW] * Math.pow(0.5 - score, 2)
+        + results[LOSS] * Math.pow(score, 2)) / n;
+    double s0 = expectedScore(elo0);
+    double s1 = expectedScore(elo1);
+    return n * (s1 - s0) * (2 * score - s0 - s1) / (2 * variance);
+  }
+
+  double lowerBound() {
+    return Math.log(beta / (1 - alpha));
+  }
+
+  double upperBound() {
+    return Math.log((1 - beta) / alpha);
+  }
+
+  private static double expectedScore(double elo) {
+    return 1 / (1 + Math.pow(10, -elo / 400));
+  }
+
+  private void report(long start) {
+    int w;
+    int d;
+    int l;
+    double llr;
+    synchronized (this) {
+      w = results[WIN];
+      d = results[DRAW];
+      l = results[LOSS];
+      llr = llr();
+    }
+    int n = w + d + l;
+    double hours = (System.nanoTime() - start) / 3.6e12;
+    double score = n == 0 ? 0.5 : (w + 0.5 * d) / n;
+    String elo = score <= 0 || score >= 1 ? "n/a"
+        : String.format("%+.1f", -400 * Math.log10(1 / score - 1));
+    String verdict = llr >= upperBound() ? " H1 accepted"
+        : llr <= lowerBound() ? " H0 accepted" : "";
+    System.out.printf("Games %d: +%d =%d -%d  elo %s  LLR %.2f [%.2f, %.2f]  %.0f games/hour%s%n",
+        n, w, d, l, elo, llr, lowerBound(), upperBound(), n / hours, verdict);
+  }
+
+  /**
+   * Command line entry point: <depth A> <depth B> <max games> [openings archive]
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 3) {
+      System.out.println("Usage: Tournament <depth A> <depth B> <max games> [openings archive]");
+      return;
+    }
+    int depthA = Integer.parseInt(args[0]);
+    int depthB = Integer.parseInt(args[1]);
+    List<int[]> openings = new ArrayList<int[]>();
+    if (args.length > 3) {
+      GameArchive.forEach(Paths.get(args[3]), game -> openings.add(game.getMoves()));
+    }
+    AtomicInteger seeds = new AtomicInteger();
+    Tournament t = new Tournament(() -> new MaterialEngine(depthA, seeds.incrementAndGet()),
+        () -> new MaterialEngine(depthB, seeds.incrementAndGet()), openings);
+    t.setTablebases(Tablebase.generateAll());
+    t.run(Integer.parseInt(args[2]));
+  }
+
+}
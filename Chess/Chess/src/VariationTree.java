@@ -0,0 +1,290 @@
+import java.util.Arrays;
+
+/**
+ * Tree of variations branching off a starting position, for exploring games. Lines that start
+ * with the same moves share those nodes. Nodes live in parallel primitive arrays and hold only the
+ * move that leads to them, the hash of the position after it and three links (22 bytes a node), so
+ * trees with millions of nodes fit comfortably in the heap.
+ *
+ * Positions aren't stored. A Cursor walks the tree on its own ChessGame, playing moves on the way
+ * down and taking them back with ChessGame.undo() on the way up, so moving between neighbouring
+ * lines costs only the moves where they differ. Neither the tree nor its cursors are thread-safe.
+ *
+ */
+public class VariationTree {
+  public static final int ROOT = 0;
+  public static final int NONE = -1;
+
+  private final ChessGame start;
+
+  // the node table
+  private short[] move;
+  private long[] hash;
+  private int[] parent;
+  private int[] firstChild;
+  private int[] nextSibling;
+  private int size;
+
+  /**
+   * Creates a tree rooted at a game's current position
+   * @param game game whose position becomes the root (copied, so it can keep being played)
+   * @throws IllegalStateException if the game has a pending promotion
+   */
+  public VariationTree(ChessGame game) {
+    if (game.pawnNeedsPromotion()) {
+      throw new IllegalStateException("Can't start a tree with a pending promotion");
+    }
+    start = game.getDeepCopy();
+    int capacity = 64;
+    move = new short[capacity];
+    hash = new long[capacity];
+    parent = new int[capacity];
+    firstChild = new int[capacity];
+    nextSibling = new int[capacity];
+
+    size = 1;
+    move[ROOT] = (short) ChessMove.NONE;
+    hash[ROOT] = start.getPositionHash();
+    parent[ROOT] = NONE;
+    firstChild[ROOT] = NONE;
+    nextSibling[ROOT] = NONE;
+  }
+
+  /**
+   * Returns the number of nodes, including the root
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the move leading to a node
+   * @return packed move (see ChessMove), or ChessMove.NONE for the root
+   */
+  public int getMove(int node) {
+    return move[node];
+  }
+
+  /**
+   * Returns the Zobrist hash of the position at a node
+   */
+  public long getHash(int node) {
+    return hash[node];
+  }
+
+  /**
+   * Returns a node's parent, or NONE for the root
+   */
+  public int getParent(int node) {
+    return parent[node];
+  }
+
+  /**
+   * Returns a node's children, main line (first added) first
+   */
+  public int[] getChildren(int node) {
+    int n = 0;
+    for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+      n++;
+    }
+    int[] children = new int[n];
+    n = 0;
+    for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+      children[n++] = c;
+    }
+    return children;
+  }
+
+  /**
+   * Returns the child of a node reached by a move
+   * @return the child, or NONE if that move hasn't been added
+   */
+  public int getChild(int node, int m) {
+    for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+      if (move[c] == m) {
+        return c;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Returns the moves from the root to a node
+   * @return packed moves (see ChessMove), first move first
+   */
+  public int[] getLine(int node) {
+    int depth = 0;
+    for (int n = node; n != ROOT; n = parent[n]) {
+      depth++;
+    }
+    int[] line = new int[depth];
+    for (int n = node; n != ROOT; n = parent[n]) {
+      line[--depth] = move[n];
+    }
+    return line;
+  }
+
+  /**
+   * Makes a child the first (main line) child of its parent
+   */
+  public void promote(int node) {
+    int p = parent[node];
+    if (p == NONE || firstChild[p] == node) {
+      return;
+    }
+    int prev = firstChild[p];
+    while (nextSibling[prev] != node) {
+      prev = nextSibling[prev];
+    }
+    nextSibling[prev] = nextSibling[node];
+    nextSibling[node] = firstChild[p];
+    firstChild[p] = node;
+  }
+
+  /**
+   * Creates a cursor at the root
+   */
+  public Cursor newCursor() {
+    return new Cursor();
+  }
+
+  private int addNode(int p, int m, long h) {
+    if (size == move.length) {
+      int capacity = size * 2;
+      move = Arrays.copyOf(move, capacity);
+      hash = Arrays.copyOf(hash, capacity);
+      parent = Arrays.copyOf(parent, capacity);
+      firstChild = Arrays.copyOf(firstChild, capacity);
+      nextSibling = Arrays.copyOf(nextSibling, capacity);
+    }
+    int node = size++;
+    move[node] = (short) m; // packed moves fit in 15 bits
+    hash[node] = h;
+    parent[node] = p;
+    firstChild[node] = NONE;
+    nextSibling[node] = NONE;
+
+    // append, so the first line added through a position stays its main line
+    if (firstChild[p] == NONE) {
+      firstChild[p] = node;
+    }
+    else {
+      int last = firstChild[p];
+      while (nextSibling[last] != NONE) {
+        last = nextSibling[last];
+      }
+      nextSibling[last] = node;
+    }
+    return node;
+  }
+
+  /**
+   * A position in the tree, with a game that's kept at that position
+   */
+  public class Cursor {
+    private final ChessGame game = start.getDeepCopy();
+    private int[] path = new int[64]; // nodes from the root to the current one
+    private int depth = 0;
+
+    private Cursor() {
+      path[0] = ROOT;
+    }
+
+    /**
+     * Returns the node the cursor is at
+     */
+    public int getNode() {
+      return path[depth];
+    }
+
+    /**
+     * Returns the number of moves from the root to the cursor
+     */
+    public int getDepth() {
+      return depth;
+    }
+
+    /**
+     * Returns the game at the cursor's position. It must only be moved through the cursor.
+     */
+    public ChessGame getGame() {
+      return game;
+    }
+
+    /**
+     * Plays a move from the cursor's position, adding it to the tree if it's new
+     * @param m packed move (see ChessMove)
+     * @return the node the cursor moved to, or NONE if the move is illegal (the cursor stays)
+     */
+    public int play(int m) {
+      int child = getChild(getNode(), m);
+      if (child == NONE) {
+        if (game.isGameOver() || !ChessMove.apply(game, m)) {
+          return NONE;
+        }
+        child = addNode(getNode(), m, game.getPositionHash());
+      }
+      else {
+        ChessMove.apply(game, m);
+      }
+      push(child);
+      return child;
+    }
+
+    /**
+     * Moves to the parent node
+     * @return false if the cursor is already at the root
+     */
+    public boolean back() {
+      if (depth == 0) {
+        return false;
+      }
+      game.undo();
+      depth--;
+      return true;
+    }
+
+    /**
+     * Moves to the main line child of the current node
+     * @return false if the current node has no children
+     */
+    public boolean forward() {
+      int child = firstChild[getNode()];
+      if (child == NONE) {
+        return false;
+      }
+      ChessMove.apply(game, move[child]);
+      push(child);
+      return true;
+    }
+
+    /**
+     * Moves to any node in the tree, taking back moves only as far as the last node that the
+     * current line and the target's line have in common
+     * @param node node to move to
+     */
+    public void goTo(int node) {
+      int[] line = getLine(node);
+      int common = 0;
+      while (common < depth && common < line.length && move[path[common + 1]] == line[common]) {
+        common++;
+      }
+      while (depth > common) {
+        back();
+      }
+      for (int i = common; i < line.length; i++) {
+        int child = getChild(getNode(), line[i]);
+        ChessMove.apply(game, line[i]);
+        push(child);
+      }
+    }
+
+    private void push(int node) {
+      if (depth + 1 == path.length) {
+        path = Arrays.copyOf(path, path.length * 2);
+      }
+      path[++depth] = node;
+    }
+  }
+
+}